@@ -101,16 +101,26 @@ public class Changelist implements java.io.Serializable {
                         IMPORT,
 		}
 
-		Action action;
-		String filename;
-		String revision;
-                String changenumber;
-                String workspacePath;
-                Changelist changelist;
-
-        private static Map<Action, EditType> registry = new HashMap<Action, EditType>();
-
-        public FileEntry() {
+		/**Sentinel of unknown revisions and change numbers*/
+		private static final int UNKNOWN = -1;
+		private static final Action[] ACTIONS = Action.values();
+
+		// Paths are split into a shared directory and the name of the file,
+		// numbers are kept as primitives. Integrations carry huge numbers of entries.
+		private String directory;
+		private String name;
+		private String workspaceDirectory;
+		private String workspaceName;
+		private int revision = UNKNOWN;
+		private int changenumber = UNKNOWN;
+		// Values which aren't plain numbers, e.g. "none", are kept as they are
+		private String revisionText;
+		private String changenumberText;
+		private byte action;
+
+        private static final Map<Action, EditType> registry = new HashMap<Action, EditType>();
+
+        static {
             registry.put(Action.ADD, EditType.ADD);
             registry.put(Action.DELETE, EditType.DELETE);
             registry.put(Action.EDIT, EditType.EDIT);
@@ -124,7 +134,7 @@ public class Changelist implements java.io.Serializable {
 
 		public String toString() {
 			StringBuilder sb = new StringBuilder();
-			sb.append(action + " '" + filename + "' #" + revision + ".");
+			sb.append(getAction() + " '" + getFilename() + "' #" + getRevision() + ".");
 			return sb.toString();
 		}
 
@@ -132,7 +142,7 @@ public class Changelist implements java.io.Serializable {
 		 * @return the action
 		 */
 		public Action getAction() {
-			return action;
+			return action == 0 ? null : ACTIONS[action - 1];
 		}
 
 		/**
@@ -140,14 +150,14 @@ public class Changelist implements java.io.Serializable {
 		 *            the action to set
 		 */
 		public void setAction(Action action) {
-			this.action = action;
+			this.action = action == null ? 0 : (byte) (action.ordinal() + 1);
 		}
 
 		/**
 		 * @return the filename
 		 */
 		public String getFilename() {
-			return filename;
+			return name == null ? null : directory + name;
 		}
 
 		/**
@@ -155,14 +165,16 @@ public class Changelist implements java.io.Serializable {
 		 *            the filename to set
 		 */
 		public void setFilename(String filename) {
-			this.filename = filename;
+			int split = getNameStart(filename);
+			this.directory = filename == null ? null : PathDictionary.intern(filename.substring(0, split));
+			this.name = filename == null ? null : new String(filename.substring(split));
 		}
 
 		/**
 		 * @return the revision
 		 */
 		public String getRevision() {
-			return revision;
+			return revision == UNKNOWN ? revisionText : Integer.toString(revision);
 		}
 
 		/**
@@ -170,25 +182,100 @@ public class Changelist implements java.io.Serializable {
 		 *            the revision to set
 		 */
 		public void setRevision(String revision) {
-			this.revision = revision;
+			this.revision = parseNumber(revision);
+			this.revisionText = this.revision == UNKNOWN ? revision : null;
+		}
+
+		/**
+		 * @return the revision, -1 if it is not a number
+		 * @since 1.3.37
+		 */
+		public int getRevisionNumber() {
+			return revision;
+		}
+
+		/**
+		 * @param revision
+		 *            the revision to set
+		 * @since 1.3.37
+		 */
+		public void setRevisionNumber(int revision) {
+			this.revision = revision < 0 ? UNKNOWN : revision;
+			this.revisionText = null;
 		}
 
                 public String getWorkspacePath() {
-                    return workspacePath;
+                    return workspaceName == null ? null : workspaceDirectory + workspaceName;
                 }
 
                 public void setWorkspacePath(String workspacePath) {
-                    this.workspacePath = workspacePath;
+                    int split = getNameStart(workspacePath);
+                    this.workspaceDirectory = workspacePath == null ? null : PathDictionary.intern(workspacePath.substring(0, split));
+                    this.workspaceName = workspacePath == null ? null : new String(workspacePath.substring(split));
                 }
 
                 public void setChangenumber(String changenumber) {
-                    this.changenumber = changenumber;
+                    this.changenumber = parseNumber(changenumber);
+                    this.changenumberText = this.changenumber == UNKNOWN ? changenumber : null;
                 }
 
                 public String getChangenumber() {
-                    return this.changenumber;
+                    return changenumber == UNKNOWN ? changenumberText : Integer.toString(changenumber);
+                }
+
+                /**
+                 * @return the change number, -1 if it is not a number
+                 * @since 1.3.37
+                 */
+                public int getChangeNumberValue() {
+                    return changenumber;
                 }
 
+                /**
+                 * @param changenumber
+                 *            the change number to set
+                 * @since 1.3.37
+                 */
+                public void setChangeNumberValue(int changenumber) {
+                    this.changenumber = changenumber < 0 ? UNKNOWN : changenumber;
+                    this.changenumberText = null;
+                }
+
+		private static int getNameStart(String path) {
+			if (path == null) {
+				return 0;
+			}
+			return Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1;
+		}
+
+		/**
+		 * Shares the directories of deserialized entries again.
+		 */
+		private Object readResolve() {
+			if (directory != null) {
+				directory = PathDictionary.intern(directory);
+			}
+			if (workspaceDirectory != null) {
+				workspaceDirectory = PathDictionary.intern(workspaceDirectory);
+			}
+			return this;
+		}
+
+		/**
+		 * Parses numbers, which can be restored from the int as they are.
+		 */
+		private static int parseNumber(String value) {
+			if (value == null || value.length() == 0 || value.length() > 10) {
+				return UNKNOWN;
+			}
+			try {
+				int number = Integer.parseInt(value);
+				return number >= 0 && Integer.toString(number).equals(value) ? number : UNKNOWN;
+			} catch (NumberFormatException e) {
+				return UNKNOWN;
+			}
+		}
+
         public String getPath() {
             return getFilename();
         }
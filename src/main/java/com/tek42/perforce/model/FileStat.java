@@ -0,0 +1,217 @@
+/*
+ *	P4Java - java integration with Perforce SCM
+ *	Copyright (C) 2007-,  Mike Wille, Tek42
+ *
+ *	This library is free software; you can redistribute it and/or
+ *	modify it under the terms of the GNU Lesser General Public
+ *	License as published by the Free Software Foundation; either
+ *	version 2.1 of the License, or (at your option) any later version.
+ *
+ *	This library is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *	Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public
+ *	License along with this library; if not, write to the Free Software
+ *	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *	You can contact the author at:
+ *
+ *	Web:	http://tek42.com
+ *	Email:	mike@tek42.com
+ *	Mail:	755 W Big Beaver Road
+ *			Suite 1110
+ *			Troy, MI 48084
+ */
+
+package com.tek42.perforce.model;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Represents one record of <tt>p4 fstat -Ol</tt> output: the head revision of a
+ * file in the client view together with its digest and size.
+ * <p>
+ * Instances are serializable so that they may be handed over to the slave
+ * which owns the workspace.
+ */
+public class FileStat implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private String depotFile;
+	private String clientFile;
+	private int headRev;
+	private int haveRev;
+	private String headAction;
+	private String headType;
+	private String digest;
+	private long fileSize = -1;
+	private long headModTime;
+
+	/**
+	 * Builds a file record from one dictionary of <tt>p4 -G fstat</tt> output.
+	 *
+	 * @param map	The dictionary as returned by the python marshal parser
+	 * @return	The file record, or null if the dictionary doesn't describe a file
+	 */
+	public static FileStat fromMap(Map<String, String> map) {
+		if(map == null || map.get("depotFile") == null) {
+			return null;
+		}
+		FileStat stat = new FileStat();
+		stat.depotFile = map.get("depotFile");
+		stat.clientFile = map.get("clientFile");
+		stat.headRev = parseInt(map.get("headRev"), 0);
+		stat.haveRev = parseInt(map.get("haveRev"), 0);
+		stat.headAction = map.get("headAction");
+		stat.headType = map.get("headType");
+		stat.digest = map.get("digest");
+		String modTime = map.get("headModTime");
+		if(modTime != null) {
+			try {
+				stat.headModTime = Long.parseLong(modTime);
+			} catch(NumberFormatException e) {
+				stat.headModTime = 0;
+			}
+		}
+		String size = map.get("fileSize");
+		if(size != null) {
+			try {
+				stat.fileSize = Long.parseLong(size);
+			} catch(NumberFormatException e) {
+				stat.fileSize = -1;
+			}
+		}
+		return stat;
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		if(value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch(NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	public String getDepotFile() {
+		return depotFile;
+	}
+
+	public void setDepotFile(String depotFile) {
+		this.depotFile = depotFile;
+	}
+
+	/**
+	 * @return	Local path of the file in the workspace
+	 */
+	public String getClientFile() {
+		return clientFile;
+	}
+
+	public void setClientFile(String clientFile) {
+		this.clientFile = clientFile;
+	}
+
+	public int getHeadRev() {
+		return headRev;
+	}
+
+	public void setHeadRev(int headRev) {
+		this.headRev = headRev;
+	}
+
+	/**
+	 * @return	Revision the client has according to the server, 0 if none
+	 */
+	public int getHaveRev() {
+		return haveRev;
+	}
+
+	public void setHaveRev(int haveRev) {
+		this.haveRev = haveRev;
+	}
+
+	public String getHeadAction() {
+		return headAction;
+	}
+
+	public void setHeadAction(String headAction) {
+		this.headAction = headAction;
+	}
+
+	public String getHeadType() {
+		return headType;
+	}
+
+	public void setHeadType(String headType) {
+		this.headType = headType;
+	}
+
+	/**
+	 * @return	MD5 digest of the normalized file content, as reported by the server
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
+	/**
+	 * @return	Size of the normalized file content, or -1 if unknown
+	 */
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public void setFileSize(long fileSize) {
+		this.fileSize = fileSize;
+	}
+
+	/**
+	 * @return	Modification time of the head revision in seconds, 0 if unknown
+	 */
+	public long getHeadModTime() {
+		return headModTime;
+	}
+
+	public void setHeadModTime(long headModTime) {
+		this.headModTime = headModTime;
+	}
+
+	/**
+	 * Checks if the head revision removes the file from the workspace.
+	 */
+	public boolean isDeleted() {
+		return headAction != null
+				&& (headAction.equals("delete") || headAction.equals("move/delete")
+				|| headAction.equals("purge") || headAction.equals("archive"));
+	}
+
+	/**
+	 * Checks if the head revision is a text file, i.e. its content in the
+	 * workspace depends on the client's line ending setting.
+	 */
+	public boolean isText() {
+		return headType != null
+				&& (headType.contains("text") || headType.contains("unicode") || headType.contains("utf"));
+	}
+
+	/**
+	 * @return	The depot path with the head revision specifier appended
+	 */
+	public String getDepotFileAtHead() {
+		return depotFile + "#" + headRev;
+	}
+
+	@Override
+	public String toString() {
+		return getDepotFileAtHead() + " (" + headType + ", " + digest + ")";
+	}
+}
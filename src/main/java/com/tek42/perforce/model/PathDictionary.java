@@ -0,0 +1,61 @@
+/*
+ *	P4Java - java integration with Perforce SCM
+ *	Copyright (C) 2007-,  Mike Wille, Tek42
+ *
+ *	This library is free software; you can redistribute it and/or
+ *	modify it under the terms of the GNU Lesser General Public
+ *	License as published by the Free Software Foundation; either
+ *	version 2.1 of the License, or (at your option) any later version.
+ *
+ *	This library is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *	Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public
+ *	License along with this library; if not, write to the Free Software
+ *	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *	You can contact the author at:
+ *
+ *	Web:	http://tek42.com
+ *	Email:	mike@tek42.com
+ *	Mail:	755 W Big Beaver Road
+ *			Suite 1110
+ *			Troy, MI 48084
+ */
+
+package com.tek42.perforce.model;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Shares the directory parts of file paths between changelist entries.
+ * <p>
+ * Files of a change mostly live in a few directories, so the entries keep a
+ * reference to a common directory string and only their own file name.
+ * Directories are held weakly and disappear with the last entry using them.
+ */
+final class PathDictionary {
+
+	private static final Map<String, WeakReference<String>> DIRECTORIES = new WeakHashMap<String, WeakReference<String>>();
+
+	private PathDictionary() {
+		// static methods, do not instantiate
+	}
+
+	/**
+	 * Gets the shared instance of the directory.
+	 */
+	static synchronized String intern(String directory) {
+		WeakReference<String> ref = DIRECTORIES.get(directory);
+		String shared = ref == null ? null : ref.get();
+		if (shared == null) {
+			shared = new String(directory);
+			DIRECTORIES.put(shared, new WeakReference<String>(shared));
+		}
+		return shared;
+	}
+}
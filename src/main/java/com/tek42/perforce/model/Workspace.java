@@ -307,6 +307,30 @@ public class Workspace extends AbstractViewsSupport implements java.io.Serializa
         markDirty();
     }
 
+	/**
+	 * Creates a copy, which can be modified independently of this workspace.
+	 * 
+	 * @return the copy
+	 */
+	public Workspace copy() {
+		Workspace copy = new Workspace();
+		copy.name = name;
+		copy.owner = owner;
+		copy.host = host;
+		copy.description = description;
+		copy.root = root;
+		copy.altRoots = altRoots;
+		copy.options = options;
+		copy.lineEnd = lineEnd;
+		copy.submitOptions = submitOptions;
+		copy.update = update;
+		copy.access = access;
+		copy.stream = stream;
+		copy.views.addAll(views);
+		copy.dirty = dirty;
+		return copy;
+	}
+
 	/**
 	 * Is this workspace new (i.e. never saved)?
 	 * 
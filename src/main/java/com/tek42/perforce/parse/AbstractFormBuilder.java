@@ -27,8 +27,6 @@
 package com.tek42.perforce.parse;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,18 +51,12 @@ public abstract class AbstractFormBuilder<T> implements Builder<T> {
 	 * @see com.tek42.perforce.parse.Builder#build(java.lang.StringBuilder)
 	 */
 	public T build(StringBuilder sb) throws PerforceException {
-		// Allow our regexp to match with only one case and not have to handle the case for the last line
-		sb.append("Endp:\n");
-		logger.debug("Parsing: \n" + sb);
-		Pattern p = Pattern.compile("^(\\w+):(.*?)(?=\\n\\w{4,}?:)", Pattern.DOTALL | Pattern.MULTILINE);
-		Matcher m = p.matcher(sb.toString());
-		Map<String, String> fields = new HashMap<String, String>();
-		logger.debug("Parsing response...");
-		while(m.find()) {
-			String key = m.group(1);
-			String value = m.group(2).trim();
-			fields.put(key, value);
-			logger.debug("Have key: " + key + " = " + value);
+		if(logger.isDebugEnabled())
+			logger.debug("Parsing: \n" + sb);
+		Map<String, String> fields = SpecTokenizer.parseForm(sb);
+		if(logger.isDebugEnabled()) {
+			for(Map.Entry<String, String> field : fields.entrySet())
+				logger.debug("Have key: " + field.getKey() + " = " + field.getValue());
 		}
 		return buildForm(fields);
 	}
@@ -96,11 +88,18 @@ public abstract class AbstractFormBuilder<T> implements Builder<T> {
 		if(value == null || value.equals("") || value.equals("\n"))
 			return new ArrayList<String>();
 
-		String values[] = value.split("\\n");
+		return SpecTokenizer.splitLines(value);
+	}
 
-		List<String> list = new ArrayList<String>(values.length);
-		list.addAll(Arrays.asList(values));
-		return list;
+	/**
+	 * Splits the value of the field into its lines like <tt>getField(key, fields).split("\n")</tt>,
+	 * i.e. a missing or empty field results in a single empty line.
+	 * @param key	The name of the field.
+	 * @param fields	The map of field/value pairs.
+	 * @return	A List of strings.
+	 */
+	protected List<String> getFieldLines(String key, Map<String, String> fields) {
+		return SpecTokenizer.splitLines(getField(key, fields));
 	}
 
 	/**
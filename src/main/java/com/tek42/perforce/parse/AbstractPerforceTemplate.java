@@ -29,12 +29,14 @@ package com.tek42.perforce.parse;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.FilterWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.StringTokenizer;
 
@@ -148,7 +150,7 @@ public abstract class AbstractPerforceTemplate {
 	 * @return A (possibly) modified string array to be executed in place of the original.
 	 */
 	protected String[] getExtraParams(String cmd[]) {
-		String ticket = depot.getP4Ticket();
+		String ticket = getSharedTicket();
 
 		if(ticket != null) {
 			// Insert the ticket for the password if tickets are being used...
@@ -166,6 +168,98 @@ public abstract class AbstractPerforceTemplate {
 		return cmd;
 	}
 
+	/**
+	 * Gets the entry of the shared ticket cache for the credentials of the depot.
+	 */
+	private TicketCache.Entry getTicketEntry() {
+		if (depot.getPort() == null || depot.getUser() == null) {
+			return null;
+		}
+		return TicketCache.get(depot.getPort(), depot.getUser(), depot.getPassword());
+	}
+
+	/**
+	 * Gets the ticket, which has been issued for the credentials of the depot
+	 * to any depot, and renews it if it expires soon. Falls back to the ticket
+	 * of the depot.
+	 */
+	private String getSharedTicket() {
+		TicketCache.Entry entry = getTicketEntry();
+		if (entry == null || entry.getTicket() == null) {
+			return depot.getP4Ticket();
+		}
+		if (entry.needsCheck(System.currentTimeMillis())) {
+			synchronized (entry) {
+				long now = System.currentTimeMillis();
+				if (entry.needsCheck(now)) {
+					String ticket = entry.getTicket();
+					long lifetime = p4LoginStatus(ticket);
+					if (lifetime > TicketCache.RENEW_MARGIN_MILLIS) {
+						entry.update(ticket, lifetime, now);
+					} else {
+						renewTicket(entry, ticket, now);
+					}
+				}
+			}
+		}
+		String ticket = entry.getTicket();
+		if (ticket != null) {
+			depot.setP4Ticket(ticket);
+			return ticket;
+		}
+		return depot.getP4Ticket();
+	}
+
+	/**
+	 * Logs in again before the shared ticket expires. Unlike {@link #login()}
+	 * after a failed command, the current ticket is still valid, and the
+	 * server may well issue the same ticket with a new lifetime, so the
+	 * result is stored whatever it is. The current ticket is kept if the
+	 * login fails or the new ticket is bound to this host.
+	 * Called with the lock of the entry held.
+	 */
+	private void renewTicket(TicketCache.Entry entry, String ticket, long now) {
+		depot.setP4Ticket(ticket);
+		try {
+			boolean allHosts = loginWithPassword();
+			String renewed = depot.getP4Ticket();
+			if (allHosts && renewed != null) {
+				// The lifetime of the new ticket is checked next time
+				entry.update(renewed, 0, System.currentTimeMillis());
+				return;
+			}
+		} catch (PerforceException e) {
+			getLogger().warn("Cannot renew the ticket of " + depot.getUser() + ": " + e.getMessage());
+		}
+		// Not again before the next regular check, a command failing with
+		// the expired ticket logs in anyway
+		entry.update(ticket, 0, now);
+	}
+
+	/**
+	 * Gets the remaining lifetime of the ticket with <tt>p4 login -s</tt>.
+	 * @return Lifetime in milliseconds, 0 if the ticket isn't valid anymore or the check fails
+	 */
+	private long p4LoginStatus(String ticket) {
+		Executor status = depot.getExecFactory().newExecutor();
+		try {
+			status.exec(new String[] { getP4Exe(), "-P", ticket, "login", "-s" });
+			status.getWriter().close();
+			BufferedReader reader = status.getReader();
+			StringBuilder output = new StringBuilder();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				output.append(line).append('\n');
+			}
+			return TicketCache.parseLifetime(output.toString());
+		} catch (Exception e) {
+			getLogger().warn("Cannot check the ticket of " + depot.getUser() + ": " + e.getMessage());
+			return 0;
+		} finally {
+			status.close();
+		}
+	}
+
 	/**
 	 * Handles the IO for opening a process, writing to it, flushing, closing, and then handling any errors.
 	 * 
@@ -308,6 +402,21 @@ public abstract class AbstractPerforceTemplate {
         }
 
 	protected StringBuilder getPerforceResponse(String origcmd[], ResponseFilter filter) throws PerforceException {
+		return getPerforceResponse(origcmd, filter, null);
+	}
+
+	/**
+	 * Executes a perforce command, feeding the given lines to its standard input.
+	 * Useful together with the global <tt>-x -</tt> option to pass large file lists
+	 * without hitting command line length limits.
+	 * 
+	 * @param origcmd	The perforce commands to execute
+	 * @param filter	Filter for the response lines
+	 * @param input	Lines to write to the standard input of the process, may be null
+	 * @return	The response from perforce as a stringbuilder
+	 * @throws PerforceException	If perforce throws any errors
+	 */
+	protected StringBuilder getPerforceResponse(String origcmd[], ResponseFilter filter, Collection<String> input) throws PerforceException {
 		// TODO: Create a way to wildcard portions of the error checking.  Add method to check for these errors.
 		boolean loop;
 		boolean attemptLogin = true;
@@ -338,7 +447,7 @@ public abstract class AbstractPerforceTemplate {
 			try
 			{
                              PerforceSCM.PerforceSCMDescriptor scmDescr = PerforceSCM.getInstance();
-                             p4.getWriter().close();
+                             writeStandardInput(p4, input);
                              int timeout = -1;
                              if(scmDescr.hasP4ReadlineTimeout()) { // Implementation with timeout
                                timeout = scmDescr.getP4ReadLineTimeout();
@@ -419,6 +528,40 @@ public abstract class AbstractPerforceTemplate {
 		return response;
 	}
 
+    /**
+     * Writes the lines to the standard input of the process and closes it.
+     * Writing happens in a separate thread, so the caller may consume the output
+     * of the process meanwhile.
+     */
+    private void writeStandardInput(final Executor p4, final Collection<String> input) throws IOException {
+        if (input == null || input.isEmpty()) {
+            p4.getWriter().close();
+            return;
+        }
+        Thread writerThread = new Thread("Perforce stdin writer") {
+            @Override
+            public void run() {
+                BufferedWriter writer = p4.getWriter();
+                try {
+                    for (String line : input) {
+                        writer.write(line);
+                        writer.write('\n');
+                    }
+                } catch (IOException e) {
+                    getLogger().warn("Failed to write the standard input of the perforce process: " + e.getMessage());
+                } finally {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        getLogger().warn("Write pipe failed to close.");
+                    }
+                }
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
     /**
      * Executes a p4 command and returns the output as list of lines.
      * 
@@ -500,7 +643,7 @@ public abstract class AbstractPerforceTemplate {
      */
 
     protected byte[] getRawPerforceResponseBytes(String cmd[]) throws PerforceException {
-        List<Byte> bytes = new ArrayList<Byte>(1024);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
 
         Executor p4 = depot.getExecFactory().newExecutor();
         String debugCmd = "";
@@ -517,14 +660,12 @@ public abstract class AbstractPerforceTemplate {
 
         try
         {
-            byte[] cbuf = new byte[1024];
+            byte[] cbuf = new byte[8192];
             InputStream input = p4.getInputStream();
             p4.getWriter().close();
             int readCount;
-            while((readCount = input.read(cbuf, 0, 1024)) != -1) {
-                for(int i=0; i<readCount; i++){
-                    bytes.add(new Byte((byte)(cbuf[i]&0xff)));
-                }
+            while((readCount = input.read(cbuf, 0, cbuf.length)) != -1) {
+                bytes.write(cbuf, 0, readCount);
             }
         }
         catch(IOException ioe)
@@ -557,11 +698,7 @@ public abstract class AbstractPerforceTemplate {
             }
             p4.close();
         }
-        byte[] byteArray = new byte[bytes.size()];
-        for(int i=0; i<bytes.size(); i++){
-            byteArray[i] = bytes.get(i).byteValue();
-        }
-        return byteArray;
+        return bytes.toByteArray();
     }
 
         /**
@@ -573,12 +710,40 @@ public abstract class AbstractPerforceTemplate {
 	 * @throws PerforceException	If perforce throws any errors
 	 */
 	protected void login() throws PerforceException {
+		TicketCache.Entry entry = getTicketEntry();
+		if (entry == null) {
+			loginWithPassword();
+			return;
+		}
+		// Only one depot logs in at a time, the others take its ticket
+		synchronized (entry) {
+			String failed = depot.getP4Ticket();
+			String shared = entry.getTicket();
+			if (shared != null && !shared.equals(failed)) {
+				getLogger().info("Using ticket issued to another connection.");
+				depot.setP4Ticket(shared);
+				return;
+			}
+			entry.clear();
+			boolean allHosts = loginWithPassword();
+			String ticket = depot.getP4Ticket();
+			if (allHosts && ticket != null && !ticket.equals(failed)) {
+				entry.update(ticket, 0, System.currentTimeMillis());
+			}
+		}
+	}
 
+	/**
+	 * Logs in with the password of the depot.
+	 * @return True if the ticket is valid for all hosts
+	 */
+	private boolean loginWithPassword() throws PerforceException {
+		boolean[] allHosts = new boolean[1];
 		try {
 		    // try the default location for p4 executable
             String ticket;
             try {
-                ticket = p4Login(getP4Exe());
+                ticket = p4Login(getP4Exe(), allHosts);
             } catch (PerforceException e) {
                 // Strange error under hudson's execution of unit tests.  It appears
                 // that the environment is not setup correctly from within hudson.  The sh shell
@@ -588,7 +753,7 @@ public abstract class AbstractPerforceTemplate {
                 // from the automated build...
                 getLogger().warn("Login with '" + getP4Exe() + "' failed: " + e.getMessage());
                 try {
-                    ticket = p4Login("/usr/bin/p4");
+                    ticket = p4Login("/usr/bin/p4", allHosts);
                 } catch (PerforceException e1) {
                     // throw the original exception and not the one caused by the workaround
                     getLogger().warn("Attempt to workaround p4 executable location failed", e1);
@@ -606,20 +771,25 @@ public abstract class AbstractPerforceTemplate {
 		} catch(IOException e) {
 			throw new PerforceException("Unable to login via p4 login due to IOException: " + e.getMessage());
 		}
+		return allHosts[0];
 	}
 
     /**
      * Read the last line of output which should be the ticket.
      * 
      * @param p4Exe the perforce executable with or without full path information
+     * @param allHosts set to true if the ticket is valid for all hosts
      * @return the p4 ticket
      * @throws IOException if an I/O error prevents this from working
      * @throws PerforceException if the execution of the p4Exe fails
      */
-    private String p4Login(String p4Exe) throws IOException, PerforceException {
+    private String p4Login(String p4Exe, boolean[] allHosts) throws IOException, PerforceException {
         try {
-            return p4Login(new String[] { p4Exe, "login", "-a", "-p" });
+            String ticket = p4Login(new String[] { p4Exe, "login", "-a", "-p" });
+            allHosts[0] = true;
+            return ticket;
         } catch (PerforceException e) {
+            allHosts[0] = false;
             return p4Login(new String[] { p4Exe, "login", "-p" });
         }
     }
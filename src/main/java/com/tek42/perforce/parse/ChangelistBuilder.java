@@ -223,23 +223,9 @@ public class ChangelistBuilder implements Builder<Changelist> {
 					    }
 						String entry = lines.nextToken();
 						logger.debug("File Line: " + entry);
-						// if(!entry.startsWith("..."))
-						// break;
-						// line looks lie:
-						// ... //depot/path/to/file/file.ext#1 edit
-
-						int revStart = entry.indexOf("#");
-						if(revStart < 0)
+						Changelist.FileEntry file = parseFileEntry(entry, change.getChangeNumber());
+						if(file == null)
 							continue;
-						String filename = entry.substring(4, revStart);
-						String rev = entry.substring(revStart + 1, entry.indexOf(" ", revStart));
-						String action = entry.substring(entry.indexOf(" ", revStart) + 1);
-						action = action.replace('/', '_');
-						Changelist.FileEntry file = new Changelist.FileEntry();
-						file.setFilename(filename);
-						file.setRevision(rev);
-                                                file.setChangenumber(Integer.valueOf(change.getChangeNumber()).toString());
-						file.setAction(Changelist.FileEntry.Action.valueOf(action.toUpperCase(Locale.US)));
 						files.add(file);
 					}
 
@@ -254,6 +240,37 @@ public class ChangelistBuilder implements Builder<Changelist> {
 		return change;
 	}
 
+	/**
+	 * Parses a line of the affected files of a change.
+	 *
+	 * @param entry
+	 *            Line of the output of describe
+	 * @param changeNumber
+	 *            Number of the described change
+	 * @return null if the line doesn't name a file revision
+	 * @since 1.3.37
+	 */
+	Changelist.FileEntry parseFileEntry(String entry, int changeNumber) {
+		// if(!entry.startsWith("..."))
+		// break;
+		// line looks lie:
+		// ... //depot/path/to/file/file.ext#1 edit
+
+		int revStart = entry.indexOf("#");
+		if(revStart < 0)
+			return null;
+		String filename = entry.substring(4, revStart);
+		String rev = entry.substring(revStart + 1, entry.indexOf(" ", revStart));
+		String action = entry.substring(entry.indexOf(" ", revStart) + 1);
+		action = action.replace('/', '_');
+		Changelist.FileEntry file = new Changelist.FileEntry();
+		file.setFilename(filename);
+		file.setRevision(rev);
+		file.setChangeNumberValue(changeNumber);
+		file.setAction(Changelist.FileEntry.Action.valueOf(action.toUpperCase(Locale.US)));
+		return file;
+	}
+
 	public String[] getSaveCmd(String p4exe, Changelist obj) {
 		return new String[] { p4exe, "change", "-i" };
 	}
@@ -27,6 +27,7 @@
 
 package com.tek42.perforce.parse;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
@@ -73,11 +74,129 @@ public class Changes extends AbstractPerforceTemplate {
 		return change;
 	}
 
-        /**
-         * Calculates the workspace paths for every file in the changelist.
-         * @param change
-         */
-        private void calculateWorkspacePaths(Changelist change) throws PerforceException{
+	/**
+	 * Receives a change described by {@link Changes#getChangelist(int, int, ChangelistHandler)}
+	 * while the output of p4 is read.
+	 *
+	 * @since 1.3.37
+	 */
+	public interface ChangelistHandler {
+		/**
+		 * Starts the change. It has its jobs, but no files yet.
+		 */
+		void startChange(Changelist change) throws IOException;
+
+		/**
+		 * Adds a file to the started change.
+		 */
+		void addFile(Changelist.FileEntry file) throws IOException;
+
+		/**
+		 * Ends the started change.
+		 */
+		void endChange() throws IOException;
+	}
+
+	/**
+	 * Describes a single changelist and passes its files to the handler one
+	 * at a time, as they are read. Neither the output of p4 nor the files
+	 * are kept, so memory doesn't depend on the number of files.
+	 *
+	 * @param number
+	 * @param maxFiles
+	 *             The maximum number of affected files that will be passed
+	 *             on. With negative value include all the files.
+	 * @param handler
+	 *             Receives the change and its files
+	 * @since 1.3.37
+	 */
+	public void getChangelist(int number, int maxFiles, ChangelistHandler handler) throws PerforceException, IOException {
+		DescribeFilter filter = new DescribeFilter(new ChangelistBuilder(maxFiles, getDepot()), maxFiles, handler);
+		// Mapped before describe starts, p4 where isn't run while its output is read
+		loadWhereMaps();
+		getPerforceResponse(filter.builder.getBuildCmd(getP4Exe(), Integer.toString(number)), filter);
+		filter.finish(number);
+	}
+
+	/**
+	 * Parses the output of describe line by line. The description and jobs
+	 * are buffered until the files start, the files are passed on directly.
+	 */
+	class DescribeFilter extends ResponseFilter {
+		private final ChangelistBuilder builder;
+		private final int maxFiles;
+		private final ChangelistHandler handler;
+		private final StringBuilder header = new StringBuilder();
+		private Changelist change;
+		private int fileCount;
+		private PerforceException perforceFailure;
+		private IOException ioFailure;
+
+		DescribeFilter(ChangelistBuilder builder, int maxFiles, ChangelistHandler handler) {
+			this.builder = builder;
+			this.maxFiles = maxFiles;
+			this.handler = handler;
+		}
+
+		@Override
+		public boolean accept(String line) {
+			// Only the lines before the files are returned, the response isn't empty
+			boolean accept = change == null;
+			if(perforceFailure != null || ioFailure != null) {
+				return accept;
+			}
+			try {
+				if(change == null) {
+					if(line.startsWith("Change ")) {
+						// Drops the output of an attempt before a login
+						header.setLength(0);
+					}
+					header.append(line).append('\n');
+					if(line.startsWith("Affected files")) {
+						startChange();
+					}
+				} else if(maxFiles <= 0 || fileCount < maxFiles) {
+					Changelist.FileEntry file = builder.parseFileEntry(line, change.getChangeNumber());
+					if(file != null) {
+						fileCount++;
+						file.setWorkspacePath(getWorkspacePathForFile(file.getFilename()));
+						handler.addFile(file);
+					}
+				}
+			} catch(PerforceException e) {
+				perforceFailure = e;
+			} catch(IOException e) {
+				ioFailure = e;
+			} catch(RuntimeException e) {
+				perforceFailure = new PerforceException("Failed to parse changelist.\nLine from perforce was:\n" + line, e);
+			}
+			return accept;
+		}
+
+		private void startChange() throws PerforceException, IOException {
+			change = builder.build(header);
+			if(change != null) {
+				header.setLength(0);
+				handler.startChange(change);
+			}
+		}
+
+		void finish(int number) throws PerforceException, IOException {
+			if(perforceFailure != null)
+				throw perforceFailure;
+			if(ioFailure != null)
+				throw ioFailure;
+			if(change == null) {
+				// No files at all
+				startChange();
+				if(change == null)
+					throw new PerforceException("Failed to retrieve changelist " + number);
+			}
+			handler.endChange();
+		}
+	}
+
+        private void loadWhereMaps() throws PerforceException {
             if(whereMaps == null){
                 byte[] bytes = getRawPerforceResponseBytes(new String[]{getP4Exe(),"-G","where","//..."});
                 whereMaps = PerforceSCMHelper.parseWhereMapping(bytes);
@@ -85,6 +204,13 @@ public class Changes extends AbstractPerforceTemplate {
                     whereMaps = new ArrayList<PerforceSCMHelper.WhereMapping>();
                 }
             }
+        }
+
+        /**
+         * Calculates the workspace paths for every file in the changelist.
+         * @param change
+         */
+        private void calculateWorkspacePaths(Changelist change) throws PerforceException{
             for(Changelist.FileEntry file :change.getFiles()){
                 String workspacePath;
                 workspacePath = getWorkspacePathForFile(file.getFilename());
@@ -93,6 +219,7 @@ public class Changes extends AbstractPerforceTemplate {
         }
 
         private String getWorkspacePathForFile(String file) throws PerforceException {
+            loadWhereMaps();
             String workspacePath = PerforceSCMHelper.mapToWorkspace(whereMaps, file);
             if(workspacePath!=null){
                 //trim the head off of it, so it's a workspace-relative path.
@@ -1,8 +1,6 @@
 package com.tek42.perforce.parse;
 
 import java.io.Writer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import com.tek42.perforce.PerforceException;
 import com.tek42.perforce.model.Counter;
@@ -35,16 +33,20 @@ public class CounterBuilder implements Builder<Counter> {
 	 * @see com.tek42.perforce.parse.Builder#build(java.lang.StringBuilder)
 	 */
 	public Counter build(StringBuilder sb) throws PerforceException {
-		final Pattern p = Pattern.compile("^([0-9]+)", Pattern.DOTALL | Pattern.MULTILINE);
-		final Matcher m = p.matcher(sb.toString());
+		final SpecTokenizer tokenizer = new SpecTokenizer(sb);
 		final Counter counter = new Counter();
 		counter.setName("");
-		if(m.find()) {
-                    counter.setValue(Integer.parseInt(m.group(0).trim()));
-		} else {
-                    throw new PerforceException("Could not get value of counter.\nResponse from perforce was:\n" + sb);
-                }
-		return counter;
+		String line;
+		while((line = tokenizer.nextLine()) != null) {
+			int digits = 0;
+			while(digits < line.length() && line.charAt(digits) >= '0' && line.charAt(digits) <= '9')
+				digits++;
+			if(digits > 0) {
+				counter.setValue(Integer.parseInt(line.substring(0, digits)));
+				return counter;
+			}
+		}
+		throw new PerforceException("Could not get value of counter.\nResponse from perforce was:\n" + sb);
 	}
 
 	/*
@@ -56,8 +56,7 @@ public class LabelBuilder extends AbstractFormBuilder<Label> {
 		label.setOptions(getField("Options", fields));
 		label.setOwner(getField("Owner", fields));
 		label.setRevision(getField("Revision", fields));
-		String views = getField("View", fields);
-		for(String view : views.split("\n")) {
+		for(String view : getFieldLines("View", fields)) {
 			label.addView(view);
 		}
 		return label;
@@ -0,0 +1,154 @@
+/*
+ *	P4Java - java integration with Perforce SCM
+ *	Copyright (C) 2007-,  Mike Wille, Tek42
+ *
+ *	This library is free software; you can redistribute it and/or
+ *	modify it under the terms of the GNU Lesser General Public
+ *	License as published by the Free Software Foundation; either
+ *	version 2.1 of the License, or (at your option) any later version.
+ *
+ *	This library is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *	Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public
+ *	License along with this library; if not, write to the Free Software
+ *	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *	You can contact the author at:
+ *
+ *	Web:	http://tek42.com
+ *	Email:	mike@tek42.com
+ *	Mail:	755 W Big Beaver Road
+ *			Suite 1110
+ *			Troy, MI 48084
+ */
+
+package com.tek42.perforce.parse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line oriented tokenizer for the output of perforce spec commands.
+ * <p>
+ * A form consists of fields starting at the beginning of a line with their
+ * name followed by a colon. The value is the rest of that line plus all
+ * following lines up to the next field, which are tab indented for multi
+ * line values. The form is read in a single pass without backtracking, so
+ * that specs with thousands of view lines are parsed in linear time.
+ */
+final class SpecTokenizer {
+
+	private final CharSequence text;
+	private int position;
+
+	SpecTokenizer(CharSequence text) {
+		this.text = text;
+	}
+
+	/**
+	 * Gets the next line without its line separator.
+	 * 
+	 * @return the line or null at the end of the text
+	 */
+	String nextLine() {
+		int length = text.length();
+		if(position >= length)
+			return null;
+		int end = indexOfNewLine(position);
+		String line = text.subSequence(position, end).toString();
+		position = end + 1;
+		return line;
+	}
+
+	private int indexOfNewLine(int from) {
+		int length = text.length();
+		for(int i = from; i < length; i++) {
+			if(text.charAt(i) == '\n')
+				return i;
+		}
+		return length;
+	}
+
+	/**
+	 * Gets the length of the field name, if the line at the given position starts a field.
+	 * 
+	 * @return the length of the name or -1 if the line doesn't start with a name and a colon
+	 */
+	private int getFieldNameLength(int lineStart, int lineEnd) {
+		int i = lineStart;
+		while(i < lineEnd && isWordChar(text.charAt(i)))
+			i++;
+		if(i == lineStart || i == lineEnd || text.charAt(i) != ':')
+			return -1;
+		return i - lineStart;
+	}
+
+	private static boolean isWordChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	/**
+	 * Splits the form into fields. Comments in front of the first field are
+	 * skipped. Field values are trimmed, continuation lines keep their
+	 * indentation.
+	 * <p>
+	 * Once a field has been started, only names of at least four characters
+	 * start a new field, like the expression used by previous versions.
+	 * 
+	 * @param form the output of a <tt>p4 &lt;spec&gt; -o</tt> command
+	 * @return the values by field name
+	 */
+	static Map<String, String> parseForm(CharSequence form) {
+		SpecTokenizer tokenizer = new SpecTokenizer(form);
+		Map<String, String> fields = new HashMap<String, String>();
+		String key = null;
+		int valueStart = 0;
+		int valueEnd = 0;
+		int length = form.length();
+		int lineStart = 0;
+		while(lineStart < length) {
+			int lineEnd = tokenizer.indexOfNewLine(lineStart);
+			int nameLength = tokenizer.getFieldNameLength(lineStart, lineEnd);
+			if(nameLength > 0 && (key == null || nameLength >= 4)) {
+				if(key != null)
+					fields.put(key, form.subSequence(valueStart, valueEnd).toString().trim());
+				key = form.subSequence(lineStart, lineStart + nameLength).toString();
+				valueStart = lineStart + nameLength + 1;
+			}
+			valueEnd = lineEnd;
+			lineStart = lineEnd + 1;
+		}
+		if(key != null)
+			fields.put(key, form.subSequence(valueStart, valueEnd).toString().trim());
+		return fields;
+	}
+
+	/**
+	 * Splits a value at new lines. Behaves like <tt>value.split("\n")</tt>,
+	 * i.e. trailing empty lines are dropped, but an empty value results in a
+	 * single empty line.
+	 */
+	static List<String> splitLines(String value) {
+		List<String> lines = new ArrayList<String>();
+		int length = value.length();
+		int start = 0;
+		while(start <= length) {
+			int end = value.indexOf('\n', start);
+			if(end < 0)
+				end = length;
+			lines.add(value.substring(start, end));
+			start = end + 1;
+		}
+		int size = lines.size();
+		while(size > 1 && lines.get(size - 1).length() == 0)
+			lines.remove(--size);
+		if(size == 1 && lines.get(0).length() == 0 && length > 0)
+			lines.clear();
+		return lines;
+	}
+}
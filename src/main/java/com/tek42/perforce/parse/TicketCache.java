@@ -0,0 +1,138 @@
+/*
+ *	P4Java - java integration with Perforce SCM
+ *	Copyright (C) 2007-,  Mike Wille, Tek42
+ *
+ *	This library is free software; you can redistribute it and/or
+ *	modify it under the terms of the GNU Lesser General Public
+ *	License as published by the Free Software Foundation; either
+ *	version 2.1 of the License, or (at your option) any later version.
+ *
+ *	This library is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *	Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public
+ *	License along with this library; if not, write to the Free Software
+ *	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *	You can contact the author at:
+ *
+ *	Web:	http://tek42.com
+ *	Email:	mike@tek42.com
+ *	Mail:	755 W Big Beaver Road
+ *			Suite 1110
+ *			Troy, MI 48084
+ */
+
+package com.tek42.perforce.parse;
+
+import hudson.Util;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Login tickets shared by all depots, which connect to the same server with
+ * the same credentials.
+ * <p>
+ * A depot is created for each checkout, poll and validation, and each of them
+ * used to find out on its own that the ticket has expired, log in again and
+ * retry the command. Tickets are now kept here by server, user and password.
+ * After an expiry only the first depot logs in, the others pick up its ticket.
+ * The remaining lifetime of a ticket is checked with <tt>p4 login -s</tt> from
+ * time to time, and the ticket is renewed before it expires.
+ * <p>
+ * Only tickets valid for all hosts (<tt>p4 login -a</tt>) are shared, as the
+ * commands of the depots run on different nodes.
+ *
+ * @since 1.3.37
+ */
+final class TicketCache {
+
+	/**Tickets expiring within this time are renewed*/
+	static final long RENEW_MARGIN_MILLIS = 30 * 60 * 1000L;
+	/**Time between two checks of the remaining lifetime*/
+	static final long CHECK_INTERVAL_MILLIS = 10 * 60 * 1000L;
+
+	private static final Pattern EXPIRY = Pattern.compile("expires in (?:(\\d+) hours?)?\\s*(?:(\\d+) minutes?)?\\s*(?:(\\d+) seconds?)?");
+
+	private static final ConcurrentMap<String, Entry> ENTRIES = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Ticket of a server and user. Logins and renewals synchronize on the entry.
+	 */
+	static final class Entry {
+		private volatile String ticket;
+		/**Estimated expiry, 0 if unknown*/
+		private volatile long expires;
+		private volatile long checked;
+
+		String getTicket() {
+			return ticket;
+		}
+
+		/**
+		 * Checks if the remaining lifetime should be checked, i.e. if the
+		 * ticket may expire soon.
+		 */
+		boolean needsCheck(long now) {
+			return ticket != null && (now - checked > CHECK_INTERVAL_MILLIS
+					|| (expires != 0 && expires - now < RENEW_MARGIN_MILLIS));
+		}
+
+		/**
+		 * @param lifetime Remaining lifetime in milliseconds, 0 if unknown
+		 */
+		void update(String ticket, long lifetime, long now) {
+			this.ticket = ticket;
+			this.expires = lifetime > 0 ? now + lifetime : 0;
+			this.checked = now;
+		}
+
+		void clear() {
+			ticket = null;
+			expires = 0;
+		}
+	}
+
+	private TicketCache() {
+	}
+
+	/**
+	 * Gets the entry for the credentials. Passwords are only kept as digest.
+	 */
+	static Entry get(String port, String user, String password) {
+		String key = port + "/" + user + "/" + Util.getDigestOf(password != null ? password : "");
+		Entry entry = ENTRIES.get(key);
+		if (entry == null) {
+			ENTRIES.putIfAbsent(key, new Entry());
+			entry = ENTRIES.get(key);
+		}
+		return entry;
+	}
+
+	/**
+	 * Parses the remaining lifetime from the output of <tt>p4 login -s</tt>,
+	 * e.g. "User jenkins ticket expires in 11 hours 24 minutes."
+	 * @return Lifetime in milliseconds, 0 if the output doesn't contain it
+	 */
+	static long parseLifetime(String output) {
+		Matcher m = EXPIRY.matcher(output);
+		if (!m.find()) {
+			return 0;
+		}
+		long seconds = 0;
+		if (m.group(1) != null) {
+			seconds += Long.parseLong(m.group(1)) * 3600;
+		}
+		if (m.group(2) != null) {
+			seconds += Long.parseLong(m.group(2)) * 60;
+		}
+		if (m.group(3) != null) {
+			seconds += Long.parseLong(m.group(3));
+		}
+		return seconds * 1000;
+	}
+}
@@ -28,7 +28,11 @@
 package com.tek42.perforce.parse;
 
 import com.tek42.perforce.Depot;
+import com.tek42.perforce.PerforceException;
 import com.tek42.perforce.model.User;
+import hudson.plugins.perforce.PerforceSCMHelper;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Base API object for interacting with users.
@@ -57,6 +61,16 @@ public class Users extends AbstractPerforceTemplate {
 		return user;
 	}
 
+        /**
+         * Lists all users of the server with a single <tt>p4 -G users</tt>.
+         * Each record has the fields User, Email, FullName, Update and Access.
+         * @since 1.3.37
+         */
+        public List<Map<String, String>> getUserRecords() throws PerforceException {
+            byte[] bytes = getRawPerforceResponseBytes(new String[] { getP4Exe(), "-G", "users" });
+            return PerforceSCMHelper.parseDictionaries(bytes);
+        }
+
         private boolean exists(String name) throws Exception {
             StringBuilder response = getPerforceResponse(new String[]{getP4Exe(), "-s", "users", name});
             return !response.toString().contains("no such user");
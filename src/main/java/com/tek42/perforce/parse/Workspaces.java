@@ -29,8 +29,17 @@ package com.tek42.perforce.parse;
 
 import com.tek42.perforce.Depot;
 import com.tek42.perforce.PerforceException;
+import com.tek42.perforce.model.FileStat;
 import com.tek42.perforce.model.Workspace;
+import hudson.plugins.perforce.PerforceSCMHelper;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Base API object for interacting with workspaces.
@@ -38,6 +47,59 @@ import java.util.ArrayList;
  * @author Mike Wille
  */
 public class Workspaces extends AbstractPerforceTemplate {
+	/**Maximum number of client specs kept by the cache*/
+	private static final int MAX_CACHED_WORKSPACES = 500;
+
+	/**
+	 * Parsed client specs by connection and client name. Entries are valid as
+	 * long as the Update time of the client doesn't change.
+	 */
+	private static final Map<String, CachedWorkspace> WORKSPACE_CACHE = Collections.synchronizedMap(
+			new LinkedHashMap<String, CachedWorkspace>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CachedWorkspace> eldest) {
+					return size() > MAX_CACHED_WORKSPACES;
+				}
+			});
+
+	private static final class CachedWorkspace {
+		final String update;
+		final Workspace workspace;
+
+		CachedWorkspace(String update, Workspace workspace) {
+			this.update = update;
+			this.workspace = workspace;
+		}
+	}
+
+	/**Placeholder for the client name in cached stream views*/
+	private static final String CLIENT_PLACEHOLDER = "\u0000client\u0000";
+
+	/**
+	 * Client views derived from streams by connection and stream path. Entries
+	 * are valid as long as the Update times of the stream, all of its
+	 * parents and the streams they import from don't change. They are
+	 * checked with a single <tt>p4 -G streams</tt> for all of these streams.
+	 */
+	private static final Map<String, CachedStreamView> STREAM_VIEW_CACHE = Collections.synchronizedMap(
+			new LinkedHashMap<String, CachedStreamView>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CachedStreamView> eldest) {
+					return size() > MAX_CACHED_WORKSPACES;
+				}
+			});
+
+	private static final class CachedStreamView {
+		/**Update times by stream path*/
+		final Map<String, String> updates;
+		final List<String> views;
+
+		CachedStreamView(Map<String, String> updates, List<String> views) {
+			this.updates = updates;
+			this.views = views;
+		}
+	}
+
 	public Workspaces(Depot depot) {
 		super(depot);
 	}
@@ -55,10 +117,22 @@ public class Workspaces extends AbstractPerforceTemplate {
 		WorkspaceBuilder builder = new WorkspaceBuilder();
 		Workspace workspace;
 		if (stream_name != null && !stream_name.equals("")) {
-		    workspace = builder.build(getPerforceResponse(builder.getBuildCmd(getP4Exe(), ws_name, stream_name)));
+		    workspace = getStreamWorkspace(ws_name, stream_name);
 		}
 		else {
+		    String key = getCacheKey(ws_name);
+		    String update = getWorkspaceUpdate(ws_name);
+		    CachedWorkspace cached = WORKSPACE_CACHE.get(key);
+		    if (update != null && cached != null && update.equals(cached.update)) {
+		        getLogger().debug("Using cached client spec of " + ws_name);
+		        return cached.workspace.copy();
+		    }
 		    workspace = builder.build(getPerforceResponse(builder.getBuildCmd(getP4Exe(), ws_name)));
+		    if (workspace != null && update != null && !workspace.isNew()) {
+		        WORKSPACE_CACHE.put(key, new CachedWorkspace(update, workspace.copy()));
+		    } else {
+		        WORKSPACE_CACHE.remove(key);
+		    }
 		}
 		if(workspace == null)
 			throw new PerforceException("Failed to retrieve workspace: " + ws_name);
@@ -66,6 +140,257 @@ public class Workspaces extends AbstractPerforceTemplate {
 		return workspace;
 	}
 
+	/**
+	 * Gets a client switched to the stream. The view of the client is
+	 * derived from the stream by the server once, and then taken from the
+	 * cache until the stream, one of its parents or a stream they import
+	 * from is modified.
+	 */
+	private Workspace getStreamWorkspace(String ws_name, String stream_name) throws PerforceException {
+		WorkspaceBuilder builder = new WorkspaceBuilder();
+		String key = getCacheKey(stream_name);
+		CachedStreamView cached = STREAM_VIEW_CACHE.get(key);
+		if (cached != null && isUnchanged(cached.updates, getStreams(cached.updates.keySet()))) {
+			Workspace workspace = getWorkspace(ws_name, "");
+			if (!workspace.isNew()) {
+				getLogger().debug("Using cached view of stream " + stream_name + " for " + ws_name);
+				workspace.setStream(stream_name);
+				workspace.clearViews();
+				for (String view : cached.views) {
+					workspace.addView(fromCachedView(view, ws_name));
+				}
+				workspace.clearDirty();
+				return workspace;
+			}
+		}
+		// Taken before the view, a modification in between only invalidates the entry
+		Map<String, String> updates = getStreamUpdates(stream_name);
+		Workspace workspace = builder.build(getPerforceResponse(builder.getBuildCmd(getP4Exe(), ws_name, stream_name)));
+		if (workspace != null && updates != null && !workspace.isNew()) {
+			List<String> views = new ArrayList<String>(workspace.getViews().size());
+			for (String view : workspace.getViews()) {
+				views.add(toCachedView(view, ws_name));
+			}
+			STREAM_VIEW_CACHE.put(key, new CachedStreamView(updates, views));
+		} else {
+			STREAM_VIEW_CACHE.remove(key);
+		}
+		return workspace;
+	}
+
+	/**
+	 * Replaces the client name on the client side of a view mapping with a
+	 * placeholder, so that the view can be shared by all clients of the stream.
+	 */
+	static String toCachedView(String view, String ws_name) {
+		String clientRoot = "//" + ws_name + "/";
+		// The client side is the last path of the mapping
+		int index = view.lastIndexOf(clientRoot);
+		if (index < 0) {
+			return view;
+		}
+		return view.substring(0, index + 2) + CLIENT_PLACEHOLDER + view.substring(index + clientRoot.length() - 1);
+	}
+
+	/**
+	 * Puts the client name back into a view mapping of the cache.
+	 */
+	static String fromCachedView(String view, String ws_name) {
+		return view.replace(CLIENT_PLACEHOLDER, ws_name);
+	}
+
+	/**
+	 * Gets the Update times of the stream, of all of its parents and of the
+	 * streams they import from, with a <tt>p4 -G stream -o</tt> for each of
+	 * them. Only the specs the view depends on are fetched, not the list of
+	 * all streams of the depot. The Update time of a stream changes with
+	 * every modification of its spec, including its parent and its paths.
+	 * 
+	 * @return Update times by stream path, null if a stream of the chain is
+	 *         unknown or the server cannot report it
+	 */
+	private Map<String, String> getStreamUpdates(String stream_name) {
+		Map<String, String> updates = new LinkedHashMap<String, String>();
+		Set<String> parents = new HashSet<String>();
+		String stream = stream_name;
+		try {
+			// Parents can't form a cycle, but don't trust the server blindly
+			while (stream != null && !stream.equals("none") && parents.add(stream)) {
+				Map<String, String> spec = getStreamSpec(stream);
+				if (spec.get("Update") == null) {
+					return null;
+				}
+				updates.put(stream, spec.get("Update"));
+				for (String imported : getImportedStreams(spec)) {
+					if (updates.containsKey(imported)) {
+						continue;
+					}
+					Map<String, String> importedSpec;
+					try {
+						importedSpec = getStreamSpec(imported);
+					} catch (PerforceException e) {
+						// Import from a local depot, its files are mapped as they are
+						continue;
+					}
+					if (importedSpec.get("Update") != null) {
+						updates.put(imported, importedSpec.get("Update"));
+					}
+				}
+				stream = spec.get("Parent");
+			}
+			return updates;
+		} catch (PerforceException e) {
+			getLogger().debug("Cannot get update time of stream " + stream_name + ": " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Lists the given streams with a single <tt>p4 -G streams</tt>.
+	 * 
+	 * @return The records of the streams, null if the server cannot list them
+	 */
+	private List<Map<String, String>> getStreams(Collection<String> streams) {
+		List<String> cmd = new ArrayList<String>(streams.size() + 3);
+		cmd.add(getP4Exe());
+		cmd.add("-G");
+		cmd.add("streams");
+		cmd.addAll(streams);
+		try {
+			byte[] bytes = getRawPerforceResponseBytes(cmd.toArray(new String[cmd.size()]));
+			return PerforceSCMHelper.parseDictionaries(bytes);
+		} catch (PerforceException e) {
+			getLogger().debug("Cannot list streams " + streams + ": " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Checks that every stream is listed with the same Update time as before.
+	 * 
+	 * @param updates Update times by stream path
+	 * @param streams Records of <tt>p4 -G streams</tt>, may be null
+	 */
+	static boolean isUnchanged(Map<String, String> updates, List<Map<String, String>> streams) {
+		if (streams == null) {
+			return false;
+		}
+		Set<String> unchanged = new HashSet<String>();
+		for (Map<String, String> stream : streams) {
+			String path = stream.get("Stream");
+			String update = stream.get("Update");
+			if (path != null && update != null && update.equals(updates.get(path))) {
+				unchanged.add(path);
+			}
+		}
+		return unchanged.size() == updates.size();
+	}
+
+	private Map<String, String> getStreamSpec(String stream) throws PerforceException {
+		byte[] bytes = getRawPerforceResponseBytes(new String[] { getP4Exe(), "-G", "stream", "-o", stream });
+		List<Map<String, String>> specs = PerforceSCMHelper.parseDictionaries(bytes);
+		if (specs.isEmpty()) {
+			throw new PerforceException("No spec of stream " + stream);
+		}
+		return specs.get(0);
+	}
+
+	/**
+	 * Gets the streams, which the import paths of a stream spec refer to.
+	 * Imports pinned to a change never change and are skipped. The stream
+	 * is taken from the first two levels of the depot path, so imports from
+	 * stream depots with a deeper StreamDepth and from local depots yield
+	 * names, which don't exist as streams.
+	 * 
+	 * @param spec Stream spec as reported by <tt>p4 -G stream -o</tt>
+	 */
+	static List<String> getImportedStreams(Map<String, String> spec) {
+		List<String> streams = new ArrayList<String>();
+		for (int i = 0; spec.containsKey("Paths" + i); i++) {
+			List<String> tokens = splitPath(spec.get("Paths" + i));
+			if (tokens.size() < 3 || !tokens.get(0).startsWith("import")) {
+				continue;
+			}
+			String depotPath = tokens.get(2);
+			if (!depotPath.startsWith("//") || depotPath.indexOf('@') >= 0) {
+				continue;
+			}
+			int depotEnd = depotPath.indexOf('/', 2);
+			int streamEnd = depotEnd < 0 ? -1 : depotPath.indexOf('/', depotEnd + 1);
+			if (streamEnd < 0) {
+				continue;
+			}
+			String stream = depotPath.substring(0, streamEnd);
+			if (stream.indexOf("...") < 0 && stream.indexOf('*') < 0) {
+				streams.add(stream);
+			}
+		}
+		return streams;
+	}
+
+	/**
+	 * Splits a line of the Paths field, paths with spaces are quoted.
+	 */
+	private static List<String> splitPath(String line) {
+		List<String> tokens = new ArrayList<String>(3);
+		StringBuilder token = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (!quoted && Character.isWhitespace(c)) {
+				if (token.length() > 0) {
+					tokens.add(token.toString());
+					token.setLength(0);
+				}
+			} else {
+				token.append(c);
+			}
+		}
+		if (token.length() > 0) {
+			tokens.add(token.toString());
+		}
+		return tokens;
+	}
+
+	private String getCacheKey(String name) {
+		Depot depot = getDepot();
+		return getCacheKey(depot.getPort(), depot.getUser(), depot.getCharset(), depot.getCommandCharset(), name);
+	}
+
+	/**
+	 * Builds the key of a cached client or stream. The server sends specs
+	 * translated to the charset of the connection and shows fields like
+	 * Options or View depending on the permissions of the user, so specs
+	 * are only shared by connections with the same user and charsets.
+	 */
+	static String getCacheKey(String port, String user, String charset, String commandCharset, String name) {
+		return port + "\n" + user + "\n" + charset + "\n" + commandCharset + "\n" + name;
+	}
+
+	/**
+	 * Gets the time of the last modification of the client spec with
+	 * <tt>p4 -G clients -e name -m1</tt>.
+	 * 
+	 * @return Update time in seconds, null if the client doesn't exist or
+	 *         the server doesn't report it
+	 */
+	private String getWorkspaceUpdate(String ws_name) {
+		try {
+			byte[] bytes = getRawPerforceResponseBytes(new String[] { getP4Exe(), "-G", "clients", "-e", ws_name, "-m1" });
+			for (Map<String, String> map : PerforceSCMHelper.parseDictionaries(bytes)) {
+				if (ws_name.equals(map.get("client"))) {
+					return map.get("Update");
+				}
+			}
+		} catch (PerforceException e) {
+			// e.g. servers, which don't support -e, just skip the cache
+			getLogger().debug("Cannot get update time of client " + ws_name + ": " + e.getMessage());
+		}
+		return null;
+	}
+
 	/**
 	 * Saves changes to an existing workspace, or creates a new one.
 	 * 
@@ -74,6 +399,7 @@ public class Workspaces extends AbstractPerforceTemplate {
 	 */
 	public void saveWorkspace(Workspace workspace) throws PerforceException {
 		WorkspaceBuilder builder = new WorkspaceBuilder();
+		WORKSPACE_CACHE.remove(getCacheKey(workspace.getName()));
 		saveToPerforce(workspace, builder);
 	}
 
@@ -122,6 +448,20 @@ public class Workspaces extends AbstractPerforceTemplate {
 	 * @throws PerforceException
 	 */
 	public StringBuilder syncTo(String path, boolean forceSync, boolean populateOnly) throws PerforceException {
+		return syncTo(path, forceSync, populateOnly, null);
+	}
+
+	/**
+	 * Same as {@link #syncTo(String, boolean, boolean)}, but passes every line
+	 * of the output to the given listener, as only the first lines are
+	 * returned.
+	 *
+	 * @param listener
+	 * 				Receives every line of the output, may be null
+	 * @since 1.3.37
+	 */
+	public StringBuilder syncTo(String path, boolean forceSync, boolean populateOnly,
+			final ResponseFilter listener) throws PerforceException {
                 //Error handling and output filtering
                 final StringBuilder errors = new StringBuilder();
                 ResponseFilter filter = new ResponseFilter(){
@@ -129,6 +469,9 @@ public class Workspaces extends AbstractPerforceTemplate {
                     @Override
                     public boolean accept(String line) {
                         count++;
+                        if(listener != null){
+                            listener.accept(line);
+                        }
                         //detect errors during syncing
                         //ignore lines containing "files(s) up-to-date", because
                         //perforce classifies that as an 'error' for some strange reason
@@ -177,6 +520,157 @@ public class Workspaces extends AbstractPerforceTemplate {
             return response;
         }
 
+        /**
+         * Marks the given files as synced without transferring them ("sync -k").
+         * The file list is passed on standard input, so there is no limit on its size.
+         *
+         * @param paths
+         *              Depot or local paths, optionally with revision specifiers
+         * @return
+         *              A StringBuilder that contains the output of the p4 execution.
+         * @throws PerforceException
+         */
+        public StringBuilder flushFiles(Collection<String> paths) throws PerforceException {
+            return syncFiles(paths, "-k");
+        }
+
+        /**
+         * Transfers the given files regardless of the have list ("sync -f").
+         * The file list is passed on standard input, so there is no limit on its size.
+         *
+         * @param paths
+         *              Depot or local paths, optionally with revision specifiers
+         * @return
+         *              A StringBuilder that contains the output of the p4 execution.
+         * @throws PerforceException
+         */
+        public StringBuilder forceSyncFiles(Collection<String> paths) throws PerforceException {
+            return syncFiles(paths, "-f");
+        }
+
+        private StringBuilder syncFiles(Collection<String> paths, String option) throws PerforceException {
+            final StringBuilder errors = new StringBuilder();
+            StringBuilder response = getPerforceResponse(new String[] { getP4Exe(), "-s", "-x", "-", "sync", option },
+                    new ResponseFilter() {
+                        private int count = 0;
+                        @Override
+                        public boolean accept(String line) {
+                            if(line.startsWith("error:") && !line.contains("file(s) up-to-date.")){
+                                errors.append(line);
+                                errors.append("\n");
+                            }
+                            // keep only a few lines, the output is as long as the file list
+                            return ++count < 50 || line.contains("Request too large");
+                        }
+                    }, paths);
+            if(hitMax(response)){
+                throw new PerforceException("Hit perforce server limit while syncing files: " + response);
+            }
+            if(errors.length()>0){
+                throw new PerforceException("Errors encountered while syncing files: " + errors.toString());
+            }
+            return response;
+        }
+
+        /**
+         * Retrieves the revision, type, time, digest and size of every file matched by the
+         * path ("fstat -Ol"). The have revision of the current client is included.
+         *
+         * @param path
+         *              The depot or client path, revision specifiers are allowed
+         * @return
+         *              List of file records, deleted revisions included
+         * @throws PerforceException
+         */
+        public List<FileStat> getFileStats(String path) throws PerforceException {
+            byte[] bytes = getRawPerforceResponseBytes(new String[] { getP4Exe(), "-G", "fstat", "-Ol",
+                    "-T", "depotFile,clientFile,headRev,haveRev,headAction,headType,headModTime,digest,fileSize",
+                    path.replaceAll("\"", "") });
+            List<Map<String, String>> maps = PerforceSCMHelper.parseDictionaries(bytes,
+                    "no such file(s)", "file(s) not in client view");
+            List<FileStat> result = new ArrayList<FileStat>(maps.size());
+            for (Map<String, String> map : maps) {
+                FileStat stat = FileStat.fromMap(map);
+                if (stat != null) {
+                    result.add(stat);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Lists the clients owned by the user ("clients -u").
+         *
+         * @param owner
+         *              The owner of the clients
+         * @return
+         *              Workspaces with name, owner, host, root, description and the
+         *              Update and Access times in seconds, but without views
+         * @throws PerforceException
+         */
+        public List<Workspace> getWorkspacesOwnedBy(String owner) throws PerforceException {
+            byte[] bytes = getRawPerforceResponseBytes(new String[] { getP4Exe(), "-G", "clients", "-u", owner });
+            List<Map<String, String>> maps = PerforceSCMHelper.parseDictionaries(bytes);
+            List<Workspace> result = new ArrayList<Workspace>(maps.size());
+            for (Map<String, String> map : maps) {
+                if (map.get("client") == null) {
+                    continue;
+                }
+                Workspace workspace = new Workspace();
+                workspace.setName(map.get("client"));
+                workspace.setOwner(getValue(map, "Owner"));
+                workspace.setHost(getValue(map, "Host"));
+                workspace.setRoot(getValue(map, "Root"));
+                workspace.setDescription(getValue(map, "Description"));
+                workspace.setUpdate(getValue(map, "Update"));
+                workspace.setAccess(getValue(map, "Access"));
+                workspace.setOptions(getValue(map, "Options"));
+                workspace.clearDirty();
+                result.add(workspace);
+            }
+            return result;
+        }
+
+        private static String getValue(Map<String, String> map, String key) {
+            String value = map.get(key);
+            return value != null ? value : "";
+        }
+
+        /**
+         * Deletes the client ("client -d"). The have list of the client should be
+         * flushed before, otherwise the server has to remove it as part of the deletion.
+         *
+         * @param ws_name
+         *              The name of the client
+         * @throws PerforceException
+         *              The client cannot be deleted, e.g. because it has opened files
+         */
+        public void deleteWorkspace(String ws_name) throws PerforceException {
+            deleteWorkspace(ws_name, false);
+        }
+
+        /**
+         * Deletes the client ("client -d"), with force ("client -d -f") even if
+         * it is locked or owned by another user. Forcing needs admin access.
+         *
+         * @param ws_name
+         *              The name of the client
+         * @param force
+         *              True to pass -f
+         * @throws PerforceException
+         *              The client cannot be deleted, e.g. because it has opened files
+         */
+        public void deleteWorkspace(String ws_name, boolean force) throws PerforceException {
+            WORKSPACE_CACHE.remove(getCacheKey(ws_name));
+            String[] cmd = force
+                    ? new String[] { getP4Exe(), "-s", "client", "-d", "-f", ws_name }
+                    : new String[] { getP4Exe(), "-s", "client", "-d", ws_name };
+            StringBuilder response = getPerforceResponse(cmd);
+            if (response.indexOf("error:") >= 0) {
+                throw new PerforceException("Failed to delete workspace " + ws_name + ": " + response);
+            }
+        }
+
 	/**
      * Test whether there are any changes pending for the current client (P4CLIENT env var).
      * 
@@ -0,0 +1,139 @@
+package hudson.plugins.perforce;
+
+import com.tek42.perforce.Depot;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.CheckForNull;
+
+/**
+ * Connection settings of a job on a node, as computed by
+ * {@link PerforceSCM#getDepot}: substituted client, user and port, the
+ * decrypted password, the p4 executable of the node and the system
+ * variables of the current computer.
+ * <p>
+ * Computing them takes macro substitution, password decryption, tool
+ * lookup and remote calls to the computer. Polling and validation create a
+ * depot for every call, so the settings are kept per job configuration,
+ * i.e. per {@link PerforceSCM} instance, and per job and node. A new
+ * configuration of the job gets a new instance. Profiles are dropped after
+ * a few minutes, when computers come and go or nodes are reconfigured, and
+ * when the global configuration is saved.
+ *
+ * @since 1.3.37
+ */
+final class ConnectionProfile {
+
+    static final long MAX_AGE_MILLIS = 5 * 60 * 1000;
+
+    /**Profiles by job configuration, then by job and nodes*/
+    private static final Map<PerforceSCM, ConcurrentMap<String, ConnectionProfile>> PROFILES =
+            Collections.synchronizedMap(new WeakHashMap<PerforceSCM, ConcurrentMap<String, ConnectionProfile>>());
+
+    final String client;
+    final String user;
+    final String port;
+    final String password;
+    final String executable;
+    final String systemDrive;
+    final String systemRoot;
+    final String charset;
+    final String commandCharset;
+    final long created = System.currentTimeMillis();
+
+    ConnectionProfile(String client, String user, String port, String password, String executable,
+            String systemDrive, String systemRoot, String charset, String commandCharset) {
+        this.client = client;
+        this.user = user;
+        this.port = port;
+        this.password = password;
+        this.executable = executable;
+        this.systemDrive = systemDrive;
+        this.systemRoot = systemRoot;
+        this.charset = charset;
+        this.commandCharset = commandCharset;
+    }
+
+    /**
+     * Sets up a new depot with the settings.
+     */
+    void applyTo(Depot depot) {
+        depot.setClient(client);
+        depot.setUser(user);
+        depot.setPort(port);
+        depot.setPassword(password);
+        depot.setExecutable(executable);
+        depot.setSystemDrive(systemDrive);
+        depot.setSystemRoot(systemRoot);
+        depot.setCharset(charset);
+        depot.setCommandCharset(commandCharset);
+    }
+
+    /**
+     * Builds the key of a profile of the job configuration.
+     * @param jobName Full name of the job, may be null
+     * @param nodeName Name of the node, null if no node is given
+     * @param computer Computer of the current thread, which provides the system variables
+     */
+    static String getKey(@CheckForNull String jobName, @CheckForNull String nodeName, @CheckForNull Computer computer) {
+        return jobName + "\n" + nodeName + "\n" + (computer != null ? computer.getName() : null);
+    }
+
+    @CheckForNull
+    static ConnectionProfile get(PerforceSCM scm, String key) {
+        ConcurrentMap<String, ConnectionProfile> profiles = PROFILES.get(scm);
+        ConnectionProfile profile = profiles != null ? profiles.get(key) : null;
+        if (profile != null && profile.isExpired(System.currentTimeMillis())) {
+            profiles.remove(key, profile);
+            return null;
+        }
+        return profile;
+    }
+
+    boolean isExpired(long now) {
+        return now - created > MAX_AGE_MILLIS;
+    }
+
+    static void put(PerforceSCM scm, String key, ConnectionProfile profile) {
+        ConcurrentMap<String, ConnectionProfile> profiles;
+        synchronized (PROFILES) {
+            profiles = PROFILES.get(scm);
+            if (profiles == null) {
+                profiles = new ConcurrentHashMap<String, ConnectionProfile>();
+                PROFILES.put(scm, profiles);
+            }
+        }
+        profiles.put(key, profile);
+    }
+
+    static void clear() {
+        PROFILES.clear();
+    }
+
+    /**
+     * Drops all profiles when computers or nodes change.
+     */
+    @Extension
+    public static class Invalidator extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            clear();
+        }
+
+        @Override
+        public void onOffline(Computer c) {
+            clear();
+        }
+
+        @Override
+        public void onConfigurationChange() {
+            clear();
+        }
+    }
+}
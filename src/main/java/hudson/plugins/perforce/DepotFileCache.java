@@ -0,0 +1,383 @@
+package hudson.plugins.perforce;
+
+import com.tek42.perforce.Depot;
+import com.tek42.perforce.PerforceException;
+import com.tek42.perforce.model.FileStat;
+import com.tek42.perforce.model.Workspace;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Node-local, content addressed store of depot file revisions.
+ * <p>
+ * Workspaces on the same node often sync overlapping parts of the depot.
+ * The cache keeps the content of synced revisions under their server digest
+ * (<tt>fstat -Ol</tt>), so that other workspaces can be populated by a local
+ * copy followed by <tt>sync -k</tt>. Only revisions missing from the cache
+ * are transferred from the server. The cache is trimmed to the configured
+ * quota by evicting the least recently used entries.
+ *
+ * @since 1.3.37
+ */
+public class DepotFileCache {
+
+    private static final Logger LOGGER = Logger.getLogger(DepotFileCache.class.getName());
+
+    private final FilePath cacheRoot;
+    private final long quotaBytes;
+    private final String lineEnd;
+    private final boolean allWrite;
+    private final boolean modTime;
+
+    DepotFileCache(FilePath cacheRoot, long quotaBytes, Workspace workspace) {
+        this.cacheRoot = cacheRoot;
+        this.quotaBytes = quotaBytes;
+        this.lineEnd = workspace.getLineEnd();
+        this.allWrite = hasOption(workspace.getOptions(), "allwrite");
+        this.modTime = hasOption(workspace.getOptions(), "modtime");
+    }
+
+    private static boolean hasOption(String options, String option) {
+        if (options != null) {
+            for (String token : options.trim().split("\\s+")) {
+                if (token.equals(option)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the cache of the node according to the global configuration.
+     * @return null if the cache is disabled or the node is offline
+     */
+    static @CheckForNull DepotFileCache forNode(@CheckForNull Node node, Workspace workspace) {
+        PerforceSCM.PerforceSCMDescriptor descriptor = PerforceSCM.getInstance();
+        if (node == null || !descriptor.isDepotCacheEnabled()) {
+            return null;
+        }
+        FilePath rootPath = node.getRootPath();
+        if (rootPath == null) {
+            return null;
+        }
+        return new DepotFileCache(rootPath.child(descriptor.getDepotCacheDir()),
+                descriptor.getDepotCacheQuota() * 1024L * 1024L, workspace);
+    }
+
+    public FilePath getCacheRoot() {
+        return cacheRoot;
+    }
+
+    /**
+     * Syncs the workspace to the given path, taking file revisions from the
+     * cache when possible.
+     * @param depot Depot of the workspace
+     * @param syncPath Path to sync, revision specifiers are allowed
+     * @param log Build log
+     * @param recorder Receives the output of the sync, may be null
+     */
+    public void syncTo(Depot depot, String syncPath, PrintStream log, SyncRecorder recorder) throws PerforceException, IOException, InterruptedException {
+        List<FileStat> wanted = new ArrayList<FileStat>();
+        for (FileStat stat : depot.getWorkspaces().getFileStats(syncPath)) {
+            if (!stat.isDeleted() && stat.getHaveRev() != stat.getHeadRev() && isCacheable(stat)) {
+                wanted.add(stat);
+            }
+        }
+
+        List<FileStat> missing = wanted;
+        if (!wanted.isEmpty()) {
+            Set<String> populated;
+            try {
+                populated = cacheRoot.act(new PopulateCallable(wanted, lineEnd, allWrite, modTime));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot populate workspace from the depot cache", e);
+                log.println("Depot cache is not available: " + e.getMessage());
+                populated = new HashSet<String>();
+            }
+            if (!populated.isEmpty()) {
+                List<String> flushPaths = new ArrayList<String>(populated.size());
+                missing = new ArrayList<FileStat>(wanted.size() - populated.size());
+                for (FileStat stat : wanted) {
+                    if (populated.contains(stat.getDepotFile())) {
+                        flushPaths.add(stat.getDepotFileAtHead());
+                    } else {
+                        missing.add(stat);
+                    }
+                }
+                depot.getWorkspaces().flushFiles(flushPaths);
+            }
+            log.println("Depot cache: " + populated.size() + " of " + wanted.size() + " file revisions taken from " + cacheRoot.getRemote());
+        }
+
+        depot.getWorkspaces().syncTo(syncPath, false, false, recorder);
+
+        if (!missing.isEmpty()) {
+            try {
+                cacheRoot.act(new StoreCallable(missing, lineEnd, quotaBytes));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot store synced files in the depot cache", e);
+            }
+        }
+    }
+
+    /**
+     * Checks if the workspace content of the revision depends only on its
+     * digest and the line ending setting of the client.
+     */
+    static boolean isCacheable(FileStat stat) {
+        String type = stat.getHeadType();
+        if (stat.getDigest() == null || stat.getClientFile() == null || type == null) {
+            return false;
+        }
+        String base = getBaseType(type);
+        // keyword expansion, symlinks and charset conversion produce content not covered by the digest
+        return !getTypeModifiers(type).contains("k")
+                && (base.endsWith("text") || base.endsWith("binary"))
+                && !base.startsWith("k");
+    }
+
+    static boolean isExecutable(FileStat stat) {
+        String type = stat.getHeadType();
+        String base = getBaseType(type);
+        return getTypeModifiers(type).contains("x") || base.startsWith("x") || base.equals("cxtext") || base.equals("uxbinary");
+    }
+
+    static boolean isWritable(FileStat stat) {
+        return getTypeModifiers(stat.getHeadType()).contains("w");
+    }
+
+    private static String getBaseType(String type) {
+        int plus = type.indexOf('+');
+        return plus < 0 ? type : type.substring(0, plus);
+    }
+
+    private static String getTypeModifiers(String type) {
+        int plus = type.indexOf('+');
+        return plus < 0 ? "" : type.substring(plus + 1);
+    }
+
+    /**
+     * Gets the location of the revision in the cache. Text files are keyed by
+     * the line ending in use, because their workspace content differs from
+     * the normalized depot content.
+     */
+    static File getCacheFile(File root, FileStat stat, String lineEnd) {
+        String digest = stat.getDigest().toUpperCase();
+        StringBuilder name = new StringBuilder(digest);
+        name.append('-').append(stat.getFileSize());
+        if (stat.isText()) {
+            if (lineEnd == null || lineEnd.length() == 0 || lineEnd.equalsIgnoreCase("local")) {
+                name.append(File.separatorChar == '\\' ? ".crlf" : ".lf");
+            } else {
+                name.append('.').append(lineEnd.toLowerCase());
+            }
+        }
+        return new File(new File(root, digest.substring(0, 2)), name.toString());
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                IOUtils.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies cached revisions into the workspace on the node.
+     * Returns depot paths of the files, which have been populated.
+     */
+    private static class PopulateCallable implements FileCallable<Set<String>> {
+        private static final long serialVersionUID = 1L;
+        private final List<FileStat> stats;
+        private final String lineEnd;
+        private final boolean allWrite;
+        private final boolean modTime;
+
+        PopulateCallable(List<FileStat> stats, String lineEnd, boolean allWrite, boolean modTime) {
+            this.stats = stats;
+            this.lineEnd = lineEnd;
+            this.allWrite = allWrite;
+            this.modTime = modTime;
+        }
+
+        public Set<String> invoke(File root, VirtualChannel channel) throws IOException {
+            Set<String> populated = new HashSet<String>();
+            if (!root.isDirectory()) {
+                return populated;
+            }
+            long now = System.currentTimeMillis();
+            for (FileStat stat : stats) {
+                File cached = getCacheFile(root, stat, lineEnd);
+                if (!cached.isFile() || !stat.isText() && cached.length() != stat.getFileSize()) {
+                    continue;
+                }
+                File target = new File(stat.getClientFile());
+                try {
+                    if (target.exists()) {
+                        if (!target.isFile() || !target.delete()) {
+                            continue;
+                        }
+                    } else if (target.getParentFile() != null) {
+                        target.getParentFile().mkdirs();
+                    }
+                    copy(cached, target);
+                } catch (IOException e) {
+                    // The entry may have been evicted meanwhile, let the server send the file
+                    LOGGER.log(Level.FINE, "Cannot copy " + cached + " to " + target, e);
+                    target.delete();
+                    continue;
+                }
+                if (modTime && stat.getHeadModTime() > 0) {
+                    // Like sync does for clients with the modtime option
+                    target.setLastModified(stat.getHeadModTime() * 1000);
+                }
+                if (isExecutable(stat)) {
+                    target.setExecutable(true, false);
+                }
+                if (!allWrite && !isWritable(stat)) {
+                    target.setReadOnly();
+                }
+                // Keeps the entry recently used for the eviction
+                cached.setLastModified(now);
+                populated.add(stat.getDepotFile());
+            }
+            return populated;
+        }
+    }
+
+    /**
+     * Copies freshly synced revisions from the workspace into the cache and
+     * trims the cache to the quota afterwards. A copy is published only if
+     * its digest matches the server digest, so files which failed to sync or
+     * have been modified meanwhile are never shared.
+     */
+    private static class StoreCallable implements FileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+        private final List<FileStat> stats;
+        private final String lineEnd;
+        private final long quotaBytes;
+
+        StoreCallable(List<FileStat> stats, String lineEnd, long quotaBytes) {
+            this.stats = stats;
+            this.lineEnd = lineEnd;
+            this.quotaBytes = quotaBytes;
+        }
+
+        public Void invoke(File root, VirtualChannel channel) throws IOException {
+            long now = System.currentTimeMillis();
+            for (FileStat stat : stats) {
+                File source = new File(stat.getClientFile());
+                File cached = getCacheFile(root, stat, lineEnd);
+                if (!source.isFile()) {
+                    continue;
+                }
+                if (cached.isFile()) {
+                    cached.setLastModified(now);
+                    continue;
+                }
+                if (!stat.isText() && source.length() != stat.getFileSize()) {
+                    continue;
+                }
+                File dir = cached.getParentFile();
+                dir.mkdirs();
+                // Concurrent builds may store the same revision, so publish it atomically
+                File tmp = File.createTempFile("store", ".tmp", dir);
+                try {
+                    copy(source, tmp);
+                    // Verify the copy, the workspace file may change at any time
+                    if (!matchesDigest(tmp, stat, lineEnd) || !tmp.renameTo(cached)) {
+                        tmp.delete();
+                    }
+                } catch (IOException e) {
+                    tmp.delete();
+                    LOGGER.log(Level.FINE, "Cannot store " + source + " in the depot cache", e);
+                }
+            }
+            evict(root, quotaBytes);
+            return null;
+        }
+    }
+
+    /**
+     * Checks if the content of the file is the revision as reported by the
+     * server. Text is normalized according to the line ending of the client
+     * before it is hashed.
+     */
+    static boolean matchesDigest(File file, FileStat stat, String lineEnd) throws IOException {
+        return WorkspaceVerifier.getServerDigest(file, stat.isText(), lineEnd).equalsIgnoreCase(stat.getDigest());
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits into the quota.
+     */
+    static void evict(File root, long quotaBytes) {
+        List<File> entries = new ArrayList<File>();
+        long total = 0;
+        File[] dirs = root.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                entries.add(file);
+                total += file.length();
+            }
+        }
+        if (total <= quotaBytes) {
+            return;
+        }
+
+        File[] sorted = entries.toArray(new File[entries.size()]);
+        final long[] lastModified = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            lastModified[i] = sorted[i].lastModified();
+        }
+        Integer[] order = new Integer[sorted.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return lastModified[a] < lastModified[b] ? -1 : (lastModified[a] == lastModified[b] ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < order.length && total > quotaBytes; i++) {
+            File file = sorted[order[i]];
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package hudson.plugins.perforce;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Per-job index of the changes synced by builds.
+ * <p>
+ * For every build with a {@link PerforceTagAction} the build number, the
+ * change number and the label are recorded in <tt>perforce-builds.bin</tt>
+ * in the directory of the job, so that the last synced change can be found
+ * by a binary search instead of loading previous builds one by one.
+ * <p>
+ * The index only knows builds, which have been recorded since it was
+ * created. Lookups, which reach below that point, walk the older builds
+ * once and record the result.
+ * <p>
+ * Loaded indexes are kept in memory as long as the file isn't modified by
+ * anybody else, and dropped when their job is deleted or renamed.
+ *
+ * @since 1.3.37
+ */
+public final class PerforceBuildIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(PerforceBuildIndex.class.getName());
+
+    private static final int MAGIC = 0x50344249;
+    private static final int VERSION = 1;
+    private static final String FILE_NAME = "perforce-builds.bin";
+
+    private static final Map<File, PerforceBuildIndex> INDEXES = new HashMap<File, PerforceBuildIndex>();
+
+    /**
+     * Build recorded in the index.
+     */
+    public static final class Entry {
+        private final int buildNumber;
+        private final int changeNumber;
+        private final @CheckForNull String label;
+
+        Entry(int buildNumber, int changeNumber, @CheckForNull String label) {
+            this.buildNumber = buildNumber;
+            this.changeNumber = changeNumber;
+            this.label = label;
+        }
+
+        public int getBuildNumber() {
+            return buildNumber;
+        }
+
+        /**
+         * @return Synced change, for builds of a label the newest change in the label
+         */
+        public int getChangeNumber() {
+            return changeNumber;
+        }
+
+        public @CheckForNull String getLabel() {
+            return label;
+        }
+    }
+
+    private final File file;
+    /**All builds starting with this number are known*/
+    private int coveredFrom;
+    private int size;
+    private int[] builds = new int[16];
+    private int[] changes = new int[16];
+    private String[] labels = new String[16];
+    /**Modification time of the file when it was read or written, 0 if there is no file*/
+    private long lastModified;
+
+    /**Positions of the entries ordered by change number, built on demand*/
+    private transient int[] changeOrder;
+    /**Minimum build number of the entries from a position of changeOrder on*/
+    private transient int[] minBuildFrom;
+
+    private PerforceBuildIndex(File file, int coveredFrom) {
+        this.file = file;
+        this.coveredFrom = coveredFrom;
+    }
+
+    /**
+     * Gets the index of the job.
+     */
+    public static @Nonnull PerforceBuildIndex forJob(@Nonnull Job<?, ?> job) {
+        return get(new File(job.getRootDir(), FILE_NAME), job.getNextBuildNumber());
+    }
+
+    /**
+     * Gets the index stored in the file.
+     * @param nextBuildNumber Number of the next build of the job
+     */
+    static @Nonnull PerforceBuildIndex get(@Nonnull File file, int nextBuildNumber) {
+        synchronized (INDEXES) {
+            PerforceBuildIndex index = INDEXES.get(file);
+            if (index == null || !index.isCurrent()) {
+                // e.g. a new job with the name of a deleted one
+                index = load(file, nextBuildNumber);
+                INDEXES.put(file, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Drops the indexes of the jobs in the directory and of jobs, which don't
+     * exist anymore.
+     */
+    static void evict(@Nonnull File dir) {
+        String prefix = dir.getAbsolutePath() + File.separator;
+        synchronized (INDEXES) {
+            for (Iterator<File> it = INDEXES.keySet().iterator(); it.hasNext();) {
+                File file = it.next();
+                if (file.getAbsolutePath().startsWith(prefix) || !file.getParentFile().isDirectory()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private synchronized boolean isCurrent() {
+        return file.lastModified() == lastModified;
+    }
+
+    private static PerforceBuildIndex load(File file, int nextBuildNumber) {
+        if (file.isFile()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                        PerforceBuildIndex index = new PerforceBuildIndex(file, in.readInt());
+                        int count = in.readInt();
+                        for (int i = 0; i < count; i++) {
+                            int build = in.readInt();
+                            int change = in.readInt();
+                            String label = in.readBoolean() ? in.readUTF() : null;
+                            index.put(build, change, label);
+                        }
+                        index.lastModified = file.lastModified();
+                        return index;
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot read build index " + file + ", rebuilding it", e);
+            }
+        }
+        // Nothing is known about existing builds
+        return new PerforceBuildIndex(file, nextBuildNumber);
+    }
+
+    private void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(coveredFrom);
+                out.writeInt(size);
+                for (int i = 0; i < size; i++) {
+                    out.writeInt(builds[i]);
+                    out.writeInt(changes[i]);
+                    out.writeBoolean(labels[i] != null);
+                    if (labels[i] != null) {
+                        out.writeUTF(labels[i]);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+            lastModified = file.lastModified();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot write build index " + file, e);
+            tmp.delete();
+        }
+    }
+
+    private void put(int build, int change, @CheckForNull String label) {
+        int pos = Arrays.binarySearch(builds, 0, size, build);
+        if (pos < 0) {
+            pos = -pos - 1;
+            if (size == builds.length) {
+                builds = Arrays.copyOf(builds, size * 2);
+                changes = Arrays.copyOf(changes, size * 2);
+                labels = Arrays.copyOf(labels, size * 2);
+            }
+            System.arraycopy(builds, pos, builds, pos + 1, size - pos);
+            System.arraycopy(changes, pos, changes, pos + 1, size - pos);
+            System.arraycopy(labels, pos, labels, pos + 1, size - pos);
+            size++;
+        }
+        builds[pos] = build;
+        changes[pos] = change;
+        labels[pos] = label;
+        changeOrder = null;
+    }
+
+    private void delete(int build) {
+        int pos = Arrays.binarySearch(builds, 0, size, build);
+        if (pos >= 0) {
+            System.arraycopy(builds, pos + 1, builds, pos, size - pos - 1);
+            System.arraycopy(changes, pos + 1, changes, pos, size - pos - 1);
+            System.arraycopy(labels, pos + 1, labels, pos, size - pos - 1);
+            size--;
+            labels[size] = null;
+            changeOrder = null;
+        }
+    }
+
+    /**
+     * Records the change synced by the build.
+     */
+    public void record(@Nonnull Run<?, ?> build, @Nonnull PerforceTagAction action) {
+        record(build.getNumber(), action.getChangeNumber(), getLabel(action));
+    }
+
+    synchronized void record(int build, int change, @CheckForNull String label) {
+        int pos = Arrays.binarySearch(builds, 0, size, build);
+        if (pos >= 0 && changes[pos] == change
+                && (label == null ? labels[pos] == null : label.equals(labels[pos]))) {
+            return;
+        }
+        put(build, change, label);
+        save();
+    }
+
+    /**
+     * Removes a deleted build.
+     */
+    public void remove(@Nonnull Run<?, ?> build) {
+        remove(build.getNumber());
+    }
+
+    synchronized void remove(int build) {
+        int size = this.size;
+        delete(build);
+        if (size != this.size) {
+            save();
+        }
+    }
+
+    /**
+     * Checks if the index knows the most recent recorded build up to the
+     * given one.
+     */
+    synchronized boolean isCovered(int number) {
+        int pos = findAtOrBefore(number);
+        // Builds after the entry found must be known, otherwise one of them may be missing
+        int from = pos >= 0 ? builds[pos] + 1 : 1;
+        return from >= coveredFrom;
+    }
+
+    /**
+     * Gets the most recent recorded build up to the given one.
+     */
+    synchronized @CheckForNull Entry getAtOrBefore(int number) {
+        int pos = findAtOrBefore(number);
+        return pos >= 0 ? new Entry(builds[pos], changes[pos], labels[pos]) : null;
+    }
+
+    /**
+     * Finds the most recent build up to the given one, which has synced a change.
+     * Only builds, which are not covered by the index, are loaded.
+     * @param build Build to start with
+     * @return null if no build has synced a change
+     */
+    public @CheckForNull Entry getLastBuilt(@Nonnull Run<?, ?> build) {
+        int number = build.getNumber();
+        synchronized (this) {
+            if (isCovered(number)) {
+                return getAtOrBefore(number);
+            }
+        }
+
+        // Walk the builds, which predate the index, once
+        synchronized (this) {
+            if (number >= coveredFrom - 1) {
+                Run<?, ?> start = build.getParent().getNearestOldBuild(coveredFrom - 1);
+                Run<?, ?> found = findTagged(start);
+                PerforceTagAction action = found != null ? found.getAction(PerforceTagAction.class) : null;
+                if (action != null) {
+                    put(found.getNumber(), action.getChangeNumber(), getLabel(action));
+                }
+                coveredFrom = found != null ? found.getNumber() : 0;
+                save();
+                return getAtOrBefore(number);
+            }
+        }
+        // An old build, which is not worth recording
+        Run<?, ?> found = findTagged(build);
+        if (found == null) {
+            return null;
+        }
+        PerforceTagAction action = found.getAction(PerforceTagAction.class);
+        return new Entry(found.getNumber(), action.getChangeNumber(), getLabel(action));
+    }
+
+    /**
+     * Finds the first build, which has synced the given change or a newer one.
+     * Only builds known to the index are considered, see {@link #isCovered}.
+     * @return Build number, -1 if there is no such build in the index
+     */
+    public synchronized int getFirstBuildWithChange(int changeNumber) {
+        if (changeOrder == null) {
+            buildChangeOrder();
+        }
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (changes[changeOrder[mid]] < changeNumber) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < size ? minBuildFrom[low] : -1;
+    }
+
+    private void buildChangeOrder() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return changes[a] < changes[b] ? -1 : (changes[a] == changes[b] ? 0 : 1);
+            }
+        });
+        changeOrder = new int[size];
+        minBuildFrom = new int[size];
+        int min = Integer.MAX_VALUE;
+        for (int i = size - 1; i >= 0; i--) {
+            changeOrder[i] = order[i];
+            min = Math.min(min, builds[order[i]]);
+            minBuildFrom[i] = min;
+        }
+    }
+
+    private int findAtOrBefore(int build) {
+        int pos = Arrays.binarySearch(builds, 0, size, build);
+        return pos >= 0 ? pos : -pos - 2;
+    }
+
+    /**
+     * Gets the label synced by the build or, for builds of a change, the first
+     * label created for it.
+     */
+    private static @CheckForNull String getLabel(@Nonnull PerforceTagAction action) {
+        List<PerforceTagAction.PerforceTag> tags = action.getTags();
+        return tags != null && !tags.isEmpty() ? tags.get(0).getName() : null;
+    }
+
+    private static @CheckForNull Run<?, ?> findTagged(@CheckForNull Run<?, ?> build) {
+        while (build != null && build.getAction(PerforceTagAction.class) == null) {
+            build = build.getPreviousBuild();
+        }
+        return build;
+    }
+
+    /**
+     * Drops indexes of deleted and renamed jobs.
+     */
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            evict(item.getRootDir());
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            evict(item.getRootDir());
+        }
+    }
+
+    /**
+     * Keeps the indexes up to date.
+     */
+    @Extension
+    public static class Listener extends RunListener<Run> {
+        public Listener() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onCompleted(Run r, TaskListener listener) {
+            PerforceTagAction action = r.getAction(PerforceTagAction.class);
+            if (action != null) {
+                forJob(r.getParent()).record(r, action);
+            }
+        }
+
+        @Override
+        public void onDeleted(Run r) {
+            forJob(r.getParent()).remove(r);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package hudson.plugins.perforce;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+
+/**
+ * Byte offsets of the entries of a changelog file.
+ * <p>
+ * The index is kept next to the changelog (<tt>changelog.xml.idx</tt>) and
+ * allows to read single changes, and the file lists of single changes,
+ * without parsing the whole changelog. It is only used as long as the
+ * changelog has the size and modification time recorded in the index.
+ *
+ * @since 1.3.37
+ */
+final class PerforceChangeLogIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(PerforceChangeLogIndex.class.getName());
+
+    private static final int MAGIC = 0x5034434C;
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".idx";
+
+    /**Offsets per entry: start and end of the entry, start and end of its files*/
+    private static final int SLOTS = 4;
+
+    private int size;
+    private int[] changeNumbers;
+    private long[] offsets;
+
+    PerforceChangeLogIndex() {
+        this(16);
+    }
+
+    private PerforceChangeLogIndex(int capacity) {
+        changeNumbers = new int[Math.max(capacity, 1)];
+        offsets = new long[changeNumbers.length * SLOTS];
+    }
+
+    static File getIndexFile(File changelog) {
+        return new File(changelog.getPath() + SUFFIX);
+    }
+
+    /**
+     * Records the position of an entry.
+     * @param start Offset of the <tt>&lt;entry&gt;</tt> element
+     * @param end Offset after the end of the <tt>&lt;entry&gt;</tt> element
+     * @param filesStart Offset of the <tt>&lt;files&gt;</tt> element
+     * @param filesEnd Offset after the end of the <tt>&lt;files&gt;</tt> element
+     */
+    void add(int changeNumber, long start, long end, long filesStart, long filesEnd) {
+        if (size == changeNumbers.length) {
+            int[] numbers = new int[size * 2];
+            System.arraycopy(changeNumbers, 0, numbers, 0, size);
+            changeNumbers = numbers;
+            long[] positions = new long[numbers.length * SLOTS];
+            System.arraycopy(offsets, 0, positions, 0, size * SLOTS);
+            offsets = positions;
+        }
+        changeNumbers[size] = changeNumber;
+        offsets[size * SLOTS] = start;
+        offsets[size * SLOTS + 1] = end;
+        offsets[size * SLOTS + 2] = filesStart;
+        offsets[size * SLOTS + 3] = filesEnd;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getChangeNumber(int i) {
+        return changeNumbers[i];
+    }
+
+    long getStart(int i) {
+        return offsets[i * SLOTS];
+    }
+
+    long getEnd(int i) {
+        return offsets[i * SLOTS + 1];
+    }
+
+    long getFilesStart(int i) {
+        return offsets[i * SLOTS + 2];
+    }
+
+    long getFilesEnd(int i) {
+        return offsets[i * SLOTS + 3];
+    }
+
+    /**
+     * Writes the index of the completely written changelog.
+     */
+    void save(File changelog) throws IOException {
+        File indexFile = getIndexFile(changelog);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(changelog.length());
+            out.writeLong(changelog.lastModified());
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeInt(changeNumbers[i]);
+                for (int slot = 0; slot < SLOTS; slot++) {
+                    out.writeLong(offsets[i * SLOTS + slot]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads the index of the changelog.
+     * @return null if there is no index or it doesn't belong to the current changelog
+     */
+    static @CheckForNull PerforceChangeLogIndex load(File changelog) {
+        File indexFile = getIndexFile(changelog);
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION
+                        || in.readLong() != changelog.length() || in.readLong() != changelog.lastModified()) {
+                    return null;
+                }
+                int count = in.readInt();
+                PerforceChangeLogIndex index = new PerforceChangeLogIndex(count);
+                for (int i = 0; i < count; i++) {
+                    int changeNumber = in.readInt();
+                    index.add(changeNumber, in.readLong(), in.readLong(), in.readLong(), in.readLong());
+                }
+                return index;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read changelog index " + indexFile + ", parsing the whole changelog", e);
+            return null;
+        }
+    }
+}
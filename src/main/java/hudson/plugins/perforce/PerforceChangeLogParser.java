@@ -5,12 +5,15 @@ import hudson.model.AbstractBuild;
 import hudson.scm.ChangeLogParser;
 import hudson.scm.ChangeLogSet;
 import hudson.scm.ChangeLogSet.Entry;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
@@ -21,6 +24,14 @@ public class PerforceChangeLogParser extends ChangeLogParser {
      */
     @Override
     public ChangeLogSet<? extends Entry> parse(AbstractBuild build, File file) throws IOException, SAXException {
+        if (PerforceCompactChangeLog.isCompact(file)) {
+            return PerforceCompactChangeLog.read(build, file);
+        }
+        PerforceChangeLogIndex index = PerforceChangeLogIndex.load(file);
+        if (index != null) {
+            // Entries are read when they are displayed
+            return new PerforceChangeLogSet(build, file, index);
+        }
         try {
             SAXParserFactory factory = SAXParserFactory.newInstance();
             SAXParser parser = factory.newSAXParser();
@@ -31,14 +42,40 @@ public class PerforceChangeLogParser extends ChangeLogParser {
             throw new SAXException("Could not parse perforce changelog: ",e);
         }
     }
-    
+
+    /**
+     * Parses a part of a changelog, e.g. a single entry or the files of an entry.
+     */
+    static ChangeLogHandler parseFragment(byte[] xml) throws IOException {
+        try {
+            SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+            ChangeLogHandler handler = new ChangeLogHandler(null);
+            InputSource source = new InputSource(new ByteArrayInputStream(xml));
+            source.setEncoding("UTF-8");
+            parser.parse(source, handler);
+            return handler;
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Could not create XML parser: " + e.getMessage());
+        } catch (SAXException e) {
+            IOException ioe = new IOException("Could not parse perforce changelog: " + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
     public static class ChangeLogHandler extends DefaultHandler {
-        private Stack objects = new Stack();
         private StringBuilder text = new StringBuilder();
 
         private List<PerforceChangeLogEntry> changeLogEntries = null;
         private PerforceChangeLogSet changeLogSet = null;
         private AbstractBuild build = null;
+
+        private Changelist changelist;
+        private Changelist lastChangelist;
+        private List<Changelist.FileEntry> files;
+        private Changelist.FileEntry file;
+        private List<Changelist.JobEntry> jobs;
+        private Changelist.JobEntry job;
         
         public ChangeLogHandler(AbstractBuild build) {
             this.build = build;
@@ -55,101 +92,59 @@ public class PerforceChangeLogParser extends ChangeLogParser {
 
         @Override
         public void endElement(String uri, String localName, String qName) throws SAXException {
-            if (qName.equalsIgnoreCase("changelog")) {
-                //this is the root, so don't do anything
-                return;
-            }
-            if (objects.peek() instanceof Changelist) {
-                Changelist changelist = (Changelist) objects.peek();
-                if (qName.equalsIgnoreCase("changenumber")) {
-                    changelist.setChangeNumber(new Integer(text.toString()));
-                    return;
-                }
-                if (qName.equalsIgnoreCase("date")) {
-                    changelist.setDate(stringDateToJavaDate(text.toString()));
-                    return;
-                }
-                if (qName.equalsIgnoreCase("description")) {
-                    changelist.setDescription(text.toString());
-                    return;
-                }
-                if (qName.equalsIgnoreCase("user")) {
-                    changelist.setUser(text.toString());
-                    return;
-                }
-                if (qName.equalsIgnoreCase("workspace")) {
-                    changelist.setWorkspace(text.toString());
-                    return;
-                }
-            }
-            if (objects.peek() instanceof Changelist.JobEntry) {
-                Changelist.JobEntry job = (Changelist.JobEntry) objects.peek();
-                if (qName.equalsIgnoreCase("name")) {
-                    job.setJob(text.toString());
-                    return;
-                }
-                if (qName.equalsIgnoreCase("description")) {
-                    job.setDescription(text.toString());
-                    return;
-                }
-                if (qName.equalsIgnoreCase("status")) {
-                    job.setStatus(text.toString());
-                    return;
-                }
-                if (qName.equalsIgnoreCase("job")) {
-                    objects.pop();
-                    List joblist = (List) objects.peek();
-                    joblist.add(job);
-                    return;
-                }
-            }
-            if (objects.peek() instanceof Changelist.FileEntry) {
-                Changelist.FileEntry file = (Changelist.FileEntry) objects.peek();
-                if (qName.equalsIgnoreCase("name")) {
+            String name = qName.toLowerCase(Locale.ENGLISH);
+            if (file != null) {
+                if (name.equals("name")) {
                     file.setFilename(text.toString());
-                    return;
-                }
-                if (qName.equalsIgnoreCase("workspacePath")) {
+                } else if (name.equals("workspacepath")) {
                     file.setWorkspacePath(text.toString());
-                    return;
-                }
-                if (qName.equalsIgnoreCase("action")) {
+                } else if (name.equals("action")) {
                     file.setAction(Changelist.FileEntry.Action.valueOf(text.toString()));
-                    return;
-                }
-                if (qName.equalsIgnoreCase("rev")) {
+                } else if (name.equals("rev")) {
                     file.setRevision(text.toString());
-                    return;
-                }
-                if (qName.equalsIgnoreCase("changenumber")) {
+                } else if (name.equals("changenumber")) {
                     file.setChangenumber(text.toString());
-                    return;
+                } else if (name.equals("file")) {
+                    files.add(file);
+                    file = null;
                 }
-                if (qName.equalsIgnoreCase("file")) {
-                    objects.pop();
-                    List filelist = (List) objects.peek();
-                    filelist.add(file);
-                    return;
+            } else if (job != null) {
+                if (name.equals("name")) {
+                    job.setJob(text.toString());
+                } else if (name.equals("description")) {
+                    job.setDescription(text.toString());
+                } else if (name.equals("status")) {
+                    job.setStatus(text.toString());
+                } else if (name.equals("job")) {
+                    jobs.add(job);
+                    job = null;
                 }
-            }
-            if (qName.equalsIgnoreCase("files")) {
-                ArrayList<Changelist.FileEntry> files = (ArrayList<Changelist.FileEntry>) objects.pop();
-                Changelist changelist = (Changelist) objects.peek();
-                changelist.setFiles(files);
-                return;
-            }
-            if (qName.equalsIgnoreCase("jobs")) {
-                ArrayList<Changelist.JobEntry> jobs = (ArrayList<Changelist.JobEntry>) objects.pop();
-                Changelist changelist = (Changelist) objects.peek();
-                changelist.setJobs(jobs);
-                return;
-            }
-            if (qName.equalsIgnoreCase("entry")) {
-                Changelist changelist = (Changelist) objects.pop();
+            } else if (name.equals("files")) {
+                if (changelist != null) {
+                    changelist.setFiles(files);
+                }
+            } else if (name.equals("jobs")) {
+                if (changelist != null) {
+                    changelist.setJobs(jobs);
+                }
+            } else if (name.equals("entry")) {
                 PerforceChangeLogEntry entry = new PerforceChangeLogEntry(changeLogSet);
                 entry.setChange(changelist);
                 changeLogEntries.add(entry);
-                return;
+                lastChangelist = changelist;
+                changelist = null;
+            } else if (changelist != null) {
+                if (name.equals("changenumber")) {
+                    changelist.setChangeNumber(new Integer(text.toString()));
+                } else if (name.equals("date")) {
+                    changelist.setDate(stringDateToJavaDate(text.toString()));
+                } else if (name.equals("description")) {
+                    changelist.setDescription(text.toString());
+                } else if (name.equals("user")) {
+                    changelist.setUser(text.toString());
+                } else if (name.equals("workspace")) {
+                    changelist.setWorkspace(text.toString());
+                }
             }
         }
 
@@ -163,37 +158,37 @@ public class PerforceChangeLogParser extends ChangeLogParser {
         public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
             text.setLength(0);
 
-            if (qName.equalsIgnoreCase("changelog")) {
-                //this is the root, so don't do anything
-                return;
-            }
-            if (qName.equalsIgnoreCase("entry")) {
-                objects.push(new Changelist());
-                return;
-            }
-            if (objects.peek() instanceof Changelist) {
-                if (qName.equalsIgnoreCase("files")) {
-                    objects.push(new ArrayList<Changelist.FileEntry>());
-                    return;
-                }
-                if (qName.equalsIgnoreCase("jobs")) {
-                    objects.push(new ArrayList<Changelist.JobEntry>());
-                    return;
-                }
-            }
-            if (qName.equalsIgnoreCase("job")) {
-                objects.push(new Changelist.JobEntry());
-                return;
-            }
-            if (qName.equalsIgnoreCase("file")) {
-                objects.push(new Changelist.FileEntry());
-                return;
+            String name = qName.toLowerCase(Locale.ENGLISH);
+            if (name.equals("entry")) {
+                changelist = new Changelist();
+            } else if (name.equals("files")) {
+                files = new ArrayList<Changelist.FileEntry>();
+            } else if (name.equals("jobs")) {
+                jobs = new ArrayList<Changelist.JobEntry>();
+            } else if (name.equals("file") && files != null) {
+                file = new Changelist.FileEntry();
+            } else if (name.equals("job") && jobs != null) {
+                job = new Changelist.JobEntry();
             }
         }
         
         public PerforceChangeLogSet getChangeLogSet() {
             return changeLogSet;
         }
+
+        /**
+         * Gets the last complete changelist of the document.
+         */
+        Changelist getLastChangelist() {
+            return lastChangelist;
+        }
+
+        /**
+         * Gets the files of the last <tt>&lt;files&gt;</tt> element of the document.
+         */
+        List<Changelist.FileEntry> getFiles() {
+            return files;
+        }
     }
     
         /**
@@ -1,19 +1,22 @@
 package hudson.plugins.perforce;
 
 import com.tek42.perforce.model.Changelist;
+import com.tek42.perforce.parse.Changes;
 import hudson.model.AbstractBuild;
 import hudson.scm.ChangeLogSet;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintStream;
-import java.nio.charset.Charset;
+import java.io.RandomAccessFile;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import org.apache.commons.lang.StringEscapeUtils;
-import org.kohsuke.stapler.framework.io.WriterOutputStream;
+import java.util.RandomAccess;
 
 /**
  * @author Mike Wille
@@ -27,6 +30,17 @@ public class PerforceChangeLogSet extends ChangeLogSet<PerforceChangeLogEntry> {
         this.history = Collections.unmodifiableList(logs);
     }
 
+    /**
+     * Creates a set, which reads the entries of the changelog on demand.
+     * @param changelog Changelog file of the build
+     * @param index Positions of the entries in the changelog
+     * @since 1.3.37
+     */
+    PerforceChangeLogSet(AbstractBuild<?, ?> build, File changelog, PerforceChangeLogIndex index) {
+        super(build);
+        this.history = Collections.unmodifiableList(new LazyHistory(changelog, index));
+    }
+
     public List<PerforceChangeLogEntry> getHistory() {
         return history;
     }
@@ -60,42 +74,151 @@ public class PerforceChangeLogSet extends ChangeLogSet<PerforceChangeLogEntry> {
      * @throws IOException
      */
     public static void saveToChangeLog(OutputStream outputStream, List<Changelist> changes) throws IOException {
-        OutputStreamWriter writer = new OutputStreamWriter(outputStream, Charset.forName("UTF-8"));
-        WriterOutputStream stream1 = new WriterOutputStream(writer);
-        PrintStream stream = new PrintStream(stream1);
+        saveToChangeLog(outputStream, changes, false);
+    }
 
-        stream.println("<?xml version='1.0' encoding='UTF-8'?>");
-        stream.println("<changelog>");
+    /**
+     * Stores the history objects to the output stream
+     *
+     * @param outputStream
+     *            the stream to write to
+     * @param changes
+     *            the history objects to store
+     * @param compact
+     *            true to use the compact binary format instead of xml
+     * @throws IOException
+     * @since 1.3.37
+     */
+    public static void saveToChangeLog(OutputStream outputStream, List<Changelist> changes, boolean compact) throws IOException {
+        ChangeWriter writer = compact
+                ? new PerforceCompactChangeLog.Writer(outputStream)
+                : new PerforceChangeLogWriter(outputStream);
         for (Changelist change : changes) {
-            stream.println("\t<entry>");
-            stream.println("\t\t<changenumber>" + change.getChangeNumber() + "</changenumber>");
-            stream.println("\t\t<date>" + StringEscapeUtils.escapeXml(PerforceChangeLogParser.javaDateToStringDate(change.getDate())) + "</date>");
-            stream.println("\t\t<description>" + StringEscapeUtils.escapeXml(change.getDescription()) + "</description>");
-            stream.println("\t\t<user>" + StringEscapeUtils.escapeXml(change.getUser()) + "</user>");
-            stream.println("\t\t<workspace>" + StringEscapeUtils.escapeXml(change.getWorkspace()) + "</workspace>");
-            stream.println("\t\t<files>");
-            for (Changelist.FileEntry entry : change.getFiles()) {
-                stream.println("\t\t\t<file>");
-                stream.println("\t\t\t\t<name>" + StringEscapeUtils.escapeXml(entry.getFilename()) + "</name>");
-                stream.println("\t\t\t\t<workspacePath>" + StringEscapeUtils.escapeXml(entry.getWorkspacePath()) + "</workspacePath>");
-                stream.println("\t\t\t\t<rev>" + StringEscapeUtils.escapeXml(entry.getRevision()) + "</rev>");
-                stream.println("\t\t\t\t<changenumber>" + StringEscapeUtils.escapeXml(entry.getChangenumber()) + "</changenumber>");
-                stream.println("\t\t\t\t<action>" + entry.getAction() + "</action>");
-                stream.println("\t\t\t</file>");
+            writer.write(change);
+        }
+        writer.close();
+    }
+
+    /**
+     * Starts writing the changelog file of a build.
+     * @param changelog Changelog file of the build
+     * @param compact true to use the compact binary format instead of xml
+     * @since 1.3.37
+     */
+    public static ChangeWriter createChangeLogWriter(File changelog, boolean compact) throws IOException {
+        if (compact) {
+            return new PerforceCompactChangeLog.Writer(new FileOutputStream(changelog));
+        }
+        return new PerforceChangeLogWriter(changelog);
+    }
+
+    /**
+     * Writes a changelog one change at a time. The files of a change can be
+     * passed in one at a time too, as they are read from the server.
+     * @since 1.3.37
+     */
+    public interface ChangeWriter extends Closeable, Changes.ChangelistHandler {
+        /**
+         * Appends a change to the changelog.
+         */
+        void write(Changelist change) throws IOException;
+    }
+
+    private static byte[] read(File changelog, long start, long end) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(changelog, "r");
+        try {
+            byte[] bytes = new byte[(int) (end - start)];
+            file.seek(start);
+            file.readFully(bytes);
+            return bytes;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    /**
+     * Entries of an indexed changelog, which are parsed when they are accessed.
+     * The file lists of the entries are parsed separately on first use.
+     */
+    private class LazyHistory extends AbstractList<PerforceChangeLogEntry> implements RandomAccess {
+        private final File changelog;
+        private final PerforceChangeLogIndex index;
+        private final PerforceChangeLogEntry[] entries;
+
+        LazyHistory(File changelog, PerforceChangeLogIndex index) {
+            this.changelog = changelog;
+            this.index = index;
+            this.entries = new PerforceChangeLogEntry[index.size()];
+        }
+
+        @Override
+        public int size() {
+            return entries.length;
+        }
+
+        @Override
+        public synchronized PerforceChangeLogEntry get(int i) {
+            if (entries[i] == null) {
+                Changelist change;
+                try {
+                    // The entry without its <files> element
+                    byte[] xml = concat(read(changelog, index.getStart(i), index.getFilesStart(i)),
+                            read(changelog, index.getFilesEnd(i), index.getEnd(i)));
+                    change = PerforceChangeLogParser.parseFragment(xml).getLastChangelist();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot read change " + index.getChangeNumber(i) + " from " + changelog, e);
+                }
+                change.setFiles(new LazyFileList(changelog, index.getFilesStart(i), index.getFilesEnd(i)));
+                PerforceChangeLogEntry entry = new PerforceChangeLogEntry(PerforceChangeLogSet.this);
+                entry.setChange(change);
+                entries[i] = entry;
             }
-            stream.println("\t\t</files>");
-            stream.println("\t\t<jobs>");
-            for (Changelist.JobEntry entry : change.getJobs()) {
-                stream.println("\t\t\t<job>");
-                stream.println("\t\t\t\t<name>" + StringEscapeUtils.escapeXml(entry.getJob()) + "</name>");
-                stream.println("\t\t\t\t<description>" + StringEscapeUtils.escapeXml(entry.getDescription()) + "</description>");
-                stream.println("\t\t\t\t<status>" + StringEscapeUtils.escapeXml(entry.getStatus()) + "</status>");
-                stream.println("\t\t\t</job>");
+            return entries[i];
+        }
+    }
+
+    /**
+     * Files of a change, which are parsed from the changelog on first access.
+     */
+    private static class LazyFileList extends AbstractList<Changelist.FileEntry> implements RandomAccess {
+        private final File changelog;
+        private final long start;
+        private final long end;
+        private List<Changelist.FileEntry> files;
+
+        LazyFileList(File changelog, long start, long end) {
+            this.changelog = changelog;
+            this.start = start;
+            this.end = end;
+        }
+
+        private synchronized List<Changelist.FileEntry> getFiles() {
+            if (files == null) {
+                try {
+                    List<Changelist.FileEntry> parsed = PerforceChangeLogParser.parseFragment(read(changelog, start, end)).getFiles();
+                    files = parsed != null ? parsed : new ArrayList<Changelist.FileEntry>(0);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot read files from " + changelog, e);
+                }
             }
-            stream.println("\t\t</jobs>");
-            stream.println("\t</entry>");
+            return files;
+        }
+
+        @Override
+        public Changelist.FileEntry get(int i) {
+            return getFiles().get(i);
+        }
+
+        @Override
+        public int size() {
+            return getFiles().size();
         }
-        stream.println("</changelog>");
-        stream.close();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,239 @@
+package hudson.plugins.perforce;
+
+import com.tek42.perforce.model.Changelist;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.annotation.CheckForNull;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes the changelog of a build one change at a time.
+ * <p>
+ * Changes are written to the stream as soon as they are passed in, so the
+ * caller doesn't need to keep the changes of the whole build in memory.
+ * The files of a change may be passed in one at a time as well, see
+ * {@link #startChange}.
+ * The output has the format read by {@link PerforceChangeLogParser}. When
+ * written to a file, the positions of the entries are stored in a
+ * {@link PerforceChangeLogIndex} next to it.
+ *
+ * @since 1.3.37
+ */
+public class PerforceChangeLogWriter implements PerforceChangeLogSet.ChangeWriter {
+
+    private static final XMLOutputFactory FACTORY = XMLOutputFactory.newInstance();
+
+    private final CountingOutputStream out;
+    private final XMLStreamWriter xml;
+    private final @CheckForNull File file;
+    private final PerforceChangeLogIndex index = new PerforceChangeLogIndex();
+
+    /**Change started by {@link #startChange}, null between changes*/
+    private @CheckForNull Changelist change;
+    private long start;
+    private long filesStart;
+
+    /**
+     * Starts the changelog document.
+     * @param out Stream to write to, it is closed by {@link #close()}
+     */
+    public PerforceChangeLogWriter(OutputStream out) throws IOException {
+        this(out, null);
+    }
+
+    /**
+     * Starts the changelog file and its index.
+     * @param file Changelog file of the build
+     */
+    public PerforceChangeLogWriter(File file) throws IOException {
+        this(new BufferedOutputStream(new FileOutputStream(file)), file);
+    }
+
+    private PerforceChangeLogWriter(OutputStream out, @CheckForNull File file) throws IOException {
+        this.out = new CountingOutputStream(out);
+        this.file = file;
+        try {
+            xml = FACTORY.createXMLStreamWriter(this.out, "UTF-8");
+            xml.writeStartDocument("UTF-8", "1.0");
+            newLine(0);
+            xml.writeStartElement("changelog");
+        } catch (XMLStreamException e) {
+            throw toIOException(e);
+        }
+    }
+
+    /**
+     * Appends a change to the changelog.
+     */
+    public void write(Changelist change) throws IOException {
+        startChange(change);
+        for (Changelist.FileEntry entry : change.getFiles()) {
+            addFile(entry);
+        }
+        endChange();
+    }
+
+    /**
+     * Starts a change, whose files are passed in by {@link #addFile}. The
+     * files of the change itself are ignored, its jobs are written by
+     * {@link #endChange}.
+     */
+    public void startChange(Changelist change) throws IOException {
+        if (this.change != null) {
+            throw new IllegalStateException("Change " + this.change.getChangeNumber() + " has not been ended");
+        }
+        try {
+            newLine(1);
+            xml.flush();
+            start = out.count;
+            xml.writeStartElement("entry");
+            writeElement(2, "changenumber", Integer.toString(change.getChangeNumber()));
+            writeElement(2, "date", PerforceChangeLogParser.javaDateToStringDate(change.getDate()));
+            writeElement(2, "description", change.getDescription());
+            writeElement(2, "user", change.getUser());
+            writeElement(2, "workspace", change.getWorkspace());
+            newLine(2);
+            xml.flush();
+            filesStart = out.count;
+            xml.writeStartElement("files");
+            this.change = change;
+        } catch (XMLStreamException e) {
+            throw toIOException(e);
+        }
+    }
+
+    public void addFile(Changelist.FileEntry entry) throws IOException {
+        if (change == null) {
+            throw new IllegalStateException("No change has been started");
+        }
+        try {
+            newLine(3);
+            xml.writeStartElement("file");
+            writeElement(4, "name", entry.getFilename());
+            writeElement(4, "workspacePath", entry.getWorkspacePath());
+            writeElement(4, "rev", entry.getRevision());
+            writeElement(4, "changenumber", entry.getChangenumber());
+            writeElement(4, "action", String.valueOf(entry.getAction()));
+            newLine(3);
+            xml.writeEndElement();
+        } catch (XMLStreamException e) {
+            throw toIOException(e);
+        }
+    }
+
+    public void endChange() throws IOException {
+        Changelist change = this.change;
+        if (change == null) {
+            throw new IllegalStateException("No change has been started");
+        }
+        this.change = null;
+        try {
+            newLine(2);
+            xml.writeEndElement();
+            xml.flush();
+            long filesEnd = out.count;
+            newLine(2);
+            xml.writeStartElement("jobs");
+            for (Changelist.JobEntry entry : change.getJobs()) {
+                newLine(3);
+                xml.writeStartElement("job");
+                writeElement(4, "name", entry.getJob());
+                writeElement(4, "description", entry.getDescription());
+                writeElement(4, "status", entry.getStatus());
+                newLine(3);
+                xml.writeEndElement();
+            }
+            newLine(2);
+            xml.writeEndElement();
+            newLine(1);
+            xml.writeEndElement();
+            // Hand the entry over to the stream, nothing is kept for the next one
+            xml.flush();
+            index.add(change.getChangeNumber(), start, out.count, filesStart, filesEnd);
+        } catch (XMLStreamException e) {
+            throw toIOException(e);
+        }
+    }
+
+    /**
+     * Ends the changelog document and closes the stream.
+     */
+    public void close() throws IOException {
+        try {
+            newLine(0);
+            xml.writeEndElement();
+            newLine(0);
+            xml.writeEndDocument();
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw toIOException(e);
+        } finally {
+            out.close();
+        }
+        if (file != null) {
+            index.save(file);
+        }
+    }
+
+    private void writeElement(int depth, String name, String value) throws XMLStreamException {
+        newLine(depth);
+        xml.writeStartElement(name);
+        // Keeps the former output, which wrote missing values as "null"
+        xml.writeCharacters(String.valueOf(value));
+        xml.writeEndElement();
+    }
+
+    private void newLine(int depth) throws XMLStreamException {
+        xml.writeCharacters("\n");
+        for (int i = 0; i < depth; i++) {
+            xml.writeCharacters("\t");
+        }
+    }
+
+    private static IOException toIOException(XMLStreamException e) {
+        IOException ioe = new IOException("Cannot write changelog: " + e.getMessage());
+        ioe.initCause(e);
+        return ioe;
+    }
+
+    /**
+     * Keeps track of the offset in the output. Flushes of the XML writer are
+     * not passed on, so that entries still go through the buffer.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+            // flushed on close
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package hudson.plugins.perforce;
+
+import com.tek42.perforce.Depot;
+import com.tek42.perforce.PerforceException;
+import com.tek42.perforce.model.Workspace;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+
+/**
+ * Deletes clients, which have been created by this Jenkins instance and are
+ * not used anymore.
+ * <p>
+ * Per-node and concurrent build clients stay on the server after their job,
+ * node or workspace is gone, and each of them keeps a have list. New clients
+ * are marked in their description with the instance, job and node. Marked
+ * clients, which haven't been accessed for some days and whose job, node or
+ * workspace doesn't exist anymore, are flushed (<tt>sync -k #0</tt>) and
+ * deleted. A dry run only reports them. The number of deletions per run is
+ * limited and deletions are spread out, so that the server isn't flooded.
+ * <p>
+ * Clients owned by another user than the one of the connection, e.g. the
+ * client owner of a job, and locked clients are deleted with
+ * <tt>client -d -f</tt>, which needs admin access.
+ *
+ * @since 1.3.37
+ */
+@Extension
+public class PerforceClientCollector extends AsyncPeriodicWork {
+
+    private static final String MARKER_PREFIX = "Created by Jenkins ";
+    /**Clients accessed more recently are never deleted*/
+    private static final long MIN_IDLE_MILLIS = 7 * DAY;
+    /**Pause between two deletions*/
+    private static final long DELETE_DELAY_MILLIS = 1000;
+
+    public PerforceClientCollector() {
+        super("Perforce client collector");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return DAY;
+    }
+
+    /**
+     * Gets the description of a new client, which allows to recognize it
+     * as created by this instance.
+     * @param jobName Full name of the job
+     * @param nodeName Name of the node, empty for the master
+     */
+    static String getClientMarker(String jobName, @CheckForNull String nodeName) {
+        return getClientMarker(getMarkerPrefix(), jobName, nodeName);
+    }
+
+    static String getClientMarker(String prefix, String jobName, @CheckForNull String nodeName) {
+        return prefix + jobName + ":" + (nodeName != null ? nodeName : "");
+    }
+
+    private static String getMarkerPrefix() {
+        String instance = Util.getDigestOf(Hudson.getInstance().getSecretKey()).substring(0, 8);
+        return MARKER_PREFIX + instance + ":";
+    }
+
+    /**
+     * Extracts job and node name from the description of a client.
+     * Names of jobs and nodes cannot contain a colon.
+     * @return Job and node name, null if the client hasn't been created by this instance
+     */
+    static @CheckForNull String[] parseClientMarker(String description, String prefix) {
+        for (String line : description.split("\n")) {
+            line = line.trim();
+            if (line.startsWith(prefix)) {
+                String names = line.substring(prefix.length());
+                int colon = names.indexOf(':');
+                if (colon > 0) {
+                    return new String[] { names.substring(0, colon), names.substring(colon + 1) };
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        PerforceSCM.PerforceSCMDescriptor descriptor = PerforceSCM.getInstance();
+        if (!descriptor.isClientCollectorEnabled()) {
+            return;
+        }
+        PrintStream log = listener.getLogger();
+        boolean dryRun = descriptor.isClientCollectorDryRun();
+        int remaining = descriptor.getClientCollectorMaxDeletions();
+        Hudson hudson = Hudson.getInstance();
+
+        // Jobs, which manage their clients, and their servers and owners
+        Set<String> liveJobs = new HashSet<String>();
+        Map<String, Depot> depots = new LinkedHashMap<String, Depot>();
+        Map<String, Set<String>> owners = new HashMap<String, Set<String>>();
+        for (AbstractProject<?, ?> project : hudson.getAllItems(AbstractProject.class)) {
+            if (!(project.getScm() instanceof PerforceSCM)) {
+                continue;
+            }
+            PerforceSCM scm = (PerforceSCM) project.getScm();
+            if (!scm.isCreateWorkspace()) {
+                continue;
+            }
+            liveJobs.add(project.getFullName());
+            Depot depot;
+            try {
+                depot = scm.getDepot(hudson.createLauncher(listener), hudson.getRootPath(), project, null, null);
+            } catch (Exception e) {
+                log.println("Cannot connect to the server of " + project.getFullName() + ": " + e.getMessage());
+                continue;
+            }
+            String server = depot.getPort();
+            if (!depots.containsKey(server)) {
+                depots.put(server, depot);
+                owners.put(server, new LinkedHashSet<String>());
+            }
+            if (Util.fixEmpty(depot.getUser()) != null) {
+                owners.get(server).add(depot.getUser());
+            }
+            if (Util.fixEmptyAndTrim(scm.clientOwner) != null) {
+                owners.get(server).add(scm.clientOwner.trim());
+            }
+        }
+
+        String prefix = getMarkerPrefix();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Depot> server : depots.entrySet()) {
+            Depot depot = server.getValue();
+            for (String owner : owners.get(server.getKey())) {
+                List<Workspace> clients;
+                try {
+                    clients = depot.getWorkspaces().getWorkspacesOwnedBy(owner);
+                } catch (PerforceException e) {
+                    log.println("Cannot list clients of " + owner + " on " + server.getKey() + ": " + e.getMessage());
+                    continue;
+                }
+                for (Workspace client : clients) {
+                    String[] names = parseClientMarker(client.getDescription(), prefix);
+                    if (names == null || !isIdle(client, now)) {
+                        continue;
+                    }
+                    String reason = getOrphanReason(client, names[0], names[1], liveJobs);
+                    if (reason == null) {
+                        continue;
+                    }
+                    if (dryRun) {
+                        log.println("Would delete client " + client.getName() + " on " + server.getKey() + ": " + reason);
+                        continue;
+                    }
+                    if (remaining <= 0) {
+                        log.println("Reached the limit of deleted clients, continuing with the next run");
+                        return;
+                    }
+                    boolean force = needsForce(client, depot.getUser());
+                    try {
+                        depot.setClient(client.getName());
+                        try {
+                            depot.getWorkspaces().flushTo("//" + client.getName() + "/...#0");
+                        } catch (PerforceException e) {
+                            if (!force) {
+                                throw e;
+                            }
+                            // Locked clients of other users can't be flushed, the deletion drops the have list too
+                        }
+                        depot.getWorkspaces().deleteWorkspace(client.getName(), force);
+                        log.println("Deleted client " + client.getName() + " on " + server.getKey() + ": " + reason);
+                        remaining--;
+                    } catch (PerforceException e) {
+                        log.println("Cannot delete client " + client.getName() + " on " + server.getKey() + ": " + e.getMessage()
+                                + (force ? " (deleting a locked client or a client of another user needs admin access)" : ""));
+                    }
+                    Thread.sleep(DELETE_DELAY_MILLIS);
+                }
+            }
+        }
+    }
+
+    static boolean isIdle(Workspace client, long now) {
+        try {
+            return now - Long.parseLong(client.getAccess()) * 1000 > MIN_IDLE_MILLIS;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks if deleting the client needs <tt>client -d -f</tt>, because it
+     * is locked or owned by another user than the one connecting.
+     */
+    static boolean needsForce(Workspace client, @CheckForNull String user) {
+        if (user == null || !user.equals(client.getOwner())) {
+            return true;
+        }
+        String options = client.getOptions();
+        return options != null && Arrays.asList(options.split("\\s+")).contains("locked");
+    }
+
+    /**
+     * Checks if the job, node and workspace of the client still exist.
+     * @return Why the client isn't used anymore, null if it may still be in use
+     */
+    private static @CheckForNull String getOrphanReason(Workspace client, String jobName, String nodeName,
+            Set<String> liveJobs) throws InterruptedException {
+        if (!liveJobs.contains(jobName)) {
+            return "job " + jobName + " doesn't exist or doesn't manage its clients anymore";
+        }
+        Node node = nodeName.length() == 0 ? Hudson.getInstance() : Hudson.getInstance().getNode(nodeName);
+        if (node == null) {
+            return "node " + nodeName + " doesn't exist anymore";
+        }
+        Computer computer = node.toComputer();
+        if (computer == null || computer.getChannel() == null) {
+            return null;
+        }
+        String root = PerforceSCM.unescapeP4String(client.getRoot());
+        if (Util.fixEmptyAndTrim(root) == null) {
+            return null;
+        }
+        FilePath workspace = node.createPath(root);
+        try {
+            if (workspace != null && !workspace.exists()) {
+                return "workspace " + root + " doesn't exist anymore";
+            }
+        } catch (IOException e) {
+            // Node may have gone offline, keep the client
+        }
+        return null;
+    }
+}
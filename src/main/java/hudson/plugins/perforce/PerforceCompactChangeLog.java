@@ -0,0 +1,345 @@
+package hudson.plugins.perforce;
+
+import com.tek42.perforce.model.Changelist;
+import hudson.model.AbstractBuild;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact binary encoding of changelogs.
+ * <p>
+ * The file starts with a magic number followed by a gzip compressed stream.
+ * Numbers are written as variable length integers, dates as epoch
+ * milliseconds and the directories of depot and workspace paths are
+ * written once and referenced by their position in a dictionary afterwards.
+ * {@link PerforceChangeLogParser} detects the format by the magic number.
+ * Since version 2 the files of a change are terminated instead of counted,
+ * so that they can be written while they are read from the server.
+ *
+ * @since 1.3.37
+ */
+final class PerforceCompactChangeLog {
+
+    private static final byte[] MAGIC = {'P', '4', 'C', 'Z'};
+    private static final int VERSION = 2;
+
+    /**
+     * Codes of file actions, starting at 1, 0 stands for no action. The
+     * codes are part of the file format, new actions must be appended.
+     */
+    private static final Changelist.FileEntry.Action[] ACTION_CODES = {
+        Changelist.FileEntry.Action.ADD,
+        Changelist.FileEntry.Action.EDIT,
+        Changelist.FileEntry.Action.DELETE,
+        Changelist.FileEntry.Action.INTEGRATE,
+        Changelist.FileEntry.Action.BRANCH,
+        Changelist.FileEntry.Action.PURGE,
+        Changelist.FileEntry.Action.MOVE_DELETE,
+        Changelist.FileEntry.Action.MOVE_ADD,
+        Changelist.FileEntry.Action.IMPORT,
+    };
+    private static final Map<Changelist.FileEntry.Action, Integer> CODES_BY_ACTION =
+            new EnumMap<Changelist.FileEntry.Action, Integer>(Changelist.FileEntry.Action.class);
+
+    static {
+        for (int i = 0; i < ACTION_CODES.length; i++) {
+            CODES_BY_ACTION.put(ACTION_CODES[i], i + 1);
+        }
+    }
+
+    private PerforceCompactChangeLog() {
+        // static methods, do not instantiate
+    }
+
+    /**
+     * Checks if the changelog has been written in the compact format.
+     */
+    static boolean isCompact(File changelog) throws IOException {
+        byte[] header = new byte[MAGIC.length];
+        InputStream in = new FileInputStream(changelog);
+        try {
+            int read = 0;
+            while (read < header.length) {
+                int count = in.read(header, read, header.length - read);
+                if (count < 0) {
+                    return false;
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return Arrays.equals(header, MAGIC);
+    }
+
+    /**
+     * Writes changes in the compact format one at a time.
+     */
+    static class Writer implements PerforceChangeLogSet.ChangeWriter {
+        private final DataOutputStream out;
+        private final Map<String, Integer> directories = new HashMap<String, Integer>();
+        /**Change started by {@link #startChange}, null between changes*/
+        private Changelist change;
+        private String changeNumber;
+
+        Writer(OutputStream stream) throws IOException {
+            stream.write(MAGIC);
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(stream), 65536));
+            writeVarLong(out, VERSION);
+        }
+
+        public void write(Changelist change) throws IOException {
+            startChange(change);
+            for (Changelist.FileEntry file : change.getFiles()) {
+                addFile(file);
+            }
+            endChange();
+        }
+
+        public void startChange(Changelist change) throws IOException {
+            if (this.change != null) {
+                throw new IllegalStateException("Change " + this.change.getChangeNumber() + " has not been ended");
+            }
+            writeVarLong(out, 1);
+            writeVarLong(out, change.getChangeNumber());
+            Date date = change.getDate();
+            writeVarLong(out, date != null ? date.getTime() + 1 : 0);
+            writeString(change.getDescription());
+            writeString(change.getUser());
+            writeString(change.getWorkspace());
+            this.change = change;
+            this.changeNumber = Integer.toString(change.getChangeNumber());
+        }
+
+        public void addFile(Changelist.FileEntry file) throws IOException {
+            if (change == null) {
+                throw new IllegalStateException("No change has been started");
+            }
+            writeVarLong(out, 1);
+            writePath(file.getFilename());
+            writePath(file.getWorkspacePath());
+            writeNumber(file.getRevision());
+            if (changeNumber.equals(file.getChangenumber())) {
+                writeVarLong(out, 0);
+            } else {
+                writeVarLong(out, 1);
+                writeString(file.getChangenumber());
+            }
+            out.writeByte(getActionCode(file.getAction()));
+        }
+
+        public void endChange() throws IOException {
+            Changelist change = this.change;
+            if (change == null) {
+                throw new IllegalStateException("No change has been started");
+            }
+            this.change = null;
+            // End of the files
+            writeVarLong(out, 0);
+
+            writeVarLong(out, change.getJobs().size());
+            for (Changelist.JobEntry job : change.getJobs()) {
+                writeString(job.getJob());
+                writeString(job.getDescription());
+                writeString(job.getStatus());
+            }
+        }
+
+        public void close() throws IOException {
+            writeVarLong(out, 0);
+            out.close();
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarLong(out, 0);
+                return;
+            }
+            byte[] bytes = value.getBytes("UTF-8");
+            writeVarLong(out, bytes.length + 1);
+            out.write(bytes);
+        }
+
+        /**
+         * Writes a revision, which is a plain number in most cases.
+         */
+        private void writeNumber(String value) throws IOException {
+            if (value != null && value.length() > 0 && value.length() < 10) {
+                try {
+                    int number = Integer.parseInt(value);
+                    if (number >= 0 && Integer.toString(number).equals(value)) {
+                        writeVarLong(out, number + 1L);
+                        return;
+                    }
+                } catch (NumberFormatException e) {
+                    // written as string
+                }
+            }
+            writeVarLong(out, 0);
+            writeString(value);
+        }
+
+        private void writePath(String path) throws IOException {
+            if (path == null) {
+                writeVarLong(out, 0);
+                return;
+            }
+            int split = path.lastIndexOf('/') + 1;
+            String directory = path.substring(0, split);
+            Integer id = directories.get(directory);
+            if (id == null) {
+                writeVarLong(out, 1);
+                writeString(directory);
+                directories.put(directory, directories.size());
+            } else {
+                writeVarLong(out, id + 2L);
+            }
+            writeString(path.substring(split));
+        }
+    }
+
+    /**
+     * Reads a changelog in the compact format.
+     */
+    static PerforceChangeLogSet read(AbstractBuild<?, ?> build, File changelog) throws IOException {
+        List<PerforceChangeLogEntry> entries = new ArrayList<PerforceChangeLogEntry>();
+        PerforceChangeLogSet set = new PerforceChangeLogSet(build, entries);
+        List<String> directories = new ArrayList<String>();
+
+        InputStream stream = new BufferedInputStream(new FileInputStream(changelog));
+        try {
+            byte[] header = new byte[MAGIC.length];
+            new DataInputStream(stream).readFully(header);
+            if (!Arrays.equals(header, MAGIC)) {
+                throw new IOException(changelog + " is not a compact changelog");
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(stream), 65536));
+            long version = readVarLong(in);
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of compact changelog " + changelog);
+            }
+            while (readVarLong(in) != 0) {
+                Changelist change = new Changelist();
+                change.setChangeNumber((int) readVarLong(in));
+                long time = readVarLong(in);
+                change.setDate(time != 0 ? new Date(time - 1) : null);
+                change.setDescription(readString(in));
+                change.setUser(readString(in));
+                change.setWorkspace(readString(in));
+
+                String changeNumber = Integer.toString(change.getChangeNumber());
+                // Version 1 counts the files, version 2 marks each one
+                long fileCount = version == 1 ? readVarLong(in) : -1;
+                List<Changelist.FileEntry> files = new ArrayList<Changelist.FileEntry>();
+                for (long i = 0; version == 1 ? i < fileCount : readVarLong(in) != 0; i++) {
+                    Changelist.FileEntry file = new Changelist.FileEntry();
+                    file.setFilename(readPath(in, directories));
+                    file.setWorkspacePath(readPath(in, directories));
+                    long revision = readVarLong(in);
+                    file.setRevision(revision != 0 ? Long.toString(revision - 1) : readString(in));
+                    file.setChangenumber(readVarLong(in) == 0 ? changeNumber : readString(in));
+                    int action = in.readUnsignedByte();
+                    if (action > ACTION_CODES.length) {
+                        throw new IOException("Unknown file action " + action + " in " + changelog);
+                    }
+                    file.setAction(action != 0 ? ACTION_CODES[action - 1] : null);
+                    files.add(file);
+                }
+                change.setFiles(files);
+
+                int jobCount = (int) readVarLong(in);
+                List<Changelist.JobEntry> jobs = new ArrayList<Changelist.JobEntry>(jobCount);
+                for (int i = 0; i < jobCount; i++) {
+                    Changelist.JobEntry job = new Changelist.JobEntry();
+                    job.setJob(readString(in));
+                    job.setDescription(readString(in));
+                    job.setStatus(readString(in));
+                    jobs.add(job);
+                }
+                change.setJobs(jobs);
+
+                PerforceChangeLogEntry entry = new PerforceChangeLogEntry(set);
+                entry.setChange(change);
+                entries.add(entry);
+            }
+        } finally {
+            stream.close();
+        }
+        return set;
+    }
+
+    static int getActionCode(Changelist.FileEntry.Action action) throws IOException {
+        if (action == null) {
+            return 0;
+        }
+        Integer code = CODES_BY_ACTION.get(action);
+        if (code == null) {
+            throw new IOException("No code for file action " + action);
+        }
+        return code;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) (length - 1)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static String readPath(DataInputStream in, List<String> directories) throws IOException {
+        long id = readVarLong(in);
+        if (id == 0) {
+            return null;
+        }
+        String directory;
+        if (id == 1) {
+            directory = readString(in);
+            directories.add(directory);
+        } else if (id - 2 < directories.size()) {
+            directory = directories.get((int) (id - 2));
+        } else {
+            throw new IOException("Unknown directory " + (id - 2) + " in compact changelog");
+        }
+        return directory + readString(in);
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number in compact changelog");
+    }
+}
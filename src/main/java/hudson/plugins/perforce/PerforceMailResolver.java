@@ -1,5 +1,6 @@
 package hudson.plugins.perforce;
 
+import com.tek42.perforce.Depot;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -45,6 +46,12 @@ public class PerforceMailResolver extends MailAddressResolver {
                 return puprop.getPerforceEmail();
             }
         }
+        // Users of builds since the start of Jenkins are known without asking the servers
+        com.tek42.perforce.model.User loaded = PerforceUserDirectory.findLoadedUser(perforceId);
+        if (loaded != null) {
+            LOGGER.fine("Got email (" + loaded.getEmail() + ") from the loaded users for " + perforceId);
+            return loaded.getEmail() != null && !loaded.getEmail().equals("") ? loaded.getEmail() : null;
+        }
         for (AbstractProject p : Hudson.getInstance().getAllItems(AbstractProject.class)) {
             if (!(p instanceof TopLevelItem)) continue;
             if (p.isDisabled()) continue;
@@ -72,7 +79,8 @@ public class PerforceMailResolver extends MailAddressResolver {
                     com.tek42.perforce.model.User pu;
                     try {
                         LOGGER.finer("Trying to get email address from perforce for " + perforceId);
-                        pu = pscm.getDepot(launcher, workspace, p, null, node).getUsers().getUser(perforceId);
+                        Depot depot = pscm.getDepot(launcher, workspace, p, null, node);
+                        pu = PerforceUserDirectory.get(depot).getUser(depot, perforceId);
                         if (pu != null && pu.getEmail() != null && !pu.getEmail().equals("")) {
                             LOGGER.fine("Got email (" + pu.getEmail() + ") from perforce for " + perforceId);
                             return pu.getEmail();
@@ -7,6 +7,7 @@ import com.tek42.perforce.model.Changelist;
 import com.tek42.perforce.model.Counter;
 import com.tek42.perforce.model.Label;
 import com.tek42.perforce.model.Workspace;
+import com.tek42.perforce.parse.Changes;
 import com.tek42.perforce.parse.Counters;
 import com.tek42.perforce.parse.Workspaces;
 import com.tek42.perforce.model.Changelist.FileEntry;
@@ -47,13 +48,19 @@ import org.kohsuke.stapler.StaplerRequest;
 import javax.servlet.ServletException;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.StringWriter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -105,6 +112,18 @@ public class PerforceSCM extends SCM {
 
     private static final int MAX_BUILD_ENV_VARS_NESTED_CALLS = 4;
 
+    /**
+     * Retrieves changelogs concurrently with the workspace sync.
+     */
+    private static final ExecutorService CHANGELOG_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicLong counter = new AtomicLong();
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Perforce changelog retriever #" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     /**
      * Name of the p4 tool installation
      */
@@ -463,7 +482,8 @@ public class PerforceSCM extends SCM {
      * this protected to enable that.
      *
      * Always create a new Depot to reflect any changes to the machines that
-     * P4 actions will be performed on.
+     * P4 actions will be performed on. The connection settings of depots
+     * created without a build are cached, see {@link ConnectionProfile}.
      *
      * @param node the value of node
      * @exception ParameterSubstitutionException
@@ -477,23 +497,50 @@ public class PerforceSCM extends SCM {
 
         Depot depot = new Depot(p4Factory);
 
-        depot.setClient(MacroStringHelper.substituteParameters(p4Client, this, build, project, node, null));
-        depot.setUser(MacroStringHelper.substituteParameters(getEffectiveP4User(), this, build, project, node, null));
-        depot.setPort(MacroStringHelper.substituteParameters(p4Port, this, build, project, node, null));
-
+        ConnectionProfile profile;
         if (build != null) { // We can retrieve all parameters from the build's environment
-            depot.setPassword(getDecryptedP4Passwd(build));
-        } else { // project can be null
-            depot.setPassword(project != null ? getDecryptedP4Passwd(project, node) : getDecryptedP4Passwd());
+            profile = createConnectionProfile(project, build, node);
+        } else {
+            // Polling and validation create depots over and over again
+            String key = ConnectionProfile.getKey(project != null ? project.getFullName() : null,
+                    node != null ? node.getNodeName() : null, Computer.currentComputer());
+            profile = ConnectionProfile.get(this, key);
+            if (profile == null) {
+                profile = createConnectionProfile(project, null, node);
+                ConnectionProfile.put(this, key, profile);
+            }
         }
+        profile.applyTo(depot);
 
         if (p4Ticket != null && !p4Ticket.equals(""))
             depot.setP4Ticket(p4Ticket);
 
+        return depot;
+    }
+
+    /**
+     * Computes the connection settings for {@link #getDepot}.
+     */
+    @Nonnull
+    private ConnectionProfile createConnectionProfile(@CheckForNull AbstractProject project,
+            @CheckForNull AbstractBuild build, @CheckForNull Node node)
+            throws ParameterSubstitutionException, InterruptedException {
+        String client = MacroStringHelper.substituteParameters(p4Client, this, build, project, node, null);
+        String user = MacroStringHelper.substituteParameters(getEffectiveP4User(), this, build, project, node, null);
+        String port = MacroStringHelper.substituteParameters(p4Port, this, build, project, node, null);
+
+        String password;
+        if (build != null) {
+            password = getDecryptedP4Passwd(build);
+        } else { // project can be null
+            password = project != null ? getDecryptedP4Passwd(project, node) : getDecryptedP4Passwd();
+        }
+
+        String executable;
         if (node == null)
-            depot.setExecutable(getP4Executable(p4Tool));
+            executable = getP4Executable(p4Tool);
         else
-            depot.setExecutable(getP4Executable(p4Tool,node,TaskListener.NULL));
+            executable = getP4Executable(p4Tool,node,TaskListener.NULL);
 
         // Get systemDrive,systemRoot computer environment variables from
         // the current machine.
@@ -517,13 +564,9 @@ public class PerforceSCM extends SCM {
         } catch (Exception ex) {
             LOGGER.log(Level.WARNING, ex.getMessage(), ex);
         }
-        depot.setSystemDrive(systemDrive);
-        depot.setSystemRoot(systemRoot);
-
-        depot.setCharset(p4Charset);
-        depot.setCommandCharset(p4CommandCharset);
 
-        return depot;
+        return new ConnectionProfile(client, user, port, password, executable,
+                systemDrive, systemRoot, p4Charset, p4CommandCharset);
     }
 
     /**
@@ -762,18 +805,19 @@ public class PerforceSCM extends SCM {
     }
 
     private static void retrieveUserInformation(@Nonnull Depot depot,
-            @Nonnull List<Changelist> changes) throws PerforceException {
-        // uniqify in order to reduce number of calls to P4.
-        HashSet<String> users = new HashSet<String>();
-        for (Changelist change : changes) {
-            users.add(change.getUser());
-        }
+            @Nonnull Set<String> users) throws PerforceException {
+        PerforceUserDirectory directory = PerforceUserDirectory.get(depot);
         for (String user : users) {
             com.tek42.perforce.model.User pu;
             try {
-                 pu = depot.getUsers().getUser(user);
-            } catch (Exception e) {
-                throw new PerforceException("Problem getting user information for " + user,e);
+                pu = directory.getUser(depot, user);
+            } catch (PerforceException e) {
+                LOGGER.log(Level.FINE, "Cannot list users, asking for " + user + " only", e);
+                try {
+                    pu = depot.getUsers().getUser(user);
+                } catch (Exception ex) {
+                    throw new PerforceException("Problem getting user information for " + user, ex);
+                }
             }
             //If there is no such user in perforce, then ignore and keep going.
             if (pu == null) {
@@ -799,6 +843,90 @@ public class PerforceSCM extends SCM {
         }
     }
 
+    /**
+     * Describes the changes of a build, saves them to the changelog file and
+     * stores information about the committers. The files of a change are
+     * written while the description is read, so memory doesn't grow with the
+     * size of the changes.
+     */
+    private class ChangeLogTask implements Callable<Void> {
+        private final Depot depot;
+        private final List<Integer> changeNumbersTo;
+        private final File changelogFile;
+        private final BuildListener listener;
+
+        ChangeLogTask(Depot depot, List<Integer> changeNumbersTo, File changelogFile, BuildListener listener) {
+            this.depot = depot;
+            this.changeNumbersTo = changeNumbersTo;
+            this.changelogFile = changelogFile;
+            this.listener = listener;
+        }
+
+        public Void call() throws PerforceException, IOException, InterruptedException {
+            if (!changeNumbersTo.isEmpty()) {
+                // Save the changes we discovered. Each file is written as soon
+                // as it has been read from the description, only the committers are kept.
+                final Set<String> users = new HashSet<String>();
+                final PerforceChangeLogSet.ChangeWriter writer = PerforceChangeLogSet.createChangeLogWriter(
+                        changelogFile, PerforceSCM.getInstance().isCompactChangeLog());
+                try {
+                    Changes.ChangelistHandler handler = new Changes.ChangelistHandler() {
+                        public void startChange(Changelist change) throws IOException {
+                            users.add(change.getUser());
+                            writer.startChange(change);
+                        }
+
+                        public void addFile(Changelist.FileEntry file) throws IOException {
+                            writer.addFile(file);
+                        }
+
+                        public void endChange() throws IOException {
+                            writer.endChange();
+                        }
+                    };
+                    for (Integer number : changeNumbersTo) {
+                        depot.getChanges().getChangelist(number, fileLimit, handler);
+                    }
+                } finally {
+                    writer.close();
+                }
+                // Get and store information about committers
+                retrieveUserInformation(depot, users);
+            } else {
+                // No new changes discovered (though the definition of the workspace or label may have changed).
+                createEmptyChangeLog(changelogFile, listener, "changelog");
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the changelog retrieval started by the checkout.
+     */
+    private static void joinChangeLogTask(@Nonnull Future<Void> task)
+            throws PerforceException, IOException, InterruptedException {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PerforceException) {
+                throw (PerforceException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new PerforceException("Failed to retrieve the changelog", cause);
+        } catch (CancellationException e) {
+            throw new PerforceException("The changelog retrieval has been cancelled", e);
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            throw e;
+        }
+    }
+
     public static boolean isFileInView(String filename, String projectPath, boolean caseSensitive) {
         List<String> view = parseProjectPath(projectPath, "workspace");
         boolean inView = false;
@@ -864,6 +992,7 @@ public class PerforceSCM extends SCM {
 
         PrintStream log = listener.getLogger();
         changelogFilename = changelogFile.getAbsolutePath();
+        PerforceWarmPool.recordDemand(build.getProject());
         // HACK: Force build env vars to initialize
         MacroStringHelper.substituteParameters("", this, build, null);
 
@@ -890,6 +1019,8 @@ public class PerforceSCM extends SCM {
                 "P4DISABLESYNC", build, this.disableSyncOnly);
         boolean oneChangelistOnly = overrideWithBooleanParameter(
                 "P4ONECHANGELIST", build, false);
+        boolean verifySync = overrideWithBooleanParameter(
+                "P4VERIFYSYNC", build, false);
 
         // If we're doing a matrix build, we should always force sync.
         if ((Object)build instanceof MatrixBuild || (Object)build instanceof MatrixRun) {
@@ -910,6 +1041,7 @@ public class PerforceSCM extends SCM {
             saveWorkspaceIfDirty(depot, p4workspace, log);
 
             //Wipe/clean workspace
+            boolean wiped = false;
             String p4config;
             WipeWorkspaceExcludeFilter wipeFilter;
             try {
@@ -929,22 +1061,43 @@ public class PerforceSCM extends SCM {
                 }
                 if (wipeBeforeBuild) {
                     log.println("Wiping workspace...");
-                    List<FilePath> workspaceDirs = workspace.list(wipeFilter);
-                    for (FilePath dir : workspaceDirs) {
-                        dir.deleteRecursive();
+                    Node buildNode = build.getBuiltOn();
+                    FilePath nodeRoot = buildNode != null ? buildNode.getRootPath() : null;
+                    if (getInstance().isWipeToTrash() && nodeRoot != null) {
+                        int deleted = WorkspaceTrash.wipe(workspace, nodeRoot, wipeFilter);
+                        if (deleted > 0) {
+                            log.println(deleted + " entries could not be moved to the trash and have been deleted.");
+                        }
+                    } else {
+                        List<FilePath> workspaceDirs = workspace.list(wipeFilter);
+                        for (FilePath dir : workspaceDirs) {
+                            dir.deleteRecursive();
+                        }
                     }
                     log.println("Wiped workspace.");
                     forceSync = true;
+                    wiped = true;
                 }
                 if (quickCleanBeforeBuild) {
                     QuickCleaner quickCleaner = new QuickCleaner(depot.getExecutable(), depot.getP4Ticket(), launcher, depot, workspace, wipeFilter);
-                    log.println("Quickly cleaning workspace...");
-                    quickCleaner.doClean();
-                    log.println("Workspace is clean.");
-                    if (restoreChangedDeletedFiles) {
-                        log.println("Restoring changed and deleted files...");
-                        quickCleaner.doRestore();
-                        log.println("Files restored.");
+                    int unrestored = 0;
+                    if (getInstance().isQuickCleanUsingReconcile()) {
+                        log.println("Quickly cleaning workspace using p4 reconcile...");
+                        unrestored = quickCleaner.doReconcileClean(restoreChangedDeletedFiles);
+                        log.println("Workspace is clean.");
+                    } else {
+                        log.println("Quickly cleaning workspace...");
+                        quickCleaner.doClean();
+                        log.println("Workspace is clean.");
+                        if (restoreChangedDeletedFiles) {
+                            log.println("Restoring changed and deleted files...");
+                            unrestored = quickCleaner.doRestore();
+                            log.println("Files restored.");
+                        }
+                    }
+                    if (unrestored > 0) {
+                        // The workspace doesn't match the depot, the build would use stale files
+                        throw new AbortException(unrestored + " changed or deleted files could not be restored, see the list above.");
                     }
                 }
                 long cleanEndTime = System.currentTimeMillis();
@@ -977,7 +1130,6 @@ public class PerforceSCM extends SCM {
             // Determine changeset number
             int newestChange = lastChange;
 
-            List<Changelist> changes;
             if (p4Label != null && !p4Label.trim().isEmpty()) {
                 newestChange = depot.getChanges().getHighestLabelChangeNumber(p4workspace, p4Label.trim(), p4WorkspacePath);
             } else {
@@ -1056,6 +1208,9 @@ public class PerforceSCM extends SCM {
             }
 
             // Get ChangeLog
+            // The changes are described concurrently with the sync, which
+            // syncs to the newest change found
+            Future<Void> changeLogTask = null;
             if (!disableChangeLogOnly) {
                 int lastChangeToDisplay = lastChange+1;
                 if (lastChange > newestChange) {
@@ -1070,65 +1225,100 @@ public class PerforceSCM extends SCM {
                 } else {
                     changeNumbersTo = depot.getChanges().getChangeNumbersInRange(p4workspace, lastChangeToDisplay, newestChange, showIntegChanges);
                 }
-                changes = depot.getChanges().getChangelistsFromNumbers(changeNumbersTo, fileLimit);
-
-                if (!changes.isEmpty()) {
-                    // Save the changes we discovered.
-                    PerforceChangeLogSet.saveToChangeLog(
-                            new FileOutputStream(changelogFile), changes);
-                    newestChange = changes.get(0).getChangeNumber();
-                    // Get and store information about committers
-                    retrieveUserInformation(depot, changes);
-                } else {
-                    // No new changes discovered (though the definition of the workspace or label may have changed).
-                    createEmptyChangeLog(changelogFile, listener, "changelog");
+                if (!changeNumbersTo.isEmpty()) {
+                    newestChange = changeNumbersTo.get(0);
                 }
+                changeLogTask = CHANGELOG_EXECUTOR.submit(new ChangeLogTask(depot, changeNumbersTo, changelogFile, listener));
             }
 
-            // Sync workspace
-            if (!disableSyncOnly) {
-                // Now we can actually do the sync process...
-                StringBuilder sbMessage = new StringBuilder("Sync'ing workspace to ");
-                StringBuilder sbSyncPath = new StringBuilder(p4WorkspacePath);
-                StringBuilder sbSyncPathSuffix = new StringBuilder();
-                sbSyncPathSuffix.append("@");
+            boolean synced = false;
+            try {
+                // Sync workspace
+                if (!disableSyncOnly) {
+                    // Now we can actually do the sync process...
+                    StringBuilder sbMessage = new StringBuilder("Sync'ing workspace to ");
+                    StringBuilder sbSyncPath = new StringBuilder(p4WorkspacePath);
+                    StringBuilder sbSyncPathSuffix = new StringBuilder();
+                    sbSyncPathSuffix.append("@");
+
+                    if (p4Label != null && !p4Label.trim().isEmpty()) {
+                        sbMessage.append("label ");
+                        sbMessage.append(p4Label);
+                        sbSyncPathSuffix.append(p4Label);
+                    } else {
+                        sbMessage.append("changelist ");
+                        sbMessage.append(newestChange);
+                        sbSyncPathSuffix.append(newestChange);
+                    }
 
-                if (p4Label != null && !p4Label.trim().isEmpty()) {
-                    sbMessage.append("label ");
-                    sbMessage.append(p4Label);
-                    sbSyncPathSuffix.append(p4Label);
-                } else {
-                    sbMessage.append("changelist ");
-                    sbMessage.append(newestChange);
-                    sbSyncPathSuffix.append(newestChange);
-                }
+                    sbSyncPath.append(sbSyncPathSuffix);
 
-                sbSyncPath.append(sbSyncPathSuffix);
+                    // Verified sync replaces the force sync unless the server must not be updated.
+                    // There is nothing to verify in a wiped workspace.
+                    WorkspaceVerifier verifier = null;
+                    boolean verifyForceSync = (forceSync || alwaysForceSync) && PerforceSCM.getInstance().isVerifyForceSync();
+                    if ((verifySync || verifyForceSync) && !wiped && !dontUpdateServer) {
+                        verifier = new WorkspaceVerifier(workspace, p4workspace);
+                    }
 
-                if (forceSync || alwaysForceSync)
-                    sbMessage.append(" (forcing sync of unchanged files).");
-                else
-                    sbMessage.append(".");
+                    if (verifier != null)
+                        sbMessage.append(" (verifying unchanged files).");
+                    else if (forceSync || alwaysForceSync)
+                        sbMessage.append(" (forcing sync of unchanged files).");
+                    else
+                        sbMessage.append(".");
 
-                log.println(sbMessage.toString());
-                String syncPath = sbSyncPath.toString();
+                    log.println(sbMessage.toString());
+                    String syncPath = sbSyncPath.toString();
 
-                long startTime = System.currentTimeMillis();
+                    long startTime = System.currentTimeMillis();
 
-                if (useViewMaskForSyncing && useViewMask) {
-                    for (String path : viewMask.replaceAll("\r", "").split("\n")) {
-                        StringBuilder sbMaskPath = new StringBuilder(path);
-                        sbMaskPath.append(sbSyncPathSuffix);
-                        String maskPath = sbMaskPath.toString();
-                        depot.getWorkspaces().syncTo(maskPath, forceSync || alwaysForceSync, dontUpdateServer);
+                    // The depot cache requires the have list to be updated
+                    DepotFileCache depotCache = null;
+                    if (!forceSync && !alwaysForceSync && !dontUpdateServer) {
+                        depotCache = DepotFileCache.forNode(build.getBuiltOn(), p4workspace);
                     }
-                } else {
-                    depot.getWorkspaces().syncTo(syncPath, forceSync || alwaysForceSync, dontUpdateServer);
+                    // The verifier records the files it checks itself
+                    SyncRecorder recorder = verifier == null ? new SyncRecorder() : null;
+
+                    if (useViewMaskForSyncing && useViewMask) {
+                        for (String path : viewMask.replaceAll("\r", "").split("\n")) {
+                            StringBuilder sbMaskPath = new StringBuilder(path);
+                            sbMaskPath.append(sbSyncPathSuffix);
+                            String maskPath = sbMaskPath.toString();
+                            if (verifier != null) {
+                                verifier.syncTo(depot, maskPath, log);
+                            } else if (depotCache != null) {
+                                depotCache.syncTo(depot, maskPath, log, recorder);
+                            } else {
+                                depot.getWorkspaces().syncTo(maskPath, forceSync || alwaysForceSync, dontUpdateServer, recorder);
+                            }
+                        }
+                    } else if (verifier != null) {
+                        verifier.syncTo(depot, syncPath, log);
+                    } else if (depotCache != null) {
+                        depotCache.syncTo(depot, syncPath, log, recorder);
+                    } else {
+                        depot.getWorkspaces().syncTo(syncPath, forceSync || alwaysForceSync, dontUpdateServer, recorder);
+                    }
+                    if (recorder != null) {
+                        recorder.record(workspace);
+                    }
+                    long endTime = System.currentTimeMillis();
+                    long duration = endTime - startTime;
+
+                    log.println("Sync complete, took " + duration + " ms");
+                }
+                synced = true;
+            } finally {
+                if (!synced && changeLogTask != null) {
+                    // The sync has failed, nobody waits for the changelog
+                    changeLogTask.cancel(true);
                 }
-                long endTime = System.currentTimeMillis();
-                long duration = endTime - startTime;
+            }
 
-                log.println("Sync complete, took " + duration + " ms");
+            if (changeLogTask != null) {
+                joinChangeLogTask(changeLogTask);
             }
 
             boolean doSaveProject = false;
@@ -1151,8 +1341,10 @@ public class PerforceSCM extends SCM {
 
             // Add tagging action that enables the user to create a label
             // for this build.
-            build.addAction(new PerforceTagAction(
-                build, depot, newestChange, effectiveProjectPath, MacroStringHelper.substituteParameters(getEffectiveP4User(), this, build, null)));
+            PerforceTagAction tagAction = new PerforceTagAction(
+                build, depot, newestChange, effectiveProjectPath, MacroStringHelper.substituteParameters(getEffectiveP4User(), this, build, null));
+            build.addAction(tagAction);
+            PerforceBuildIndex.forJob(build.getParent()).record(build, tagAction);
 
             build.addAction(new PerforceSCMRevisionState(newestChange));
 
@@ -1221,8 +1413,10 @@ public class PerforceSCM extends SCM {
                     // no changeset on parent, set it for other
                     // matrixruns to use
                     log.println("No change number has been set by parent/siblings. Using latest.");
-                    parentBuild.addAction(new PerforceTagAction(build, depot, newestChange, projectPath,
-                            MacroStringHelper.substituteParameters(getEffectiveP4User(), this, build, null)));
+                    PerforceTagAction tagAction = new PerforceTagAction(parentBuild, depot, newestChange, projectPath,
+                            MacroStringHelper.substituteParameters(getEffectiveP4User(), this, build, null));
+                    parentBuild.addAction(tagAction);
+                    PerforceBuildIndex.forJob(parentBuild.getParent()).record(parentBuild, tagAction);
                 }
             }
         }
@@ -1540,6 +1734,23 @@ public class PerforceSCM extends SCM {
         return matcher.matches();
     }
 
+    /**
+     * Creates or updates the client of a spare workspace and syncs it to head.
+     * @see PerforceWarmPool
+     */
+    void warmWorkspace(AbstractProject<?,?> project, Node node, FilePath workspace, TaskListener listener)
+            throws IOException, InterruptedException, PerforceException {
+        PrintStream log = listener.getLogger();
+        Launcher launcher = node.createLauncher(listener);
+        Depot depot = getDepot(launcher, workspace, project, null, node);
+        String effectiveProjectPath = MacroStringHelper.substituteParameters(projectPath, this, project, node, null);
+        Workspace p4workspace = getPerforceWorkspace(project, effectiveProjectPath, depot, node, null,
+                launcher, workspace, listener, false);
+        saveWorkspaceIfDirty(depot, p4workspace, log);
+        workspace.mkdirs();
+        depot.getWorkspaces().syncToHead("//" + p4workspace.getName() + "/...");
+    }
+
     private void flushWorkspaceTo0(Depot depot, Workspace p4workspace, PrintStream log) throws PerforceException {
         saveWorkspaceIfDirty(depot, p4workspace, log);
         depot.getWorkspaces().flushTo("//" + p4workspace.getName() + "/...#0");
@@ -1570,28 +1781,16 @@ public class PerforceSCM extends SCM {
     }
 
     private static int getLastChangeNoFirstChange(@CheckForNull Run build) {
-
-        // If we can't find a PerforceTagAction, we will default to 0.
-
-        PerforceTagAction action = getMostRecentTagAction(build);
-        if (action == null)
-            return 0;
-
-        //log.println("Found last change: " + action.getChangeNumber());
-        return action.getChangeNumber();
-    }
-
-    @CheckForNull
-    private static PerforceTagAction getMostRecentTagAction(@CheckForNull Run build) {
         if (build == null)
-            return null;
+            return 0;
 
-        PerforceTagAction action = build.getAction(PerforceTagAction.class);
-        if (action != null)
-            return action;
+        // If we can't find a build with a PerforceTagAction, we will default to 0.
+        PerforceBuildIndex.Entry entry = PerforceBuildIndex.forJob(build.getParent()).getLastBuilt(build);
+        if (entry == null)
+            return 0;
 
-        // if build had no actions, keep going back until we find one that does.
-        return getMostRecentTagAction(build.getPreviousBuild());
+        //log.println("Found last change: " + entry.getChangeNumber());
+        return entry.getChangeNumber();
     }
 
     private com.tek42.perforce.model.Workspace getPerforceWorkspace(AbstractProject project, String projectPath,
@@ -1657,6 +1856,12 @@ public class PerforceSCM extends SCM {
 
         p4workspace.setName(effectiveP4Client);
 
+        // Mark new clients, so that they can be deleted once they are not used anymore
+        if (creatingNewWorkspace) {
+            p4workspace.setDescription(PerforceClientCollector.getClientMarker(project.getFullName(),
+                    buildNode != null ? buildNode.getNodeName() : null));
+        }
+
         // Set the workspace options according to the configuration
         if (projectOptions != null)
             p4workspace.setOptions(projectOptions);
@@ -1865,8 +2070,32 @@ public class PerforceSCM extends SCM {
         private @CheckForNull String p4DefaultUser;
         private @CheckForNull String p4DefaultPassword;
 
+        /**Replaces force syncs by a verification of local files*/
+        private boolean verifyForceSync;
+        /**Enables the node-local depot file cache*/
+        private boolean depotCacheEnabled;
+        private @CheckForNull String depotCacheDir;
+        /**Quota of the depot file cache in megabytes*/
+        private @CheckForNull Integer depotCacheQuota;
+        /**Writes changelogs in the compact binary format*/
+        private boolean compactChangeLog;
+        /**Deletes clients of removed jobs, nodes and workspaces periodically*/
+        private boolean clientCollectorEnabled;
+        /**Only reports the clients, which would be deleted*/
+        private boolean clientCollectorDryRun;
+        private @CheckForNull Integer clientCollectorMaxDeletions;
+        /**Maximum number of spare workspaces per job and node*/
+        private int warmPoolSize;
+        /**Moves wiped workspaces into a trash directory, which is purged in the background*/
+        private boolean wipeToTrash;
+        /**Quick clean asks the server for changed and untracked files with p4 reconcile*/
+        private boolean quickCleanUsingReconcile;
+
         private final static int P4_INFINITE_TIMEOUT_SEC = 0;
         private final static int P4_MINIMAL_TIMEOUT_SEC = 30;
+        private final static String DEFAULT_DEPOT_CACHE_DIR = "perforce-depot-cache";
+        private final static int DEFAULT_DEPOT_CACHE_QUOTA_MB = 10240;
+        private final static int DEFAULT_CLIENT_COLLECTOR_MAX_DELETIONS = 20;
 
         public PerforceSCMDescriptor() {
             super(PerforceSCM.class, PerforceRepositoryBrowser.class);
@@ -1975,6 +2204,100 @@ public class PerforceSCM extends SCM {
             return p4DefaultUser;
         }
 
+        /**
+         * Checks if force syncs should only transfer files, which differ from the depot.
+         * @since 1.3.37
+         */
+        public boolean isVerifyForceSync() {
+            return verifyForceSync;
+        }
+
+        /**
+         * Checks if workspaces should be populated from the node-local depot file cache.
+         * @since 1.3.37
+         */
+        public boolean isDepotCacheEnabled() {
+            return depotCacheEnabled;
+        }
+
+        /**
+         * Gets the directory of the depot file cache.
+         * @return Path, which is relative to the root directory of the node or absolute
+         * @since 1.3.37
+         */
+        public @Nonnull String getDepotCacheDir() {
+            return depotCacheDir != null ? depotCacheDir : DEFAULT_DEPOT_CACHE_DIR;
+        }
+
+        /**
+         * Gets the quota of the depot file cache.
+         * @return Quota in megabytes
+         * @since 1.3.37
+         */
+        public int getDepotCacheQuota() {
+            return depotCacheQuota != null ? depotCacheQuota : DEFAULT_DEPOT_CACHE_QUOTA_MB;
+        }
+
+        /**
+         * Checks if changelogs of new builds should be written in the compact binary format.
+         * @since 1.3.37
+         */
+        public boolean isCompactChangeLog() {
+            return compactChangeLog;
+        }
+
+        /**
+         * Checks if clients of removed jobs, nodes and workspaces should be deleted.
+         * @since 1.3.37
+         */
+        public boolean isClientCollectorEnabled() {
+            return clientCollectorEnabled;
+        }
+
+        /**
+         * Checks if the client collector should only report clients instead of deleting them.
+         * @since 1.3.37
+         */
+        public boolean isClientCollectorDryRun() {
+            return clientCollectorDryRun;
+        }
+
+        /**
+         * Gets the maximum number of clients deleted by one run of the client collector.
+         * @since 1.3.37
+         */
+        public int getClientCollectorMaxDeletions() {
+            return clientCollectorMaxDeletions != null ? clientCollectorMaxDeletions : DEFAULT_CLIENT_COLLECTOR_MAX_DELETIONS;
+        }
+
+        /**
+         * Gets the maximum number of spare workspaces, which are kept synced for
+         * each concurrent job and node.
+         * @return Zero if the pool is disabled
+         * @since 1.3.37
+         */
+        public int getWarmPoolSize() {
+            return warmPoolSize;
+        }
+
+        /**
+         * Checks if wiped workspace content should be moved to the trash directory
+         * of the node instead of being deleted before the build.
+         * @since 1.3.37
+         */
+        public boolean isWipeToTrash() {
+            return wipeToTrash;
+        }
+
+        /**
+         * Checks if the quick clean should let the server find untracked,
+         * changed and deleted files with p4 reconcile.
+         * @since 1.3.37
+         */
+        public boolean isQuickCleanUsingReconcile() {
+            return quickCleanUsingReconcile;
+        }
+
         /**
          * Checks if plugin has ReadLine timeout.
          * @since 1.4.0
@@ -1988,6 +2311,9 @@ public class PerforceSCM extends SCM {
             p4ClientPattern = Util.fixEmpty(req.getParameter("p4.clientPattern").trim());
             p4DefaultUser = Util.fixEmptyAndTrim(req.getParameter("p4.defaultUser"));
             setDefaultP4Passwd(Util.fixEmptyAndTrim(req.getParameter("p4.defaultPassword")));
+            // Default credentials and tools may have changed
+            ConnectionProfile.clear();
+            ValidationCache.clear();
 
             passwordExposeDisabled = json.getBoolean("passwordExposeDisabled");
 
@@ -2004,6 +2330,52 @@ public class PerforceSCM extends SCM {
                 }
             }
 
+            verifyForceSync = json.optBoolean("verifyForceSync");
+
+            // Depot file cache
+            depotCacheEnabled = json.optBoolean("depotCacheEnabled");
+            depotCacheDir = Util.fixEmptyAndTrim(req.getParameter("p4.depotCacheDir"));
+            depotCacheQuota = null;
+            String depotCacheQuotaStr = Util.fixEmptyAndTrim(req.getParameter("p4.depotCacheQuota"));
+            if (depotCacheQuotaStr != null) {
+                try {
+                    int val = Integer.parseInt(depotCacheQuotaStr);
+                    depotCacheQuota = val > 0 ? val : null;
+                } catch (NumberFormatException ex) {
+                    //Do nothing - just ignore user's value
+                }
+            }
+
+            compactChangeLog = json.optBoolean("compactChangeLog");
+
+            // Client collector
+            clientCollectorEnabled = json.optBoolean("clientCollectorEnabled");
+            clientCollectorDryRun = json.optBoolean("clientCollectorDryRun");
+            clientCollectorMaxDeletions = null;
+            String maxDeletionsStr = Util.fixEmptyAndTrim(req.getParameter("p4.clientCollectorMaxDeletions"));
+            if (maxDeletionsStr != null) {
+                try {
+                    int val = Integer.parseInt(maxDeletionsStr);
+                    clientCollectorMaxDeletions = val > 0 ? val : null;
+                } catch (NumberFormatException ex) {
+                    //Do nothing - just ignore user's value
+                }
+            }
+
+            wipeToTrash = json.optBoolean("wipeToTrash");
+            quickCleanUsingReconcile = json.optBoolean("quickCleanUsingReconcile");
+
+            // Warm workspace pool
+            warmPoolSize = 0;
+            String warmPoolSizeStr = Util.fixEmptyAndTrim(req.getParameter("p4.warmPoolSize"));
+            if (warmPoolSizeStr != null) {
+                try {
+                    warmPoolSize = Math.max(0, Integer.parseInt(warmPoolSizeStr));
+                } catch (NumberFormatException ex) {
+                    //Do nothing - just ignore user's value
+                }
+            }
+
             save();
             return true;
         }
@@ -2103,7 +2475,15 @@ public class PerforceSCM extends SCM {
         /**
          * Checks if the perforce login credentials are good.
          */
-        public FormValidation doValidatePerforceLogin(StaplerRequest req) {
+        public FormValidation doValidatePerforceLogin(final StaplerRequest req) {
+            return ValidationCache.validate(ValidationCache.getKey(req, "login"), new Callable<FormValidation>() {
+                public FormValidation call() {
+                    return checkPerforceLogin(req);
+                }
+            });
+        }
+
+        private FormValidation checkPerforceLogin(StaplerRequest req) {
             Depot depot = getDepotFromRequest(req);
             if (depot != null) {
                 try {
@@ -2123,25 +2503,34 @@ public class PerforceSCM extends SCM {
          * to get the clarification of forbidden variables.
          * An improper usage of the variable may corrupt Perforce workspaces in project builds.
          */
-        public FormValidation doValidateP4Client(StaplerRequest req) {
+        public FormValidation doValidateP4Client(final StaplerRequest req) {
             String workspace = Util.fixEmptyAndTrim(req.getParameter("client"));
             if (workspace == null) {
                 return FormValidation.error("You must enter a workspaces name");
             }
-            try {
-                // Check P4 client pattern first, because workspace check fails on valid client names with variables
-                if (!workspace.matches(getP4ClientPattern())) {
-                    return FormValidation.error("Client name doesn't meet global pattern: "+getP4ClientPattern());
+            // Check P4 client pattern first, because workspace check fails on valid client names with variables
+            if (!workspace.matches(getP4ClientPattern())) {
+                return FormValidation.error("Client name doesn't meet global pattern: "+getP4ClientPattern());
+            }
+
+            // Check forbidden variables
+            for (String variableName : P4CLIENT_FORBIDDEN_VARIABLES) {
+                if (MacroStringHelper.containsVariable(workspace, variableName)) {
+                    return FormValidation.error(hudson.plugins.perforce.Messages.
+                            PerforceSCM_doValidateP4Client_forbiddenVariableError(variableName));
                 }
+            }
 
-                // Check forbidden variables
-                for (String variableName : P4CLIENT_FORBIDDEN_VARIABLES) {
-                    if (MacroStringHelper.containsVariable(workspace, variableName)) {
-                        return FormValidation.error(hudson.plugins.perforce.Messages.
-                                PerforceSCM_doValidateP4Client_forbiddenVariableError(variableName));
-                    }
+            final String client = workspace;
+            return ValidationCache.validate(ValidationCache.getKey(req, "client", client), new Callable<FormValidation>() {
+                public FormValidation call() {
+                    return checkP4Client(req, client);
                 }
+            });
+        }
 
+        private FormValidation checkP4Client(StaplerRequest req, String workspace) {
+            try {
                 // Then, check depot
                 Depot depot = getDepotFromRequest(req);
                 if (depot == null) {
@@ -2168,11 +2557,19 @@ public class PerforceSCM extends SCM {
         /**
          * Performs syntactical check on the P4Label
          */
-        public FormValidation doValidateP4Label(StaplerRequest req, @QueryParameter String label) throws IOException, ServletException {
-            label = Util.fixEmptyAndTrim(label);
-            if (label == null)
+        public FormValidation doValidateP4Label(final StaplerRequest req, @QueryParameter String label) throws IOException, ServletException {
+            final String p4Label = Util.fixEmptyAndTrim(label);
+            if (p4Label == null)
                 return FormValidation.ok();
 
+            return ValidationCache.validate(ValidationCache.getKey(req, "label", p4Label), new Callable<FormValidation>() {
+                public FormValidation call() {
+                    return checkP4Label(req, p4Label);
+                }
+            });
+        }
+
+        private FormValidation checkP4Label(StaplerRequest req, String label) {
             Depot depot = getDepotFromRequest(req);
             if (depot != null) {
                 try {
@@ -2190,11 +2587,19 @@ public class PerforceSCM extends SCM {
         /**
          * Performs syntactical and permissions check on the P4Counter
          */
-        public FormValidation doValidateP4Counter(StaplerRequest req, @QueryParameter String counter) {
-            counter= Util.fixEmptyAndTrim(counter);
-            if (counter == null)
+        public FormValidation doValidateP4Counter(final StaplerRequest req, @QueryParameter String counter) {
+            final String p4Counter = Util.fixEmptyAndTrim(counter);
+            if (p4Counter == null)
                 return FormValidation.ok();
 
+            return ValidationCache.validate(ValidationCache.getKey(req, "counter", p4Counter), new Callable<FormValidation>() {
+                public FormValidation call() {
+                    return checkP4Counter(req, p4Counter);
+                }
+            });
+        }
+
+        private FormValidation checkP4Counter(StaplerRequest req, String counter) {
             Depot depot = getDepotFromRequest(req);
             if (depot != null) {
                 try {
@@ -2237,7 +2642,16 @@ public class PerforceSCM extends SCM {
         /**
          * Checks to see if the specified ClientSpec is valid.
          */
-        public FormValidation doValidateClientSpec(StaplerRequest req) throws IOException, ServletException {
+        public FormValidation doValidateClientSpec(final StaplerRequest req) throws IOException, ServletException {
+            String key = ValidationCache.getKey(req, "clientSpec", req.getParameter("clientSpec"), req.getParameter("client"));
+            return ValidationCache.validate(key, new Callable<FormValidation>() {
+                public FormValidation call() {
+                    return checkClientSpec(req);
+                }
+            });
+        }
+
+        private FormValidation checkClientSpec(StaplerRequest req) {
             Depot depot = getDepotFromRequest(req);
             if (depot == null) {
                 return FormValidation.error(
@@ -2278,7 +2692,16 @@ public class PerforceSCM extends SCM {
         /**
          * Checks if the specified stream is valid.
          */
-        public FormValidation doValidateStream(StaplerRequest req) throws IOException, ServletException {
+        public FormValidation doValidateStream(final StaplerRequest req) throws IOException, ServletException {
+            String key = ValidationCache.getKey(req, "stream", req.getParameter("stream"), req.getParameter("client"));
+            return ValidationCache.validate(key, new Callable<FormValidation>() {
+                public FormValidation call() {
+                    return checkStream(req);
+                }
+            });
+        }
+
+        private FormValidation checkStream(StaplerRequest req) {
             Depot depot = getDepotFromRequest(req);
             if (depot == null) {
                 return FormValidation.error(
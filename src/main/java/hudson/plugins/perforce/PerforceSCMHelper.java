@@ -9,6 +9,7 @@ import java.util.StringTokenizer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.InputStream;
 import java.util.regex.*;
 import java.util.Map;
@@ -132,11 +133,67 @@ public final class PerforceSCMHelper {
     static private String readPythonString(InputStream stream) throws IOException {
         int length = (int)readInt(stream);
         byte[] buf = new byte[length];
-        stream.read(buf, 0, length);
+        // Streams of running processes may return less than requested
+        for (int offset = 0, read; offset < length; offset += read) {
+            read = stream.read(buf, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("Truncated p4 -G output");
+            }
+        }
         String result = new String(buf);
         return result;
     }
 
+    /**
+     * Reads the next dictionary of a <tt>p4 -G</tt> output stream.
+     * Unlike {@link #parseDictionaries(byte[], String...)}, error records are returned as they are.
+     * @param stream Output of the command, should be buffered
+     * @return The dictionary or null at the end of the stream
+     * @throws IOException The output cannot be read or parsed
+     */
+    static public Map<String,String> readDictionary(InputStream stream) throws IOException {
+        return readPythonDictionary(stream);
+    }
+
+    /**
+     * Parses the output of a <tt>p4 -G</tt> command into a list of dictionaries.
+     * Error records are skipped unless they are fatal.
+     * @param output Raw output of the command
+     * @param ignoredErrors Error messages which are not fatal (e.g. "no such file(s)")
+     * @return List of dictionaries in the order of the output
+     * @throws PerforceException The output cannot be parsed or contains a fatal error
+     */
+    static public List<Map<String,String>> parseDictionaries(byte[] output, String ... ignoredErrors) throws PerforceException {
+        ByteArrayInputStream stream = new ByteArrayInputStream(output);
+        ArrayList<Map<String,String>> result = new ArrayList<Map<String,String>>();
+        Map<String,String> map;
+        try{
+            while((map = readPythonDictionary(stream)) != null) {
+                if("error".equals(map.get("code"))){
+                    String data = map.get("data");
+                    LOGGER.log(Level.FINE, "P4 -G Parsing Error: "+data);
+                    boolean ignored = false;
+                    if (data != null) {
+                        for (String ignoredError : ignoredErrors) {
+                            if (data.contains(ignoredError)) {
+                                ignored = true;
+                                break;
+                            }
+                        }
+                    }
+                    if (!ignored) {
+                        throw new PerforceException("P4 Parsing Error: "+data);
+                    }
+                    continue;
+                }
+                result.add(map);
+            }
+        } catch (IOException e) {
+            throw new PerforceException("Could not parse p4 -G output.", e);
+        }
+        return result;
+    }
+
     static public List<WhereMapping> parseWhereMapping(byte[] whereOutput) throws PerforceException {
         String depot;
         String workspace;
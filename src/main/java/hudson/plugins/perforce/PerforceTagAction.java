@@ -6,6 +6,9 @@ import com.tek42.perforce.model.Label;
 import static hudson.Util.fixNull;
 import hudson.model.AbstractBuild;
 import hudson.model.Action;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.plugins.perforce.utils.ParameterSubstitutionException;
 import hudson.scm.AbstractScmTagAction;
 import hudson.security.Permission;
 import hudson.util.FormValidation;
@@ -18,6 +21,8 @@ import java.util.ArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.export.Exported;
@@ -30,41 +35,52 @@ import org.kohsuke.stapler.export.ExportedBean;
  */
 @ExportedBean
 public class PerforceTagAction extends AbstractScmTagAction {
+    private static final Logger LOGGER = Logger.getLogger(PerforceTagAction.class.getName());
+
     private final int changeNumber;
-    private Depot depot;
+    /**Used to be persisted with every build, rebuilt from the SCM now*/
+    @Deprecated
+    private transient Depot depot;
+    private transient Depot cachedDepot;
     private List<PerforceTag> tags = new ArrayList<PerforceTag>();
     @Deprecated
     private transient String tag;
     @Deprecated
     private transient String desc;
+    /**View, persisted by old versions and if it could not be put into the {@link PerforceViewStore}*/
     private String view;
+    /**Digest of the view in the {@link PerforceViewStore}*/
+    private String viewDigest;
+    private transient String cachedView;
     private String owner;
 
     public PerforceTagAction(AbstractBuild build, Depot depot, int changeNumber, String views, String owner) {
         super(build);
-        this.depot = depot;
+        this.cachedDepot = depot;
         this.changeNumber = changeNumber;
-        this.view = views;
+        setView(views);
         this.owner = owner;
     }
 
     public PerforceTagAction(AbstractBuild build, Depot depot, String label, String views, String owner) {
         super(build);
-        this.depot = depot;
+        this.cachedDepot = depot;
         this.changeNumber = -1;
         this.tag = label;
         this.tags.add(new PerforceTag(label,""));
-        this.view = views;
+        setView(views);
         this.owner = owner;
     }
 
     public PerforceTagAction(PerforceTagAction tga) {
         super(tga.build);
-        this.depot = tga.depot;
+        this.cachedDepot = tga.cachedDepot;
         this.changeNumber = tga.changeNumber;
         this.tag = tga.tag;
         this.tags.addAll(tga.getTags());
         this.view = tga.view;
+        this.viewDigest = tga.viewDigest;
+        this.cachedView = tga.cachedView;
         this.owner = tga.owner;
     }
 
@@ -74,7 +90,29 @@ public class PerforceTagAction extends AbstractScmTagAction {
     }
 
     public String getView() {
-        return view;
+        if (view != null) {
+            return view;
+        }
+        if (cachedView == null && viewDigest != null) {
+            cachedView = PerforceViewStore.get(build.getParent().getRootDir(), viewDigest);
+        }
+        return cachedView;
+    }
+
+    /**
+     * @return Digest of the view in the {@link PerforceViewStore} of the job,
+     *         null if the build record contains the view
+     */
+    @CheckForNull
+    String getViewDigest() {
+        return viewDigest;
+    }
+
+    private void setView(String views) {
+        viewDigest = views != null ? PerforceViewStore.put(build.getParent().getRootDir(), build.getNumber(), views) : null;
+        // Keeps the view in the build record if the store is not available
+        view = viewDigest == null ? views : null;
+        cachedView = views;
     }
 
     public String getIconFileName() {
@@ -114,8 +152,35 @@ public class PerforceTagAction extends AbstractScmTagAction {
         this.owner = owner;
     }
 
+    /**
+     * Gets the depot of the build. After a restart the depot is created from
+     * the current configuration of the job.
+     * @return null if the job doesn't use Perforce anymore
+     */
+    @CheckForNull
     public Depot getDepot() {
-        return depot;
+        try {
+            return getOrCreateDepot();
+        } catch (ParameterSubstitutionException ex) {
+            LOGGER.log(Level.WARNING, "Cannot create the depot for " + build, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    @CheckForNull
+    private synchronized Depot getOrCreateDepot() throws ParameterSubstitutionException, InterruptedException {
+        if (cachedDepot == null) {
+            PerforceSCM scm = getSCM();
+            if (scm == null) {
+                return null;
+            }
+            Hudson hudson = Hudson.getInstance();
+            cachedDepot = scm.getDepot(hudson.createLauncher(TaskListener.NULL), hudson.getRootPath(),
+                    build.getProject(), build, null);
+        }
+        return cachedDepot;
     }
 
     public List<PerforceTag> getTags() {
@@ -186,12 +251,14 @@ public class PerforceTagAction extends AbstractScmTagAction {
         if(owner!=null && !owner.equals("")) label.setOwner(owner);
 
         PerforceSCM scm = getSCM();
-        if(scm != null){
-            depot.setPassword(scm.getDecryptedP4Passwd(this.getBuild().getProject(), this.getBuild().getBuiltOn()));
+        Depot depot = getOrCreateDepot();
+        if(scm == null || depot == null){
+            throw new IOException("Failed to issue perforce label. The project doesn't use Perforce anymore.");
         }
+        depot.setPassword(scm.getDecryptedP4Passwd(this.getBuild().getProject(), this.getBuild().getBuiltOn()));
 
         //Only take the depot paths and add them to the view.
-        List<String> viewPairs = PerforceSCM.parseProjectPath(view, "workspace");
+        List<String> viewPairs = PerforceSCM.parseProjectPath(getView(), "workspace");
         for (int i=0; i < viewPairs.size(); i+=2){
             String depotPath = viewPairs.get(i);
             label.addView(depotPath);
@@ -203,7 +270,12 @@ public class PerforceTagAction extends AbstractScmTagAction {
             throw new IOException("Failed to issue perforce label." + e.getMessage());
         }
         tags.add(new PerforceTag(tagname,description));
+        if (view != null && viewDigest == null) {
+            // Moves the view of an old record into the store
+            setView(view);
+        }
         build.save();
+        PerforceBuildIndex.forJob(build.getParent()).record(build, this);
     }
     
     @SuppressWarnings( "deprecation" )
@@ -216,6 +288,13 @@ public class PerforceTagAction extends AbstractScmTagAction {
                 tags.add(new PerforceTag(tag,desc));
             }
         }
+
+        // Records of older versions contain the whole depot and view.
+        // The view is moved into the store when the build is saved again.
+        depot = null;
+        if (view != null) {
+            view = PerforceViewStore.share(view);
+        }
         
         return this;
     }
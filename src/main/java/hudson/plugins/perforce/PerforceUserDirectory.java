@@ -0,0 +1,160 @@
+package hudson.plugins.perforce;
+
+import com.tek42.perforce.Depot;
+import com.tek42.perforce.PerforceException;
+import com.tek42.perforce.model.User;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+
+/**
+ * Users of a Perforce server, loaded with a single <tt>p4 -G users</tt>.
+ * <p>
+ * Checkout looks up the submitters of new changes here instead of running
+ * <tt>p4 users</tt> and <tt>p4 user -o</tt> for each of them, and the mail
+ * resolver takes the addresses from the loaded directories without starting
+ * any process. The list is loaded again when it is older than a few minutes
+ * or a user is missing; only users whose <tt>Update</tt> time changed are
+ * replaced. A user, which is still missing after loading the list, doesn't
+ * cause further loads until the list is refreshed anyway. If the list
+ * cannot be loaded, the previous list is kept, and the server isn't asked
+ * again for a few minutes.
+ *
+ * @since 1.3.37
+ */
+final class PerforceUserDirectory {
+
+    private static final Logger LOGGER = Logger.getLogger(PerforceUserDirectory.class.getName());
+
+    /**Age of the list after which it is loaded again*/
+    private static final long REFRESH_MILLIS = 5 * 60 * 1000;
+    /**Minimum age of the list before it is loaded again for an unknown user*/
+    private static final long MIN_REFRESH_MILLIS = 30 * 1000;
+    /**Time after a failed load, in which the list isn't loaded again*/
+    static final long FAILURE_BACKOFF_MILLIS = 5 * 60 * 1000;
+    private static final int MAX_MISSING_USERS = 1000;
+
+    /**Directories by server*/
+    private static final ConcurrentMap<String, PerforceUserDirectory> DIRECTORIES = new ConcurrentHashMap<String, PerforceUserDirectory>();
+
+    private static final class Entry {
+        final String update;
+        final User user;
+
+        Entry(String update, User user) {
+            this.update = update;
+            this.user = user;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> users = new ConcurrentHashMap<String, Entry>();
+    /**Users, which were not in the last list loaded for them*/
+    private final Set<String> missing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**Time the list was loaded, package-private for tests*/
+    volatile long loaded;
+    /**Time the list could not be loaded, package-private for tests*/
+    volatile long failed;
+    private volatile String failure;
+
+    private PerforceUserDirectory() {
+    }
+
+    /**
+     * Gets the directory of the server of the depot.
+     */
+    static PerforceUserDirectory get(Depot depot) {
+        String port = depot.getPort();
+        PerforceUserDirectory directory = DIRECTORIES.get(port);
+        if (directory == null) {
+            DIRECTORIES.putIfAbsent(port, new PerforceUserDirectory());
+            directory = DIRECTORIES.get(port);
+        }
+        return directory;
+    }
+
+    /**
+     * Looks the user up in the directories, which have been loaded already.
+     * @return The user, null if no server is known to have the user
+     */
+    static @CheckForNull User findLoadedUser(String name) {
+        for (PerforceUserDirectory directory : DIRECTORIES.values()) {
+            Entry entry = directory.users.get(name);
+            if (entry != null) {
+                return entry.user;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets a user, loads the list of users first if needed.
+     * @return The user, null if there is no such user
+     */
+    @CheckForNull User getUser(Depot depot, String name) throws PerforceException {
+        long now = System.currentTimeMillis();
+        long age = now - loaded;
+        boolean unknown = !users.containsKey(name) && !missing.contains(name);
+        if (age > REFRESH_MILLIS || (unknown && age > MIN_REFRESH_MILLIS)) {
+            if (now - failed > FAILURE_BACKOFF_MILLIS) {
+                refresh(depot);
+            } else if (loaded == 0) {
+                throw new PerforceException("Cannot list users: " + failure);
+            }
+        }
+        Entry entry = users.get(name);
+        if (entry == null && loaded != 0) {
+            if (missing.size() >= MAX_MISSING_USERS) {
+                missing.clear();
+            }
+            missing.add(name);
+        }
+        return entry != null ? entry.user : null;
+    }
+
+    private synchronized void refresh(Depot depot) throws PerforceException {
+        long now = System.currentTimeMillis();
+        if (now - loaded <= MIN_REFRESH_MILLIS || now - failed <= FAILURE_BACKOFF_MILLIS) {
+            // Loaded or failed by another thread meanwhile
+            return;
+        }
+        List<Map<String, String>> records;
+        try {
+            records = depot.getUsers().getUserRecords();
+        } catch (PerforceException e) {
+            failed = System.currentTimeMillis();
+            failure = e.getMessage();
+            if (loaded == 0) {
+                throw e;
+            }
+            LOGGER.log(Level.WARNING, "Cannot list users, keeping the previous list", e);
+            return;
+        }
+        Set<String> names = new HashSet<String>();
+        for (Map<String, String> record : records) {
+            String name = record.get("User");
+            if (name == null) {
+                continue;
+            }
+            names.add(name);
+            String update = record.get("Update");
+            Entry entry = users.get(name);
+            if (entry == null || update == null || !update.equals(entry.update)) {
+                User user = new User();
+                user.setUsername(name);
+                user.setEmail(record.get("Email"));
+                user.setFullName(record.get("FullName"));
+                users.put(name, new Entry(update, user));
+            }
+        }
+        users.keySet().retainAll(names);
+        missing.removeAll(names);
+        loaded = System.currentTimeMillis();
+    }
+}
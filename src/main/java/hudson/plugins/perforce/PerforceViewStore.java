@@ -0,0 +1,362 @@
+package hudson.plugins.perforce;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Deduplicated store of the views recorded by {@link PerforceTagAction}s.
+ * <p>
+ * Builds of a job almost always share the same view, so the build records
+ * only keep the digest of the view. The views are stored once per job,
+ * named by their digest, in <tt>perforce-views</tt> in the directory of the
+ * job, and shared in memory by all builds using them. Views, which are no
+ * longer used by any build of the job, are deleted when builds are deleted.
+ * <p>
+ * The store records which build uses which view in the file <tt>builds</tt>,
+ * so that deleting a build doesn't need to load the other builds. The file
+ * is created by walking the builds once, when the first build of a job is
+ * deleted.
+ *
+ * @since 1.3.37
+ */
+final class PerforceViewStore {
+
+    private static final Logger LOGGER = Logger.getLogger(PerforceViewStore.class.getName());
+
+    static final String DIR_NAME = "perforce-views";
+
+    /**File of the store, which lists the build numbers with the digests of their views*/
+    static final String USAGE_FILE_NAME = "builds";
+
+    /**Age of views, which are never deleted, as a build may be about to record them*/
+    private static final long MIN_UNUSED_AGE_MILLIS = 60 * 60 * 1000;
+
+    private static final Map<String, SoftReference<String>> VIEWS = new HashMap<String, SoftReference<String>>();
+
+    /**Views of old build records, which still contain the view*/
+    private static final Map<String, WeakReference<String>> INLINE_VIEWS = new WeakHashMap<String, WeakReference<String>>();
+
+    private PerforceViewStore() {
+        // static methods, do not instantiate
+    }
+
+    /**
+     * Stores the view for builds of the job.
+     * @param jobDir Root directory of the job
+     * @return Digest of the view, null if the view cannot be stored
+     */
+    static @CheckForNull String put(@Nonnull File jobDir, @Nonnull String view) {
+        File root = new File(jobDir, DIR_NAME);
+        String digest = Util.getDigestOf(view);
+        File file = new File(root, digest);
+        synchronized (VIEWS) {
+            if (!file.isFile()) {
+                root.mkdirs();
+                File tmp = new File(root, digest + ".tmp");
+                try {
+                    OutputStream out = new FileOutputStream(tmp);
+                    try {
+                        out.write(view.getBytes("UTF-8"));
+                    } finally {
+                        out.close();
+                    }
+                    if (!tmp.renameTo(file)) {
+                        throw new IOException("Cannot rename " + tmp + " to " + file);
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Cannot store view " + digest, e);
+                    tmp.delete();
+                    return null;
+                }
+            } else {
+                // Keeps the view from being deleted as unused
+                file.setLastModified(System.currentTimeMillis());
+            }
+            SoftReference<String> ref = VIEWS.get(digest);
+            if (ref == null || ref.get() == null) {
+                VIEWS.put(digest, new SoftReference<String>(view));
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Stores the view for a build of the job and records that the build
+     * uses it.
+     * @param jobDir Root directory of the job
+     * @return Digest of the view, null if the view cannot be stored
+     */
+    static @CheckForNull String put(@Nonnull File jobDir, int build, @Nonnull String view) {
+        String digest = put(jobDir, view);
+        if (digest != null) {
+            synchronized (VIEWS) {
+                File usageFile = new File(new File(jobDir, DIR_NAME), USAGE_FILE_NAME);
+                // Without the file, the builds are walked when one is deleted
+                if (usageFile.isFile()) {
+                    try {
+                        Writer out = new OutputStreamWriter(new FileOutputStream(usageFile, true), "UTF-8");
+                        try {
+                            out.write(build + " " + digest + "\n");
+                        } finally {
+                            out.close();
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Cannot record view " + digest + " of build " + build, e);
+                    }
+                }
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Gets the view with the given digest.
+     * @param jobDir Root directory of the job
+     * @return null if the view is not in the store
+     */
+    static @CheckForNull String get(@Nonnull File jobDir, @Nonnull String digest) {
+        synchronized (VIEWS) {
+            SoftReference<String> ref = VIEWS.get(digest);
+            String view = ref != null ? ref.get() : null;
+            if (view != null) {
+                return view;
+            }
+            File file = new File(new File(jobDir, DIR_NAME), digest);
+            if (!file.isFile()) {
+                view = getLegacy(jobDir, digest);
+                if (view == null) {
+                    LOGGER.log(Level.WARNING, "View {0} is missing in {1}", new Object[] {digest, file.getParent()});
+                }
+                return view;
+            }
+            view = read(file);
+            if (view != null) {
+                VIEWS.put(digest, new SoftReference<String>(view));
+            }
+            return view;
+        }
+    }
+
+    /**
+     * Gets a view from the store, which was shared by all jobs in snapshots
+     * of 1.3.37, and moves it into the store of the job.
+     */
+    private static @CheckForNull String getLegacy(File jobDir, String digest) {
+        Hudson hudson = Hudson.getInstance();
+        if (hudson == null) {
+            return null;
+        }
+        File file = new File(new File(hudson.getRootDir(), DIR_NAME), digest);
+        if (!file.isFile()) {
+            return null;
+        }
+        String view = read(file);
+        if (view != null && digest.equals(put(jobDir, view))) {
+            file.delete();
+        }
+        return view;
+    }
+
+    private static @CheckForNull String read(File file) {
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                return IOUtils.toString(in, "UTF-8");
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read view " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Shares equal views of old build records, which contain the view
+     * itself, in memory. Nothing is written, so that loading builds stays
+     * free of side effects.
+     */
+    static @Nonnull String share(@Nonnull String view) {
+        synchronized (INLINE_VIEWS) {
+            WeakReference<String> ref = INLINE_VIEWS.get(view);
+            String shared = ref != null ? ref.get() : null;
+            if (shared == null) {
+                INLINE_VIEWS.put(view, new WeakReference<String>(view));
+                shared = view;
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Deletes the views of the job, which are not in use.
+     * @param jobDir Root directory of the job
+     * @param used Digests of the views used by the builds of the job
+     */
+    static void deleteUnused(@Nonnull File jobDir, @Nonnull Set<String> used) {
+        File[] files = new File(jobDir, DIR_NAME).listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (VIEWS) {
+            for (File file : files) {
+                if (!used.contains(file.getName()) && !file.getName().equals(USAGE_FILE_NAME)) {
+                    deleteIfOld(file, now);
+                }
+            }
+        }
+    }
+
+    private static void deleteIfOld(File file, long now) {
+        if (now - file.lastModified() > MIN_UNUSED_AGE_MILLIS) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Creates the list of the views used by the builds of the job and deletes
+     * the views, which are not in use.
+     * @param used Digests of the views by build number
+     */
+    static void recordUsage(@Nonnull File jobDir, @Nonnull Map<Integer, String> used) {
+        synchronized (VIEWS) {
+            saveUsage(jobDir, used);
+            deleteUnused(jobDir, new HashSet<String>(used.values()));
+        }
+    }
+
+    /**
+     * Forgets the view of a deleted build and deletes it, if no other build
+     * uses it.
+     * @return False if the store doesn't list the views of the builds yet
+     */
+    static boolean release(@Nonnull File jobDir, int build) {
+        synchronized (VIEWS) {
+            Map<Integer, String> used = loadUsage(jobDir);
+            if (used == null) {
+                return false;
+            }
+            String digest = used.remove(build);
+            if (digest != null) {
+                saveUsage(jobDir, used);
+                if (!used.containsValue(digest)) {
+                    deleteIfOld(new File(new File(jobDir, DIR_NAME), digest), System.currentTimeMillis());
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return Digests of the views by build number, null if there is no list
+     */
+    static @CheckForNull Map<Integer, String> loadUsage(@Nonnull File jobDir) {
+        File file = new File(new File(jobDir, DIR_NAME), USAGE_FILE_NAME);
+        if (!file.isFile()) {
+            return null;
+        }
+        Map<Integer, String> used = new TreeMap<Integer, String>();
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int separator = line.indexOf(' ');
+                    if (separator > 0) {
+                        // Later lines win, a build may record its view again
+                        used.put(Integer.valueOf(line.substring(0, separator)), line.substring(separator + 1));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read views used by builds " + file, e);
+            return null;
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Cannot read views used by builds " + file, e);
+            return null;
+        }
+        return used;
+    }
+
+    private static void saveUsage(File jobDir, Map<Integer, String> used) {
+        File root = new File(jobDir, DIR_NAME);
+        root.mkdirs();
+        File file = new File(root, USAGE_FILE_NAME);
+        File tmp = new File(root, USAGE_FILE_NAME + ".tmp");
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                for (Map.Entry<Integer, String> entry : used.entrySet()) {
+                    out.write(entry.getKey() + " " + entry.getValue() + "\n");
+                }
+            } finally {
+                out.close();
+            }
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot write views used by builds " + file, e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Deletes views, which were only used by deleted builds.
+     */
+    @Extension
+    public static class Cleaner extends RunListener<Run> {
+        public Cleaner() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onDeleted(Run r) {
+            Job<?, ?> job = r.getParent();
+            if (!new File(job.getRootDir(), DIR_NAME).isDirectory()
+                    || release(job.getRootDir(), r.getNumber())) {
+                return;
+            }
+            // Once per job, later deletions only read the list
+            Map<Integer, String> used = new TreeMap<Integer, String>();
+            for (Run<?, ?> build : job.getBuilds()) {
+                PerforceTagAction action = build.getAction(PerforceTagAction.class);
+                if (build != r && action != null && action.getViewDigest() != null) {
+                    used.put(build.getNumber(), action.getViewDigest());
+                }
+            }
+            recordUsage(job.getRootDir(), used);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package hudson.plugins.perforce;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.slaves.WorkspaceList;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps spare workspaces of concurrent jobs synced, so that concurrent builds
+ * don't start with an empty workspace.
+ * <p>
+ * Jenkins gives a build the base workspace <tt>ws</tt> if it is free, and
+ * otherwise the first free one of <tt>ws@2</tt>, <tt>ws@3</tt> and so on.
+ * The plugin derives the clients <tt>name_2</tt>, <tt>name_3</tt> from these
+ * workspaces. This task creates the clients and workspaces <tt>ws@2</tt> to
+ * <tt>ws@(slots+1)</tt> in advance on the nodes of the job and syncs them to
+ * head in the background. The base workspace is left to the builds, so only
+ * builds running next to another one benefit. Nothing hands a warm slot to
+ * a build: a build lands in one because Jenkins takes the lowest free
+ * workspace, and it reuses the client of that workspace as it is.
+ * <p>
+ * Warming is best effort. Slots, which are in use, are skipped instead of
+ * waited for. While a slot is being synced, it is taken, so a build
+ * starting at that moment gets the next free, possibly cold, workspace.
+ * <p>
+ * The number of slots follows the demand of the job: the number of running
+ * and queued builds is sampled at each checkout and each run of the task,
+ * and a moving average decides how many spare workspaces are kept, up to the
+ * configured maximum. Jobs without concurrent demand get no slots.
+ *
+ * @since 1.3.37
+ */
+@Extension
+public class PerforceWarmPool extends AsyncPeriodicWork {
+
+    /**Weight of the latest sample in the moving average of the demand*/
+    private static final double SMOOTHING = 0.3;
+    /**Number of latest builds checked for running ones*/
+    private static final int MAX_RUNNING_BUILDS = 20;
+
+    private static final String WORKSPACE_COMBINATOR = System.getProperty(WorkspaceList.class.getName(), "@");
+
+    /**Observed demand by job*/
+    private static final ConcurrentMap<String, Demand> DEMAND = new ConcurrentHashMap<String, Demand>();
+
+    /**
+     * Moving average of the concurrent builds of a job.
+     */
+    static final class Demand {
+        private double average;
+        private int peak;
+
+        synchronized void record(int builds) {
+            peak = Math.max(peak, builds);
+        }
+
+        /**
+         * Adds the peak since the last sample to the average.
+         * @return Number of concurrent builds to expect
+         */
+        synchronized int sample(int builds) {
+            int value = Math.max(peak, builds);
+            peak = 0;
+            average = SMOOTHING * value + (1 - SMOOTHING) * average;
+            return (int) Math.ceil(average - 0.05);
+        }
+    }
+
+    public PerforceWarmPool() {
+        super("Perforce warm workspace pool");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return 5 * MIN;
+    }
+
+    /**
+     * Records the demand of a job when one of its builds starts.
+     */
+    static void recordDemand(AbstractProject<?, ?> project) {
+        if (!project.isConcurrentBuild() || PerforceSCM.getInstance().getWarmPoolSize() <= 0) {
+            return;
+        }
+        getDemand(project).record(countBuilds(project));
+    }
+
+    private static Demand getDemand(AbstractProject<?, ?> project) {
+        Demand demand = DEMAND.get(project.getFullName());
+        if (demand == null) {
+            DEMAND.putIfAbsent(project.getFullName(), new Demand());
+            demand = DEMAND.get(project.getFullName());
+        }
+        return demand;
+    }
+
+    /**
+     * Counts running and queued builds of the job.
+     */
+    private static int countBuilds(AbstractProject<?, ?> project) {
+        int queued = Hudson.getInstance().getQueue().getItem(project) != null ? 1 : 0;
+        return queued + getRunningBuilds(project).size();
+    }
+
+    /**
+     * Gets the running builds among the latest builds of the job.
+     */
+    private static List<AbstractBuild<?, ?>> getRunningBuilds(AbstractProject<?, ?> project) {
+        List<AbstractBuild<?, ?>> running = new ArrayList<AbstractBuild<?, ?>>();
+        AbstractBuild<?, ?> build = project.getLastBuild();
+        for (int i = 0; i < MAX_RUNNING_BUILDS && build != null; i++, build = build.getPreviousBuild()) {
+            if (build.isBuilding()) {
+                running.add(build);
+            }
+        }
+        return running;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        int maxSize = PerforceSCM.getInstance().getWarmPoolSize();
+        if (maxSize <= 0) {
+            DEMAND.clear();
+            return;
+        }
+        Set<String> jobs = new HashSet<String>();
+        for (AbstractProject<?, ?> project : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            if (!(project.getScm() instanceof PerforceSCM) || !(project instanceof TopLevelItem)
+                    || !project.isConcurrentBuild() || project.isDisabled()) {
+                continue;
+            }
+            PerforceSCM scm = (PerforceSCM) project.getScm();
+            if (!scm.isCreateWorkspace() || scm.isDisableSyncOnly() || scm.dontUpdateClient) {
+                continue;
+            }
+            jobs.add(project.getFullName());
+            // The first workspace is kept up to date by the builds themselves
+            int slots = Math.min(maxSize, getDemand(project).sample(countBuilds(project)) - 1);
+            if (slots <= 0) {
+                continue;
+            }
+            Set<String> busy = new HashSet<String>();
+            for (AbstractBuild<?, ?> build : getRunningBuilds(project)) {
+                if (build.getWorkspace() != null) {
+                    busy.add(build.getWorkspace().getRemote());
+                }
+            }
+            for (Node node : getNodes(project)) {
+                warm(scm, project, node, slots, busy, listener);
+            }
+        }
+        DEMAND.keySet().retainAll(jobs);
+    }
+
+    /**
+     * Gets the online nodes, which may build the job.
+     */
+    private static Collection<Node> getNodes(AbstractProject<?, ?> project) {
+        List<Node> nodes = new ArrayList<Node>();
+        Label label = project.getAssignedLabel();
+        if (label != null) {
+            nodes.addAll(label.getNodes());
+        } else if (project.getLastBuiltOn() != null) {
+            nodes.add(project.getLastBuiltOn());
+        }
+        for (Iterator<Node> it = nodes.iterator(); it.hasNext(); ) {
+            Computer computer = it.next().toComputer();
+            if (computer == null || computer.isOffline()) {
+                it.remove();
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Syncs the spare workspaces <tt>ws@2</tt> to <tt>ws@(slots+1)</tt> of the job on the node,
+     * which aren't in use.
+     */
+    private static void warm(PerforceSCM scm, AbstractProject<?, ?> project, Node node, int slots,
+            Set<String> busy, TaskListener listener) throws InterruptedException {
+        PrintStream log = listener.getLogger();
+        FilePath base = node.getWorkspaceFor((TopLevelItem) project);
+        if (base == null) {
+            return;
+        }
+        Computer computer = node.toComputer();
+        if (computer == null) {
+            return;
+        }
+        for (int i = 2; i <= slots + 1; i++) {
+            FilePath slot = new FilePath(base.getChannel(), base.getRemote() + WORKSPACE_COMBINATOR + i);
+            if (busy.contains(slot.getRemote())) {
+                continue;
+            }
+            // Keeps Jenkins from giving the workspace to a new build meanwhile.
+            // allocate() doesn't wait, it returns another path if the slot is in use.
+            WorkspaceList.Lease lease = computer.getWorkspaceList().allocate(slot);
+            if (!lease.path.getRemote().equals(slot.getRemote())) {
+                lease.release();
+                continue;
+            }
+            try {
+                long start = System.currentTimeMillis();
+                scm.warmWorkspace(project, node, slot, listener);
+                log.println("Synced " + slot.getRemote() + " of " + project.getFullName() + " on "
+                        + node.getDisplayName() + " in " + (System.currentTimeMillis() - start) + " ms");
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                log.println("Cannot sync " + slot.getRemote() + " of " + project.getFullName() + ": " + e.getMessage());
+                return;
+            } finally {
+                lease.release();
+            }
+        }
+    }
+}
@@ -48,15 +48,35 @@ public class QuickCleaner {
         call(new QuickCleanerCall());
     }
     
-    public void doRestore() throws PerforceException {
-        call(new QuickRestoreCall());
+    /**
+     * @return Number of files, which could not be restored
+     */
+    public int doRestore() throws PerforceException {
+        return call(new QuickRestoreCall());
     }
     
+    /**
+     * Cleans the workspace with <tt>p4 reconcile -n</tt> and falls back to
+     * {@link #doClean()} and {@link #doRestore()} if reconcile is not
+     * supported by the p4 client or the server.
+     * @param restore True to restore changed and deleted files as well
+     * @return Number of files, which could not be restored
+     * @since 1.3.37
+     */
+    public int doReconcileClean(boolean restore) throws PerforceException {
+        int failed = call(new QuickReconcileCall(restore));
+        if (failed == QuickReconcileCall.UNSUPPORTED) {
+            doClean();
+            failed = restore ? doRestore() : 0;
+        }
+        return failed;
+    }
+
     public void exec() throws PerforceException {
         call(new QuickCleanerCall());
     }
 
-    public void call(RemoteCall remoteCall) throws PerforceException {
+    public Integer call(RemoteCall remoteCall) throws PerforceException {
         try {
             // ensure we actually have a valid hudson launcher
             if (null == hudsonLauncher) {
@@ -80,15 +100,23 @@ public class QuickCleaner {
             remoteCall.setP4Ticket(p4ticket);
             LogPrinter logPrinter = new LogPrinter(listener.getLogger(), p4in);
             logPrinter.start();
-            filePath.act(remoteCall);
+            Integer result = filePath.act(remoteCall);
             logPrinter.join();
+            return result;
 
         } catch (Exception e) {
             throw new PerforceException("Could not run quick clean.", e);
         }
     }
     
-    private class LogPrinter extends Thread {
+    /**
+     * Copies the output of the remote call into the build log. After
+     * {@link #MAX_LOG_LINES} lines the rest is only counted, so that a
+     * workspace with many changed files doesn't flood the build log.
+     */
+    private static class LogPrinter extends Thread {
+
+        private static final int MAX_LOG_LINES = 1000;
 
         private PrintStream log;
         private InputStream input;
@@ -101,7 +129,28 @@ public class QuickCleaner {
         @Override
         public void run() {
             try {
-                IOUtils.copy(input, log);
+                byte[] buffer = new byte[8192];
+                int lines = 0;
+                int suppressed = 0;
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    int length = 0;
+                    while (length < read && lines < MAX_LOG_LINES) {
+                        if (buffer[length++] == '\n') {
+                            lines++;
+                        }
+                    }
+                    log.write(buffer, 0, length);
+                    for (int i = length; i < read; i++) {
+                        if (buffer[i] == '\n') {
+                            suppressed++;
+                        }
+                    }
+                }
+                if (suppressed > 0) {
+                    log.println("... " + suppressed + " more lines not shown");
+                }
+                log.flush();
             } catch (IOException ex) {
                 Logger.getLogger(QuickCleaner.class.getName()).log(Level.SEVERE, null, ex);
             }
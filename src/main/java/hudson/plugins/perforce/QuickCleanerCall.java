@@ -5,6 +5,14 @@ import hudson.model.TaskListener;
 import hudson.plugins.perforce.QuickCleaner.PerforceCall;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.io.IOUtils;
@@ -59,30 +67,22 @@ public class QuickCleanerCall implements QuickCleaner.RemoteCall {
     
     @Override
     public Integer call() throws IOException {
-        PipedOutputStream dsOutput = new PipedOutputStream();
-        PipedInputStream p4Input = new PipedInputStream();
-        PipedOutputStream p4Output = new PipedOutputStream();
-        PipedInputStream cleanerInput = new PipedInputStream();
-
-        DirectoryScanner directoryScanner = new DirectoryScanner(workDir, dsOutput, filter);
-        PerforceCall p4Processor = createHaveCall(env, p4exe, p4ticket, p4Input, p4Output, workDir, listener);
-        Cleaner cleaner = new Cleaner(workDir, cleanerInput, out);
-
-        dsOutput.connect(p4Input);
-        p4Output.connect(cleanerInput);
-
-        cleaner.start();
-        p4Processor.start();
-        directoryScanner.start();
-
+        BufferedWriter log = new BufferedWriter(new OutputStreamWriter(out));
         try {
-            directoryScanner.join();
-            p4Processor.join();
-            cleaner.join();
+            WorkspaceStateCache state = WorkspaceStateCache.load(new File(workDir));
+            HaveSet have = readHaveList(state);
+            WorkspaceScanner scanner = new WorkspaceScanner(new File(workDir), filter, have, state, log);
+            scanner.scan();
+            if (scanner.isCompleted()) {
+                // Every file left in the workspace is tracked now and has an entry
+                state.retainAll(scanner.getScannedPaths());
+                state.setComplete(true);
+            }
+            state.save();
         } catch (InterruptedException e) {
-            directoryScanner.interrupt();
-            p4Processor.interrupt();
-            cleaner.interrupt();
+            log(log, "Quick clean has been interrupted");
+        } finally {
+            IOUtils.closeQuietly(log);
         }
         return 0;
     }
@@ -91,136 +91,275 @@ public class QuickCleanerCall implements QuickCleaner.RemoteCall {
         this.p4ticket = p4ticket;
     }
 
-    //Scans the specified path for all files
-    private class DirectoryScanner extends Thread {
-
-        private File workDir;
-        private BufferedWriter output;
-        private FileFilter filter;
-
-        DirectoryScanner(String workDir, OutputStream os, FileFilter filter) {
-            this.workDir = new File(workDir);
-            this.output = new BufferedWriter(new OutputStreamWriter(os));
-            this.filter = filter;
+    /**
+     * Reads the have list of the client with a single <tt>p4 -G have</tt>.
+     * The client must be rooted in the workspace, otherwise the clean is
+     * aborted before any file is deleted.
+     */
+    private HaveSet readHaveList(WorkspaceStateCache state) throws IOException, InterruptedException {
+        PipedOutputStream p4Output = new PipedOutputStream();
+        InputStream haveInput = new BufferedInputStream(new PipedInputStream(p4Output, 65536), 65536);
+        PerforceCall p4Processor = createHaveCall(env, p4exe, p4ticket, new ByteArrayInputStream(new byte[0]), p4Output, workDir, listener);
+        p4Processor.start();
+        HaveSet have = new HaveSet();
+        int records = 0;
+        boolean complete = false;
+        try {
+            Map<String, String> map;
+            while ((map = PerforceSCMHelper.readDictionary(haveInput)) != null) {
+                records++;
+                if ("error".equals(map.get("code"))) {
+                    String data = map.get("data");
+                    if (data != null && (data.contains("not on client") || data.contains("no such file"))) {
+                        // Nothing synced
+                        continue;
+                    }
+                    throw new IOException("Cannot get the have list of the client: " + data);
+                }
+                String path = map.get("path");
+                File file = new File(path != null ? path : "");
+                String key = state.getRelativePath(file);
+                if (key == null) {
+                    throw new IOException("The root of the client doesn't match the workspace " + workDir + ": " + path);
+                }
+                int haveRev;
+                try {
+                    haveRev = Integer.parseInt(map.get("haveRev"));
+                } catch (NumberFormatException e) {
+                    haveRev = 1;
+                }
+                have.add(key, haveRev);
+            }
+            complete = true;
+        } finally {
+            IOUtils.closeQuietly(haveInput);
+            if (!complete) {
+                // Kills the process, nobody reads its output anymore
+                p4Processor.interrupt();
+            }
+            p4Processor.join();
+        }
+        if (records == 0) {
+            throw new IOException("No output from 'p4 have', skipping quick clean");
         }
+        return have;
+    }
 
-        @Override
-        public void run() {
-            try {
-                scanDirForFiles(workDir);
-            } catch (IOException ex) {
-                Logger.getLogger(QuickCleanerCall.class.getName()).log(Level.SEVERE, null, ex);
-            } finally {
-                IOUtils.closeQuietly(output);
+    /**
+     * Set of hashed paths of the have list with their have revisions.
+     * <p>
+     * Paths are kept as 64 bit hashes in an open addressing table, a few
+     * bytes per file instead of a string. A hash collision can only make
+     * an untracked file look tracked, i.e. keep it.
+     */
+    static final class HaveSet {
+        private long[] keys = new long[1024];
+        private int[] revisions = new int[1024];
+        private int size;
+
+        void add(String path, int haveRev) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
             }
+            put(hash(path), haveRev);
         }
 
-        private void scanDirForFiles(File dir) throws IOException {
-            for (File file : dir.listFiles()) {
-                if (filter == null || filter.accept(file)) {
-                    if (file.isFile() || Util.isSymlink(file)) {
-                        outputFilePath(file);
-                    } else if (file.isDirectory()) {
-                        scanDirForFiles(file);
-                    }
+        /**
+         * @return The have revision, 0 if the file is not in the have list
+         */
+        int getHaveRev(String path) {
+            long key = hash(path);
+            int mask = keys.length - 1;
+            for (int i = (int) (key ^ (key >>> 32)) & mask; keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return revisions[i];
                 }
             }
+            return 0;
         }
 
-        private void outputFilePath(File file) throws IOException {
-            String path = file.getPath();
-            if (path.startsWith(workDir.getPath())) {
-                path = path.substring(workDir.getPath().length());
-            } else {
-                return;
+        int size() {
+            return size;
+        }
+
+        private void put(long key, int haveRev) {
+            int mask = keys.length - 1;
+            int i = (int) (key ^ (key >>> 32)) & mask;
+            while (keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
             }
-            if (path.startsWith(File.separator)) {
-                path = path.substring(1);
+            if (keys[i] == 0) {
+                size++;
             }
+            keys[i] = key;
+            revisions[i] = haveRev;
+        }
 
-            output.write(path);
-            output.newLine();
-            output.flush();
-
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldRevisions = revisions;
+            keys = new long[oldKeys.length * 2];
+            revisions = new int[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], oldRevisions[i]);
+                }
+            }
         }
-    }
 
-    //Ask perforce if they are tracked        
-    private PerforceCall createHaveCall (String[] env, String p4exe, String p4ticket, InputStream input, OutputStream output, String workDir, TaskListener listener) {
-        ArrayList<String> cmdlist = new ArrayList<String>();
-        cmdlist.add(p4exe);
-        if(p4ticket != null && !p4ticket.trim().isEmpty()){
-            cmdlist.add("-P");
-            cmdlist.add(p4ticket);
+        /**
+         * 64 bit FNV-1a hash of the path, case insensitive on Windows.
+         */
+        static long hash(String path) {
+            boolean ignoreCase = File.separatorChar == '\\';
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < path.length(); i++) {
+                char c = path.charAt(i);
+                if (ignoreCase) {
+                    c = Character.toLowerCase(c);
+                }
+                hash = (hash ^ c) * 0x100000001b3L;
+            }
+            // 0 marks empty slots
+            return hash != 0 ? hash : 1;
         }
-        cmdlist.add("-d");
-        cmdlist.add(workDir);
-        cmdlist.add("-x-");
-        cmdlist.add("have");
-        return new PerforceCall(env, cmdlist.toArray(new String[cmdlist.size()]), input, output, workDir, listener, true);
     }
 
-    //Deletes untracked files
-    private class Cleaner extends Thread {
+    /**
+     * Walks the workspace with a thread pool, one task per directory, and
+     * deletes files, which are not in the have list.
+     */
+    private class WorkspaceScanner {
 
-        private BufferedReader in;
-        private BufferedWriter log;
-        private String workDir;
+        private final File workDir;
+        private final FileFilter filter;
+        private final HaveSet have;
+        private final WorkspaceStateCache state;
+        private final BufferedWriter log;
+        private final Set<String> scannedPaths = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final AtomicInteger pending = new AtomicInteger();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicInteger deleted = new AtomicInteger();
+        private volatile boolean failed;
+        private ExecutorService executor;
 
-        Cleaner(String workDir, InputStream input, OutputStream err) {
+        WorkspaceScanner(File workDir, FileFilter filter, HaveSet have, WorkspaceStateCache state, BufferedWriter log) {
             this.workDir = workDir;
-            this.in = new BufferedReader(new InputStreamReader(input));
-            this.log = new BufferedWriter(new OutputStreamWriter(err));
+            this.filter = filter;
+            this.have = have;
+            this.state = state;
+            this.log = log;
         }
 
-        @Override
-        public void run() {
-            String line;
+        boolean isCompleted() {
+            return !failed;
+        }
+
+        Set<String> getScannedPaths() {
+            return scannedPaths;
+        }
+
+        void scan() throws InterruptedException, IOException {
+            executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
             try {
-                while ((line = in.readLine()) != null) {
-                    if (line.contains("- file(s) not on client.")) {
-                        String filename = line.replace("- file(s) not on client.", "").trim();
-                        File file = new File(workDir, filename);
-                        if (!safelyDelete(file)) {
-                            log("WARNING: Problem deleting file during quick clean: " + filename);
+                submit(workDir);
+                done.await();
+            } finally {
+                executor.shutdownNow();
+            }
+            log(log, "Quick clean deleted " + deleted.get() + " untracked files, " + have.size() + " files are tracked");
+        }
+
+        private void submit(final File dir) {
+            pending.incrementAndGet();
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        scanDir(dir);
+                    } catch (Exception e) {
+                        failed = true;
+                        Logger.getLogger(QuickCleanerCall.class.getName()).log(Level.SEVERE, null, e);
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            done.countDown();
                         }
                     }
                 }
-            } catch (IOException e) {
-                try {
-                    log("Exception occurred while cleaning files: " + e.getMessage());
-                } catch (IOException ignored) {
-                    // can't do anything about this
+            });
+        }
+
+        private void scanDir(File dir) throws IOException {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                failed = true;
+                return;
+            }
+            for (File file : files) {
+                if (filter == null || filter.accept(file)) {
+                    if (file.isFile() || Util.isSymlink(file)) {
+                        checkFile(file);
+                    } else if (file.isDirectory()) {
+                        submit(file);
+                    }
                 }
-            } finally {
-                IOUtils.closeQuietly(in);
-                IOUtils.closeQuietly(log);
+            }
+        }
+
+        private void checkFile(File file) throws IOException {
+            String key = state.getRelativePath(file);
+            if (key == null) {
+                return;
+            }
+            int haveRev = have.getHaveRev(key);
+            if (haveRev > 0) {
+                scannedPaths.add(key);
+                state.recordTracked(key, file, haveRev);
+            } else if (safelyDelete(file)) {
+                deleted.incrementAndGet();
+                state.remove(key);
+            } else {
+                scannedPaths.add(key);
+                log(log, "WARNING: Problem deleting file during quick clean: " + key);
             }
         }
 
         private boolean safelyDelete(File file) throws IOException {
-            File parent = (new File(workDir)).getCanonicalFile();
+            File parent = workDir.getCanonicalFile();
             File testPath = file.getCanonicalFile();
             while ((testPath = testPath.getParentFile()) != null) {
                 if (testPath.equals(parent)) {
                     try {
                         Util.deleteFile(file);
                     } catch (IOException e) {
-                        log("Could not remove file: " + file.getPath() + " caused by");
-                        log(e.getMessage());
-                    }
-                    if(!file.exists()) {
-                        return true;
-                    } else {
-                        return false;
+                        log(log, "Could not remove file: " + file.getPath() + " caused by");
+                        log(log, e.getMessage());
                     }
+                    return !file.exists() && !Util.isSymlink(file);
                 }
             }
-            log("Warning, file outside workspace not cleaned: " + file.getPath());
+            log(log, "Warning, file outside workspace not cleaned: " + file.getPath());
             return false;
         }
+    }
+
+    //Ask perforce for the have list of the client
+    private PerforceCall createHaveCall (String[] env, String p4exe, String p4ticket, InputStream input, OutputStream output, String workDir, TaskListener listener) {
+        ArrayList<String> cmdlist = new ArrayList<String>();
+        cmdlist.add(p4exe);
+        if(p4ticket != null && !p4ticket.trim().isEmpty()){
+            cmdlist.add("-P");
+            cmdlist.add(p4ticket);
+        }
+        cmdlist.add("-d");
+        cmdlist.add(workDir);
+        cmdlist.add("-G");
+        cmdlist.add("have");
+        return new PerforceCall(env, cmdlist.toArray(new String[cmdlist.size()]), input, output, workDir, listener, true);
+    }
 
-        private void log(String string) throws IOException {
+    private static void log(BufferedWriter log, String string) throws IOException {
+        synchronized (log) {
             log.write(string);
             log.newLine();
             log.flush();
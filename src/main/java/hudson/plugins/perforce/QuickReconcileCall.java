@@ -0,0 +1,245 @@
+package hudson.plugins.perforce;
+
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.plugins.perforce.QuickCleaner.PerforceCall;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Cleans the workspace with a single <tt>p4 reconcile -n</tt>.
+ * <p>
+ * The server compares the workspace with the have list in one pass and
+ * reports untracked files as adds, modified files as edits and missing
+ * files as deletes. Nothing is opened on the server. Untracked files are
+ * deleted locally, and if requested, edited and deleted files are restored
+ * with the batched force sync of {@link QuickRestoreCall}.
+ * <p>
+ * Unlike the local quick clean, which deletes everything not in the have
+ * list, reconcile only reports files mapped by the view of the client.
+ * Files in the workspace, which the view doesn't map, are kept.
+ * <p>
+ * If the p4 client or the server doesn't support <tt>reconcile</tt>, the
+ * call returns {@link #UNSUPPORTED} before touching the workspace, so that
+ * the caller can fall back to the local quick clean.
+ *
+ * @since 1.3.37
+ */
+class QuickReconcileCall implements QuickCleaner.RemoteCall {
+
+    /**Returned if reconcile cannot be used*/
+    static final int UNSUPPORTED = -1;
+
+    private String[] env;
+    private OutputStream out;
+    private String workDir;
+    private TaskListener listener;
+    private String p4exe;
+    private FileFilter filter;
+    private String p4ticket;
+    private final boolean restore;
+
+    /**
+     * @param restore True to restore edited and deleted files as well
+     */
+    QuickReconcileCall(boolean restore) {
+        this.restore = restore;
+    }
+
+    public Integer call() throws IOException {
+        PrintStream log = new PrintStream(out, true);
+        WorkspaceStateCache state = WorkspaceStateCache.load(new File(workDir));
+        try {
+            Set<String> untracked = new LinkedHashSet<String>();
+            Set<String> changed = new LinkedHashSet<String>();
+            if (!reconcile(state, untracked, changed, log)) {
+                log.println("'p4 reconcile' is not supported, using the local quick clean instead.");
+                return UNSUPPORTED;
+            }
+
+            int deleted = 0;
+            File root = new File(workDir).getCanonicalFile();
+            for (String path : untracked) {
+                File file = new File(path);
+                if (isExcluded(filter, file, root)) {
+                    continue;
+                }
+                if (!isInside(file, root)) {
+                    log.println("Warning, file outside workspace not cleaned: " + path);
+                    continue;
+                }
+                try {
+                    Util.deleteFile(file);
+                    deleted++;
+                    String key = state.getRelativePath(file);
+                    if (key != null) {
+                        state.remove(key);
+                    }
+                } catch (IOException e) {
+                    log.println("WARNING: Problem deleting file during quick clean: " + path + ": " + e.getMessage());
+                }
+            }
+            log.println("Quick clean deleted " + deleted + " untracked files.");
+
+            if (!restore) {
+                return 0;
+            }
+            QuickRestoreCall restoreCall = new QuickRestoreCall();
+            restoreCall.setEnv(env);
+            restoreCall.setP4exe(p4exe);
+            restoreCall.setP4Ticket(p4ticket);
+            restoreCall.setWorkDir(workDir);
+            restoreCall.setListener(listener);
+            restoreCall.setFilter(filter);
+            return restoreCall.restore(changed, state, log);
+        } finally {
+            // Only a full scan makes the state complete
+            state.setComplete(false);
+            state.save();
+            log.flush();
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Runs <tt>p4 -G reconcile -n -a -e -d -f -I ...</tt> on the workspace.
+     * @param untracked Receives local paths of untracked files
+     * @param changed Receives local paths of edited and missing files
+     * @return False if reconcile is not supported
+     */
+    private boolean reconcile(WorkspaceStateCache state, Set<String> untracked, Set<String> changed,
+            PrintStream log) throws IOException {
+        List<String> cmdList = new ArrayList<String>();
+        cmdList.add(p4exe);
+        if(p4ticket != null && !p4ticket.trim().isEmpty()){
+            cmdList.add("-P");
+            cmdList.add(p4ticket);
+        }
+        cmdList.add("-d");
+        cmdList.add(workDir);
+        cmdList.add("-G");
+        cmdList.add("reconcile");
+        cmdList.add("-n");
+        cmdList.add("-a");
+        cmdList.add("-e");
+        cmdList.add("-d");
+        // Reports untracked files with @#%* in their names too
+        cmdList.add("-f");
+        // Files matching P4IGNORE are untracked as well
+        cmdList.add("-I");
+        cmdList.add("...");
+
+        PipedOutputStream p4Output = new PipedOutputStream();
+        InputStream input = new BufferedInputStream(new PipedInputStream(p4Output, 65536), 65536);
+        PerforceCall p4Processor = new PerforceCall(env, cmdList.toArray(new String[cmdList.size()]),
+                new ByteArrayInputStream(new byte[0]), p4Output, workDir, listener, true);
+        p4Processor.start();
+        int records = 0;
+        boolean complete = false;
+        try {
+            Map<String, String> map;
+            while ((map = PerforceSCMHelper.readDictionary(input)) != null) {
+                records++;
+                if ("error".equals(map.get("code"))) {
+                    String data = map.get("data");
+                    if (data != null && data.contains("no file(s) to reconcile")) {
+                        continue;
+                    }
+                    if (data != null && (data.contains("Unknown command") || data.contains("Usage:")
+                            || data.contains("Invalid option"))) {
+                        return false;
+                    }
+                    throw new IOException("Cannot reconcile the workspace: " + data);
+                }
+                String action = map.get("action");
+                String path = map.get("clientFile");
+                if (path == null || action == null) {
+                    continue;
+                }
+                if (state.getRelativePath(new File(path)) == null) {
+                    throw new IOException("The root of the client doesn't match the workspace " + workDir + ": " + path);
+                }
+                if (action.equals("add")) {
+                    untracked.add(path);
+                } else if (action.equals("edit") || action.equals("delete")) {
+                    changed.add(path);
+                } else {
+                    log.println("Ignoring " + action + " of " + path);
+                }
+            }
+            complete = true;
+        } finally {
+            IOUtils.closeQuietly(input);
+            if (!complete) {
+                // Kills the process, nobody reads its output anymore
+                p4Processor.interrupt();
+            }
+            try {
+                p4Processor.join();
+            } catch (InterruptedException e) {
+                throw new IOException("Quick clean has been interrupted");
+            }
+        }
+        // An old p4 client reports unknown commands on stderr only
+        return records > 0;
+    }
+
+    /**
+     * Applies the filter to the file and its parent directories, like the
+     * directory walk of the local quick clean does.
+     */
+    static boolean isExcluded(FileFilter filter, File file, File root) throws IOException {
+        if (filter == null) {
+            return false;
+        }
+        for (File f = file.getAbsoluteFile(); f != null && !f.getCanonicalFile().equals(root); f = f.getParentFile()) {
+            if (!filter.accept(f)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInside(File file, File root) throws IOException {
+        File testPath = file.getCanonicalFile();
+        while ((testPath = testPath.getParentFile()) != null) {
+            if (testPath.equals(root)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void setEnv(String[] env) {
+        this.env = env;
+    }
+
+    public void setFilter(FileFilter filter) {
+        this.filter = filter;
+    }
+
+    public void setListener(TaskListener listener) {
+        this.listener = listener;
+    }
+
+    public void setOut(OutputStream out) {
+        this.out = out;
+    }
+
+    public void setP4exe(String p4exe) {
+        this.p4exe = p4exe;
+    }
+
+    public void setWorkDir(String workDir) {
+        this.workDir = workDir;
+    }
+
+    public void setP4Ticket(String p4ticket) {
+        this.p4ticket = p4ticket;
+    }
+}
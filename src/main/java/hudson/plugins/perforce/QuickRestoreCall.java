@@ -9,14 +9,41 @@ import hudson.plugins.perforce.QuickCleaner.PerforceCall;
 import hudson.plugins.perforce.QuickCleaner.RemoteCall;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.ClosedInputStream;
 
 /**
+ * Restores changed and deleted files of a workspace.
+ * <p>
+ * The changed files (<tt>p4 diff -se</tt>, limited to files which are not
+ * known to be unchanged by the workspace state) and the deleted files
+ * (<tt>p4 diff -sd</tt>) are collected first. The deduplicated set is then
+ * force synced in chunks, which are passed to <tt>p4 -x</tt> as argument
+ * files and synced in parallel. Files excluded by the filter, like the
+ * .repository directory, are left alone as quick clean does. Files which
+ * could not be restored are reported one by one with the message of the
+ * server.
  *
  * @author rpetti
  */
 class QuickRestoreCall implements RemoteCall {
+    /**Number of files force synced by one p4 process*/
+    static final int CHUNK_SIZE = 1000;
+    /**Maximum number of p4 processes syncing at the same time*/
+    static final int MAX_PARALLEL_SYNCS = 4;
+    /**Maximum number of failures listed in the build log*/
+    static final int MAX_REPORTED_ERRORS = 100;
+
     private String[] env;
     private OutputStream out;
     private String workDir;
@@ -28,67 +55,292 @@ class QuickRestoreCall implements RemoteCall {
     public QuickRestoreCall() {
     }
 
+    /**
+     * A file, which could not be restored.
+     */
+    static final class SyncError {
+        final String path;
+        final String message;
+
+        SyncError(String path, String message) {
+            this.path = path;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return path + ": " + message;
+        }
+    }
+
     public Integer call() throws IOException {
+        WorkspaceStateCache state = WorkspaceStateCache.load(new File(workDir));
+        PrintStream log = new PrintStream(out, true);
         try {
-            forceSyncUsingP4DiffOption("-se");
-            forceSyncUsingP4DiffOption("-sd");
+            Set<String> files = new LinkedHashSet<String>();
+            if (state.isComplete()) {
+                files.addAll(findChangedFiles(state));
+            } else {
+                files.addAll(findFiles("-se", state, log));
+            }
+            files.addAll(findFiles("-sd", state, log));
+            return restore(files, state, log);
         } finally {
+            // Restored files have no entries yet
+            state.setComplete(false);
+            state.save();
+            log.flush();
             IOUtils.closeQuietly(out);
         }
-        return 0;
-    }
-    
-    private void forceSyncUsingP4DiffOption(String option) throws IOException {
-        PipedInputStream forceSyncInput = new PipedInputStream();
-        PipedOutputStream diffOutput = new PipedOutputStream();
-        
-        forceSyncInput.connect(diffOutput);
-        
-        ArrayList<String> forceSyncCmdList = new ArrayList<String>();
-        ArrayList<String> findDiffFilesCmdList = new ArrayList<String>();
-        
-        //build force sync command
-        forceSyncCmdList.add(p4exe);
-        if(p4ticket != null && !p4ticket.trim().isEmpty()){
-            forceSyncCmdList.add("-P");
-            forceSyncCmdList.add(p4ticket);
-        }
-        forceSyncCmdList.add("-d");
-        forceSyncCmdList.add(workDir);
-        forceSyncCmdList.add("-x-");
-        forceSyncCmdList.add("sync");
-        forceSyncCmdList.add("-f");
-        
-        PerforceCall forceSync = new PerforceCall(env, forceSyncCmdList.toArray(new String[forceSyncCmdList.size()]), forceSyncInput, out, workDir, listener, false);
-        
-        //build diff command
-        findDiffFilesCmdList.add(p4exe);
-        if(p4ticket != null && !p4ticket.trim().isEmpty()){
-            findDiffFilesCmdList.add("-P");
-            findDiffFilesCmdList.add(p4ticket);
+    }
+
+    /**
+     * Force syncs the files and reports the ones, which could not be restored.
+     * @param files Local paths of changed or deleted files without duplicates
+     * @return Number of files, which could not be restored
+     */
+    int restore(Collection<String> files, WorkspaceStateCache state, PrintStream log) throws IOException {
+        List<String> included = getIncludedFiles(files);
+        if (included.size() < files.size()) {
+            log.println("Skipped " + (files.size() - included.size()) + " changed or deleted files excluded from cleaning.");
+        }
+        if (included.isEmpty()) {
+            log.println("No changed or deleted files found.");
+            return 0;
+        }
+
+        List<SyncError> errors = forceSync(included);
+        for (String file : included) {
+            String path = state.getRelativePath(new File(file));
+            if (path != null) {
+                state.remove(path);
+            }
+        }
+        log.println("Restored " + (included.size() - errors.size()) + " of " + included.size() + " changed or deleted files.");
+        if (!errors.isEmpty()) {
+            log.println(errors.size() + " files could not be restored:");
+            for (int i = 0; i < errors.size() && i < MAX_REPORTED_ERRORS; i++) {
+                log.println("  " + errors.get(i));
+            }
+            if (errors.size() > MAX_REPORTED_ERRORS) {
+                log.println("  ... and " + (errors.size() - MAX_REPORTED_ERRORS) + " more");
+            }
+        }
+        return errors.size();
+    }
+
+    /**
+     * @return The files, which are not excluded by the filter
+     */
+    List<String> getIncludedFiles(Collection<String> files) throws IOException {
+        if (filter == null) {
+            return new ArrayList<String>(files);
+        }
+        File root = new File(workDir).getCanonicalFile();
+        List<String> included = new ArrayList<String>(files.size());
+        for (String file : files) {
+            if (!QuickReconcileCall.isExcluded(filter, new File(file), root)) {
+                included.add(file);
+            }
+        }
+        return included;
+    }
+
+    /**
+     * Runs 'p4 diff -se' only on files, which are not known to be unchanged
+     * by the workspace state. The remaining files are recorded as unchanged.
+     * @return Local paths of the changed files
+     */
+    private Collection<String> findChangedFiles(WorkspaceStateCache state) throws IOException {
+        List<String> candidates = state.getUnverifiedPaths();
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        ByteArrayOutputStream candidateList = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(candidateList);
+        for (String path : candidates) {
+            writer.write(path.replace('/', File.separatorChar));
+            writer.write('\n');
+        }
+        writer.close();
+
+        List<String> findDiffFilesCmdList = getBaseCommand();
+        findDiffFilesCmdList.add("-x-");
+        findDiffFilesCmdList.add("diff");
+        findDiffFilesCmdList.add("-se");
+
+        long scanned = System.currentTimeMillis();
+        ByteArrayOutputStream changedFiles = new ByteArrayOutputStream();
+        run(findDiffFilesCmdList, new ByteArrayInputStream(candidateList.toByteArray()), changedFiles);
+
+        Set<String> changed = new HashSet<String>();
+        Set<String> result = new LinkedHashSet<String>();
+        boolean allMapped = true;
+        BufferedReader reader = new BufferedReader(new StringReader(changedFiles.toString()));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            String path = state.getRelativePath(new File(line));
+            if (path != null) {
+                changed.add(path);
+                result.add(line);
+            } else if (line.length() > 0) {
+                allMapped = false;
+            }
+        }
+        // Don't trust the result if some output is not understood
+        if (allMapped) {
+            for (String path : candidates) {
+                if (!changed.contains(path)) {
+                    state.recordUnchanged(path, new File(workDir, path), scanned);
+                }
+            }
         }
-        findDiffFilesCmdList.add("-d");
-        findDiffFilesCmdList.add(workDir);
+        return result;
+    }
+
+    /**
+     * Runs 'p4 diff' with the given option on the whole workspace.
+     * @return Local paths of the reported files
+     */
+    private Collection<String> findFiles(String option, WorkspaceStateCache state, PrintStream log) throws IOException {
+        List<String> findDiffFilesCmdList = getBaseCommand();
         findDiffFilesCmdList.add("diff");
         findDiffFilesCmdList.add(option);
-        
-        PerforceCall findDiffFiles = new PerforceCall(env, findDiffFilesCmdList.toArray(new String[findDiffFilesCmdList.size()]), new ClosedInputStream(), diffOutput, workDir, listener, true);    
-        
+
+        ByteArrayOutputStream diffOutput = new ByteArrayOutputStream();
+        run(findDiffFilesCmdList, new ClosedInputStream(), diffOutput);
+
+        Set<String> result = new LinkedHashSet<String>();
+        BufferedReader reader = new BufferedReader(new StringReader(diffOutput.toString()));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (state.getRelativePath(new File(line)) != null) {
+                result.add(line);
+            } else if (line.length() > 0) {
+                log.println(line);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Force syncs the files in parallel chunks.
+     * @param files Local paths
+     * @return Files, which could not be synced
+     */
+    private List<SyncError> forceSync(List<String> files) throws IOException {
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        for (int start = 0; start < files.size(); start += CHUNK_SIZE) {
+            chunks.add(files.subList(start, Math.min(start + CHUNK_SIZE, files.size())));
+        }
+        if (chunks.size() == 1) {
+            return forceSyncChunk(chunks.get(0));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(chunks.size(), MAX_PARALLEL_SYNCS));
         try {
-            forceSync.start();
-            //find changed files
-            findDiffFiles.start();
-            findDiffFiles.join();
-            forceSync.join();
+            List<Future<List<SyncError>>> futures = new ArrayList<Future<List<SyncError>>>();
+            for (final List<String> chunk : chunks) {
+                futures.add(executor.submit(new java.util.concurrent.Callable<List<SyncError>>() {
+                    public List<SyncError> call() throws IOException {
+                        return forceSyncChunk(chunk);
+                    }
+                }));
+            }
+            List<SyncError> errors = new ArrayList<SyncError>();
+            for (Future<List<SyncError>> future : futures) {
+                errors.addAll(future.get());
+            }
+            return errors;
         } catch (InterruptedException e) {
-            forceSync.interrupt();
-            findDiffFiles.interrupt();
+            throw new IOException("Restore has been interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Restore failed: " + e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Force syncs the files listed in a temporary argument file.
+     */
+    private List<SyncError> forceSyncChunk(List<String> chunk) throws IOException {
+        File argFile = File.createTempFile("p4restore", ".txt");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(argFile));
+            try {
+                for (String file : chunk) {
+                    writer.write(file);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+
+            List<String> forceSyncCmdList = getBaseCommand();
+            forceSyncCmdList.add(1, "-s");
+            forceSyncCmdList.add("-x");
+            forceSyncCmdList.add(argFile.getAbsolutePath());
+            forceSyncCmdList.add("sync");
+            forceSyncCmdList.add("-f");
+
+            ByteArrayOutputStream syncOutput = new ByteArrayOutputStream();
+            run(forceSyncCmdList, new ClosedInputStream(), syncOutput);
+            return parseSyncErrors(syncOutput.toString());
         } finally {
-            IOUtils.closeQuietly(forceSyncInput);
-            IOUtils.closeQuietly(diffOutput);
+            argFile.delete();
+        }
+    }
+
+    /**
+     * Extracts the failed files from the output of 'p4 -s sync'.
+     * Error lines have the form <tt>error: path - message</tt>.
+     */
+    static List<SyncError> parseSyncErrors(String output) throws IOException {
+        List<SyncError> errors = new ArrayList<SyncError>();
+        BufferedReader reader = new BufferedReader(new StringReader(output));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith("error: ")) {
+                continue;
+            }
+            String error = line.substring("error: ".length()).trim();
+            int separator = error.indexOf(" - ");
+            if (separator > 0) {
+                errors.add(new SyncError(error.substring(0, separator), error.substring(separator + 3)));
+            } else {
+                errors.add(new SyncError("", error));
+            }
         }
+        return errors;
     }
-    
+
+    private List<String> getBaseCommand() {
+        List<String> cmdList = new ArrayList<String>();
+        cmdList.add(p4exe);
+        if(p4ticket != null && !p4ticket.trim().isEmpty()){
+            cmdList.add("-P");
+            cmdList.add(p4ticket);
+        }
+        cmdList.add("-d");
+        cmdList.add(workDir);
+        return cmdList;
+    }
+
+    private void run(List<String> cmdList, InputStream input, OutputStream output) throws IOException {
+        PerforceCall call = new PerforceCall(env, cmdList.toArray(new String[cmdList.size()]), input, output, workDir, listener, true);
+        call.start();
+        try {
+            call.join();
+        } catch (InterruptedException e) {
+            call.interrupt();
+            throw new IOException("Restore has been interrupted");
+        }
+    }
+
     public void setEnv(String[] env) {
         this.env = env;
     }
@@ -0,0 +1,129 @@
+package hudson.plugins.perforce;
+
+import com.tek42.perforce.parse.AbstractPerforceTemplate.ResponseFilter;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the files written and deleted by <tt>p4 -s sync</tt> and records
+ * their have revisions in the {@link WorkspaceStateCache} of the workspace.
+ * <p>
+ * Lines have the form <tt>info: //depot/path#rev - updating /local/path</tt>.
+ * A synced file is known to be identical to its new have revision, so quick
+ * clean and restore don't need to check it until it changes.
+ *
+ * @since 1.3.37
+ */
+class SyncRecorder extends ResponseFilter {
+
+    private static final Logger LOGGER = Logger.getLogger(SyncRecorder.class.getName());
+
+    private static final String[] WRITTEN = { "added as ", "updating ", "refreshing ", "replacing " };
+    private static final String DELETED = "deleted as ";
+
+    /**Local paths of the synced files*/
+    private final List<String> paths = new ArrayList<String>();
+    /**Have revisions of the synced files, 0 for deleted files*/
+    private int[] revisions = new int[1024];
+
+    @Override
+    public boolean accept(String line) {
+        if (!line.startsWith("info: ")) {
+            return false;
+        }
+        int hash = line.indexOf('#');
+        int separator = hash < 0 ? -1 : line.indexOf(" - ", hash);
+        if (separator < 0) {
+            return false;
+        }
+        int rev;
+        try {
+            rev = Integer.parseInt(line.substring(hash + 1, separator));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        String action = line.substring(separator + 3);
+        if (action.startsWith(DELETED)) {
+            add(action.substring(DELETED.length()), 0);
+            return true;
+        }
+        for (String written : WRITTEN) {
+            if (action.startsWith(written)) {
+                add(action.substring(written.length()), rev);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void add(String path, int rev) {
+        if (paths.size() == revisions.length) {
+            int[] grown = new int[revisions.length * 2];
+            System.arraycopy(revisions, 0, grown, 0, revisions.length);
+            revisions = grown;
+        }
+        revisions[paths.size()] = rev;
+        paths.add(path);
+    }
+
+    synchronized int size() {
+        return paths.size();
+    }
+
+    /**
+     * Records the collected files in the state of the workspace on its node.
+     * Failures are only logged, the state is an optimization.
+     */
+    synchronized void record(FilePath workspace) throws InterruptedException {
+        if (paths.isEmpty()) {
+            return;
+        }
+        int[] revs = new int[paths.size()];
+        System.arraycopy(revisions, 0, revs, 0, revs.length);
+        try {
+            workspace.act(new RecordCallable(new ArrayList<String>(paths), revs));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot record synced files in the workspace state of " + workspace.getRemote(), e);
+        }
+    }
+
+    static void record(WorkspaceStateCache state, List<String> paths, int[] revisions, long scanned) {
+        for (int i = 0; i < paths.size(); i++) {
+            File file = new File(paths.get(i));
+            String path = state.getRelativePath(file);
+            if (path == null) {
+                continue;
+            }
+            if (revisions[i] > 0 && file.isFile()) {
+                state.recordSynced(path, file, revisions[i], scanned);
+            } else {
+                state.remove(path);
+            }
+        }
+    }
+
+    private static class RecordCallable implements FileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+        private final List<String> paths;
+        private final int[] revisions;
+
+        RecordCallable(List<String> paths, int[] revisions) {
+            this.paths = paths;
+            this.revisions = revisions;
+        }
+
+        public Void invoke(File ws, VirtualChannel channel) throws IOException {
+            WorkspaceStateCache state = WorkspaceStateCache.load(ws);
+            record(state, paths, revisions, System.currentTimeMillis());
+            state.save();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package hudson.plugins.perforce;
+
+import hudson.Util;
+import hudson.util.FormValidation;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Results of form validations, which talk to the Perforce server.
+ * <p>
+ * The configuration page validates fields on every change, and each
+ * validation starts one or more p4 processes. Results are kept for a few
+ * seconds by server, credentials, tool and the validated values. Identical
+ * validations, which run at the same time, wait for the first one instead
+ * of starting their own p4 processes. Validations, which throw, aren't kept.
+ *
+ * @since 1.3.37
+ */
+final class ValidationCache {
+
+    /**Time a result is kept after the validation has finished*/
+    static final long MAX_AGE_MILLIS = 10 * 1000;
+    private static final int MAX_ENTRIES = 256;
+
+    private static final ConcurrentMap<String, Entry> RESULTS = new ConcurrentHashMap<String, Entry>();
+
+    private static final class Entry {
+        final FutureTask<FormValidation> task;
+        /**Time the validation has finished, 0 while it is running*/
+        volatile long finished;
+
+        Entry(Callable<FormValidation> validation) {
+            this.task = new FutureTask<FormValidation>(validation);
+        }
+
+        void run() {
+            task.run();
+            finished = System.currentTimeMillis();
+        }
+
+        boolean isExpired(long now) {
+            return finished != 0 && now - finished > MAX_AGE_MILLIS;
+        }
+    }
+
+    private ValidationCache() {
+    }
+
+    /**
+     * Builds the key of a validation from the connection parameters of the
+     * request, see {@link PerforceSCM.PerforceSCMDescriptor#getDepotFromRequest}.
+     * @param check Name of the validation
+     * @param values Validated values
+     */
+    static String getKey(StaplerRequest request, String check, String... values) {
+        StringBuilder key = new StringBuilder(check);
+        key.append('\n').append(Util.fixNull(request.getParameter("port")).trim());
+        key.append('\n').append(Util.fixNull(request.getParameter("tool")).trim());
+        key.append('\n').append(Util.fixNull(request.getParameter("user")).trim());
+        // Don't keep the password itself
+        key.append('\n').append(Util.getDigestOf(Util.fixNull(request.getParameter("pass")).trim()));
+        for (String value : values) {
+            key.append('\n').append(value);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Gets the result of a recent validation with the same key, or runs the
+     * validation. If the same validation is running already, waits for its
+     * result.
+     */
+    static FormValidation validate(String key, Callable<FormValidation> validation) {
+        return validate(key, validation, System.currentTimeMillis());
+    }
+
+    static FormValidation validate(String key, Callable<FormValidation> validation, long now) {
+        Entry entry = RESULTS.get(key);
+        if (entry != null && entry.isExpired(now)) {
+            RESULTS.remove(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            if (RESULTS.size() >= MAX_ENTRIES) {
+                purge(now);
+            }
+            Entry created = new Entry(validation);
+            entry = RESULTS.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+                entry.run();
+            }
+        }
+
+        try {
+            return entry.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return FormValidation.error("Validation has been interrupted");
+        } catch (ExecutionException e) {
+            RESULTS.remove(key, entry);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            return FormValidation.error("Validation failed: " + cause.getMessage());
+        }
+    }
+
+    static void clear() {
+        RESULTS.clear();
+    }
+
+    private static void purge(long now) {
+        for (Iterator<Entry> it = RESULTS.values().iterator(); it.hasNext();) {
+            if (it.next().isExpired(now)) {
+                it.remove();
+            }
+        }
+    }
+}
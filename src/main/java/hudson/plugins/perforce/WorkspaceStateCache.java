@@ -0,0 +1,423 @@
+package hudson.plugins.perforce;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent state of the files in a workspace, kept on the node which owns
+ * the workspace.
+ * <p>
+ * For each file the size, modification time, have revision and, once the
+ * content has been checked against the depot, its digest are recorded. The
+ * have revisions come from the have list, the output of syncs (see
+ * {@link SyncRecorder}) and <tt>p4 fstat</tt>, the digests from
+ * <tt>p4 fstat</tt>. As long as size, modification time and have revision
+ * don't change, quick clean, restore and verified sync take the recorded
+ * state instead of asking the server or hashing the file again.
+ * <p>
+ * A file, which has been modified within the timestamp granularity of the
+ * file system before it was checked, may be modified again without a new
+ * modification time. It is recorded, but not as verified.
+ * <p>
+ * The state is stored in a compact binary file next to the workspace
+ * (<tt>workspace@tmp</tt>), so that it survives workspace wipes and is never
+ * taken for an untracked file.
+ *
+ * @since 1.3.37
+ */
+class WorkspaceStateCache {
+
+    private static final Logger LOGGER = Logger.getLogger(WorkspaceStateCache.class.getName());
+
+    private static final int MAGIC = 0x50345753;
+    private static final int VERSION = 1;
+    private static final String FILE_NAME = "p4-file-state.bin";
+
+    private static final byte FLAG_VERIFIED = 1;
+    private static final byte FLAG_DIGEST = 2;
+
+    /**Paths are case-insensitive on Windows, see {@link QuickCleanerCall.HaveSet#hash}*/
+    private static final boolean IGNORE_CASE = File.separatorChar == '\\';
+    private static final int MAX_ALIASES = 8;
+
+    /**Coarsest resolution of modification times, FAT has 2 seconds*/
+    static final long MTIME_GRANULARITY_MILLIS = 2000;
+
+    /**
+     * State of one file.
+     */
+    static final class Entry {
+        final long size;
+        final long lastModified;
+        final int haveRev;
+        final boolean verified;
+        final byte[] digest;
+
+        Entry(long size, long lastModified, int haveRev, boolean verified, byte[] digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.haveRev = haveRev;
+            this.verified = verified;
+            this.digest = digest;
+        }
+
+        /**
+         * Checks if the file on the disk still has the recorded metadata.
+         */
+        boolean matches(File file) {
+            return file.length() == size && file.lastModified() == lastModified;
+        }
+
+        String getDigest() {
+            return digest == null ? null : toHex(digest);
+        }
+    }
+
+    private final File workspace;
+    private final File stateFile;
+    private final Map<String, Entry> entries;
+    private boolean complete;
+    private boolean dirty;
+    /**Canonical path of the workspace, computed on first use*/
+    private volatile String canonicalRoot;
+    /**Other paths of the workspace root, e.g. through a symlink or junction, as found in have lists*/
+    private final List<String> aliases = new CopyOnWriteArrayList<String>();
+
+    private WorkspaceStateCache(File workspace, File stateFile, Map<String, Entry> entries, boolean complete) {
+        this.workspace = workspace;
+        this.stateFile = stateFile;
+        this.entries = entries;
+        this.complete = complete;
+    }
+
+    /**
+     * Loads the state of the workspace. A missing or unreadable state file
+     * results in an empty state.
+     * @param workspace Root directory of the workspace
+     */
+    static WorkspaceStateCache load(File workspace) {
+        File parent = workspace.getAbsoluteFile().getParentFile();
+        File stateFile = new File(new File(parent, workspace.getName() + "@tmp"), FILE_NAME);
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        boolean complete = false;
+        if (stateFile.isFile()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile), 65536));
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Unsupported format");
+                }
+                complete = in.readBoolean();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String path = in.readUTF();
+                    long size = in.readLong();
+                    long lastModified = in.readLong();
+                    int haveRev = in.readInt();
+                    byte flags = in.readByte();
+                    byte[] digest = null;
+                    if ((flags & FLAG_DIGEST) != 0) {
+                        digest = new byte[16];
+                        in.readFully(digest);
+                    }
+                    entries.put(path, new Entry(size, lastModified, haveRev, (flags & FLAG_VERIFIED) != 0, digest));
+                }
+            } catch (EOFException e) {
+                LOGGER.log(Level.WARNING, "Truncated workspace state " + stateFile + ", ignoring it");
+                entries.clear();
+                complete = false;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot read workspace state " + stateFile + ", ignoring it", e);
+                entries.clear();
+                complete = false;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException ignored) {
+                        // nothing to do
+                    }
+                }
+            }
+        }
+        return new WorkspaceStateCache(workspace, stateFile, entries, complete);
+    }
+
+    /**
+     * Writes the state back if it has been modified.
+     */
+    synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        File dir = stateFile.getParentFile();
+        dir.mkdirs();
+        File tmp = new File(dir, FILE_NAME + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeBoolean(complete);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.lastModified);
+                    out.writeInt(entry.haveRev);
+                    byte flags = 0;
+                    if (entry.verified) {
+                        flags |= FLAG_VERIFIED;
+                    }
+                    if (entry.digest != null) {
+                        flags |= FLAG_DIGEST;
+                    }
+                    out.writeByte(flags);
+                    if (entry.digest != null) {
+                        out.write(entry.digest);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (stateFile.exists() && !stateFile.delete() || !tmp.renameTo(stateFile)) {
+                throw new IOException("Cannot replace " + stateFile);
+            }
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot write workspace state " + stateFile, e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Converts the file to the key of its entry. The root of the client may
+     * name the workspace differently, in another case on Windows or through
+     * a symlink or junction, so a file, which isn't below the workspace path,
+     * is compared by its canonical path. The root prefix found that way is
+     * remembered, so that the other files of a have list are compared
+     * directly.
+     * @return Path relative to the workspace with '/' separators, null if the
+     *         file is outside of the workspace
+     */
+    String getRelativePath(File file) {
+        String path = file.getAbsolutePath();
+        String relative = relativize(workspace.getAbsolutePath(), path, IGNORE_CASE);
+        if (relative != null) {
+            return relative;
+        }
+        for (String alias : aliases) {
+            relative = relativize(alias, path, IGNORE_CASE);
+            if (relative != null) {
+                return relative;
+            }
+        }
+        // Not the file itself, it may be a symlink pointing anywhere
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent == null) {
+            return null;
+        }
+        try {
+            String root = canonicalRoot;
+            if (root == null) {
+                root = workspace.getCanonicalPath();
+                canonicalRoot = root;
+            }
+            relative = relativize(root, new File(parent.getCanonicalFile(), file.getName()).getPath(), IGNORE_CASE);
+        } catch (IOException e) {
+            return null;
+        }
+        if (relative != null && aliases.size() < MAX_ALIASES) {
+            String suffix = relative.replace('/', File.separatorChar);
+            int start = path.length() - suffix.length();
+            if (start > 0 && path.regionMatches(IGNORE_CASE, start, suffix, 0, suffix.length())) {
+                String alias = path.substring(0, start);
+                if (!aliases.contains(alias)) {
+                    aliases.add(alias);
+                }
+            }
+        }
+        return relative;
+    }
+
+    /**
+     * Gets the path relative to the root with '/' separators.
+     * @return null if the path isn't below the root
+     */
+    static String relativize(String root, String path, boolean ignoreCase) {
+        if (!root.endsWith(File.separator)) {
+            root += File.separator;
+        }
+        if (path.length() <= root.length() || !path.regionMatches(ignoreCase, 0, root, 0, root.length())) {
+            return null;
+        }
+        return path.substring(root.length()).replace(File.separatorChar, '/');
+    }
+
+    synchronized Entry get(String relativePath) {
+        return entries.get(relativePath);
+    }
+
+    /**
+     * Checks if the file has been found identical to the given depot
+     * revision and hasn't been touched since.
+     */
+    synchronized boolean isKnownUnchanged(String relativePath, File file, int haveRev) {
+        Entry entry = entries.get(relativePath);
+        return entry != null && entry.verified && entry.haveRev == haveRev && entry.matches(file);
+    }
+
+    /**
+     * Checks if the file may still be modified without changing its
+     * modification time.
+     * @param scanned Time the content of the file has been checked
+     */
+    static boolean isRacy(long lastModified, long scanned) {
+        return lastModified > scanned - MTIME_GRANULARITY_MILLIS;
+    }
+
+    /**
+     * Records a file, which is in the have list of the client. A previous
+     * verification is kept if the file hasn't changed, the digest of the
+     * revision if the revision hasn't changed.
+     */
+    synchronized void recordTracked(String relativePath, File file, int haveRev) {
+        Entry old = entries.get(relativePath);
+        if (old != null && old.haveRev == haveRev && old.matches(file)) {
+            return;
+        }
+        byte[] digest = old != null && old.haveRev == haveRev ? old.digest : null;
+        entries.put(relativePath, new Entry(file.length(), file.lastModified(), haveRev, false, digest));
+        dirty = true;
+    }
+
+    /**
+     * Records a file, which has been found identical to its depot revision.
+     * @param digest Digest in the form used by the server, may be null
+     * @param scanned Time the content of the file has been checked
+     */
+    synchronized void recordVerified(String relativePath, File file, int haveRev, String digest, long scanned) {
+        long lastModified = file.lastModified();
+        entries.put(relativePath, new Entry(file.length(), lastModified, haveRev, !isRacy(lastModified, scanned),
+                digest == null ? null : fromHex(digest)));
+        dirty = true;
+    }
+
+    /**
+     * Records a file, which has been found identical to the have revision
+     * of its entry. Files without an entry are left alone, their revision
+     * is unknown.
+     * @param scanned Time the content of the file has been checked
+     */
+    synchronized void recordUnchanged(String relativePath, File file, long scanned) {
+        Entry old = entries.get(relativePath);
+        if (old != null) {
+            long lastModified = file.lastModified();
+            entries.put(relativePath, new Entry(file.length(), lastModified, old.haveRev,
+                    !isRacy(lastModified, scanned), old.digest));
+            dirty = true;
+        }
+    }
+
+    /**
+     * Records a file, which has been written by a sync. The digest of the
+     * previous entry is kept if the revision hasn't changed.
+     * @param scanned Time the sync has finished
+     */
+    synchronized void recordSynced(String relativePath, File file, int haveRev, long scanned) {
+        Entry old = entries.get(relativePath);
+        byte[] digest = old != null && old.haveRev == haveRev ? old.digest : null;
+        long lastModified = file.lastModified();
+        entries.put(relativePath, new Entry(file.length(), lastModified, haveRev, !isRacy(lastModified, scanned), digest));
+        dirty = true;
+    }
+
+    synchronized void remove(String relativePath) {
+        if (entries.remove(relativePath) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Drops entries of files, which were not found by a full scan.
+     */
+    synchronized void retainAll(Set<String> existing) {
+        if (entries.keySet().retainAll(existing)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Gets paths of all tracked files, which are not known to be unchanged.
+     */
+    synchronized List<String> getUnverifiedPaths() {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            File file = new File(workspace, e.getKey());
+            int haveRev = e.getValue().haveRev;
+            if (haveRev > 0 && file.exists() && !isKnownUnchanged(e.getKey(), file, haveRev)) {
+                result.add(e.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks if every file in the workspace has an entry, i.e. the state
+     * has been refreshed by a full scan.
+     */
+    synchronized boolean isComplete() {
+        return complete;
+    }
+
+    synchronized void setComplete(boolean complete) {
+        if (this.complete != complete) {
+            this.complete = complete;
+            dirty = true;
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString().toUpperCase();
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() != 32) {
+            return null;
+        }
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+}
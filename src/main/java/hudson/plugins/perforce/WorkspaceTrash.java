@@ -0,0 +1,126 @@
+package hudson.plugins.perforce;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wipes workspaces by moving their content into a trash directory of the
+ * node, which is purged in the background.
+ * <p>
+ * Renaming within a file system is a constant time operation, so the build
+ * can continue right away instead of waiting for the deletion of the whole
+ * tree. Entries, which cannot be renamed (e.g. because the trash is on
+ * another file system), are deleted synchronously as before. The purge runs
+ * in a single daemon thread per node with at most one pending request, as
+ * each purge empties the whole trash including leftovers of earlier runs.
+ *
+ * @since 1.3.37
+ */
+class WorkspaceTrash {
+
+    private static final Logger LOGGER = Logger.getLogger(WorkspaceTrash.class.getName());
+
+    static final String TRASH_DIR = "perforce-trash";
+
+    private WorkspaceTrash() {
+        // static methods, do not instantiate
+    }
+
+    /**
+     * Moves the content of the workspace into the trash.
+     * @param workspace Workspace to wipe
+     * @param nodeRoot Root directory of the node, which hosts the trash
+     * @param filter Entries, which are not accepted, are kept
+     * @return Number of entries, which had to be deleted synchronously
+     */
+    static int wipe(FilePath workspace, FilePath nodeRoot, FileFilter filter) throws IOException, InterruptedException {
+        return workspace.act(new WipeCallable(nodeRoot.child(TRASH_DIR).getRemote(), filter));
+    }
+
+    private static class WipeCallable implements FileCallable<Integer> {
+        private static final long serialVersionUID = 1L;
+        private final String trash;
+        private final FileFilter filter;
+
+        WipeCallable(String trash, FileFilter filter) {
+            this.trash = trash;
+            this.filter = filter;
+        }
+
+        public Integer invoke(File workspace, VirtualChannel channel) throws IOException {
+            File[] entries = workspace.listFiles(filter);
+            if (entries == null || entries.length == 0) {
+                return 0;
+            }
+            File trashDir = new File(trash);
+            File batch = new File(trashDir, workspace.getName() + "-" + System.currentTimeMillis());
+            for (int i = 1; batch.exists() || !batch.mkdirs(); i++) {
+                if (i > 10) {
+                    throw new IOException("Cannot create directory in " + trashDir);
+                }
+                batch = new File(trashDir, workspace.getName() + "-" + System.currentTimeMillis() + "-" + i);
+            }
+            int deleted = 0;
+            for (File entry : entries) {
+                if (!entry.renameTo(new File(batch, entry.getName()))) {
+                    Util.deleteRecursive(entry);
+                    deleted++;
+                }
+            }
+            Purger.purge(trashDir);
+            return deleted;
+        }
+    }
+
+    /**
+     * Deletes the content of the trash in the background. Loaded on the
+     * node, so each node has its own purge thread.
+     */
+    private static final class Purger implements Runnable {
+        private static final ExecutorService EXECUTOR = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(1), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Perforce workspace purge");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
+
+        private final File trashDir;
+
+        private Purger(File trashDir) {
+            this.trashDir = trashDir;
+        }
+
+        static void purge(File trashDir) {
+            EXECUTOR.execute(new Purger(trashDir));
+        }
+
+        public void run() {
+            File[] batches = trashDir.listFiles();
+            if (batches == null) {
+                return;
+            }
+            for (File batch : batches) {
+                try {
+                    Util.deleteRecursive(batch);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Cannot purge " + batch, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package hudson.plugins.perforce;
+
+import com.tek42.perforce.Depot;
+import com.tek42.perforce.PerforceException;
+import com.tek42.perforce.model.FileStat;
+import com.tek42.perforce.model.Workspace;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Verified force sync.
+ * <p>
+ * Instead of transferring every file again with <tt>sync -f</tt>, the
+ * workspace is synced normally, then the files of the have list are hashed on
+ * the node and compared with the digests reported by <tt>p4 fstat -Ol</tt>.
+ * Only missing and modified files are force synced. Files which have been
+ * verified before and whose size and modification time haven't changed
+ * since are not hashed again, see {@link WorkspaceStateCache}.
+ *
+ * @since 1.3.37
+ */
+public class WorkspaceVerifier {
+
+    /**Number of files hashed by one task*/
+    private static final int BATCH_SIZE = 256;
+
+    private final FilePath workspace;
+    private final String lineEnd;
+
+    WorkspaceVerifier(FilePath workspace, Workspace p4workspace) {
+        this.workspace = workspace;
+        this.lineEnd = p4workspace.getLineEnd();
+    }
+
+    /**
+     * Syncs the workspace to the given path and repairs all files, which
+     * differ from the revision in the depot.
+     * @param depot Depot of the workspace
+     * @param syncPath Path to sync, revision specifiers are allowed
+     * @param log Build log
+     */
+    public void syncTo(Depot depot, String syncPath, PrintStream log) throws PerforceException, IOException, InterruptedException {
+        depot.getWorkspaces().syncTo(syncPath, false, false);
+
+        List<FileStat> stats = new ArrayList<FileStat>();
+        for (FileStat stat : depot.getWorkspaces().getFileStats(syncPath)) {
+            if (!stat.isDeleted() && stat.getHaveRev() > 0) {
+                stats.add(stat);
+            }
+        }
+        List<String> mismatched = workspace.act(new VerifyCallable(stats, lineEnd));
+        log.println("Verified " + stats.size() + " files, " + mismatched.size() + " of them need to be synced again.");
+        if (!mismatched.isEmpty()) {
+            depot.getWorkspaces().forceSyncFiles(mismatched);
+        }
+    }
+
+    /**
+     * Checks if the local content of the revision can be compared with the
+     * digest of the server.
+     */
+    static boolean isVerifiable(FileStat stat) {
+        return DepotFileCache.isCacheable(stat);
+    }
+
+    /**
+     * Computes the digest of the local file in the form used by the server,
+     * i.e. with line endings of text files normalized to LF.
+     * @param file Local file
+     * @param text True if the file has a text type
+     * @param lineEnd LineEnd option of the client
+     * @return Upper case hex string of the MD5 digest
+     */
+    static String getServerDigest(File file, boolean text, String lineEnd) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 is not supported: " + e.getMessage());
+        }
+        boolean crlf = false, cr = false;
+        if (text) {
+            String mode = lineEnd == null || lineEnd.length() == 0 ? "local" : lineEnd.toLowerCase();
+            if (mode.equals("local")) {
+                mode = File.separatorChar == '\\' ? "win" : "unix";
+            }
+            // Share writes LF on the client and only converts CRLF on submit
+            crlf = mode.equals("win");
+            cr = mode.equals("mac");
+        }
+
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            byte[] normalized = new byte[buffer.length + 1];
+            boolean pendingCR = false;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (!crlf && !cr) {
+                    md5.update(buffer, 0, read);
+                    continue;
+                }
+                int length = 0;
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer[i];
+                    if (cr) {
+                        normalized[length++] = b == '\r' ? (byte) '\n' : b;
+                    } else {
+                        if (pendingCR && b != '\n') {
+                            normalized[length++] = '\r';
+                        }
+                        pendingCR = b == '\r';
+                        if (!pendingCR) {
+                            normalized[length++] = b;
+                        }
+                    }
+                }
+                md5.update(normalized, 0, length);
+            }
+            if (pendingCR) {
+                md5.update((byte) '\r');
+            }
+        } finally {
+            in.close();
+        }
+
+        StringBuilder hex = new StringBuilder(32);
+        for (byte b : md5.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString().toUpperCase();
+    }
+
+    /**
+     * Hashes the files in parallel on the node.
+     * Returns depot paths with revisions of files, which have to be synced again.
+     */
+    private static class VerifyCallable implements FileCallable<List<String>> {
+        private static final long serialVersionUID = 1L;
+        private final List<FileStat> stats;
+        private final String lineEnd;
+
+        VerifyCallable(List<FileStat> stats, String lineEnd) {
+            this.stats = stats;
+            this.lineEnd = lineEnd;
+        }
+
+        public List<String> invoke(File ws, VirtualChannel channel) throws IOException {
+            final WorkspaceStateCache state = WorkspaceStateCache.load(ws);
+            ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try {
+                List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+                for (int start = 0; start < stats.size(); start += BATCH_SIZE) {
+                    final List<FileStat> batch = stats.subList(start, Math.min(start + BATCH_SIZE, stats.size()));
+                    futures.add(executor.submit(new java.util.concurrent.Callable<List<String>>() {
+                        public List<String> call() throws IOException {
+                            return verify(batch, state);
+                        }
+                    }));
+                }
+                List<String> mismatched = new ArrayList<String>();
+                for (Future<List<String>> future : futures) {
+                    mismatched.addAll(future.get());
+                }
+                state.save();
+                return mismatched;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                IOException ioe = new IOException("Verification has been interrupted");
+                ioe.initCause(e);
+                throw ioe;
+            } catch (ExecutionException e) {
+                IOException ioe = new IOException("Verification failed: " + e.getCause());
+                ioe.initCause(e.getCause());
+                throw ioe;
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        private List<String> verify(List<FileStat> batch, WorkspaceStateCache state) throws IOException {
+            List<String> mismatched = new ArrayList<String>();
+            for (FileStat stat : batch) {
+                File file = new File(stat.getClientFile());
+                String path = state.getRelativePath(file);
+                long scanned = System.currentTimeMillis();
+                boolean valid;
+                if (!file.isFile()) {
+                    valid = false;
+                } else if (!isVerifiable(stat)) {
+                    // Content differs from the digest by design, e.g. keyword expansion
+                    valid = false;
+                } else if (!stat.isText() && file.length() != stat.getFileSize()) {
+                    valid = false;
+                } else if (path != null && isUnchanged(state.get(path), file, stat)) {
+                    // Hashed by a previous verification and not touched since
+                    valid = true;
+                } else {
+                    valid = getServerDigest(file, stat.isText(), lineEnd).equalsIgnoreCase(stat.getDigest());
+                }
+                if (path != null) {
+                    if (valid) {
+                        state.recordVerified(path, file, stat.getHaveRev(), stat.getDigest(), scanned);
+                    } else {
+                        state.remove(path);
+                    }
+                }
+                if (!valid) {
+                    mismatched.add(stat.getDepotFileAtHead());
+                }
+            }
+            return mismatched;
+        }
+
+        private static boolean isUnchanged(WorkspaceStateCache.Entry entry, File file, FileStat stat) {
+            return entry != null && entry.verified && entry.matches(file)
+                    && entry.haveRev == stat.getHaveRev() && stat.getDigest().equalsIgnoreCase(entry.getDigest());
+        }
+    }
+}
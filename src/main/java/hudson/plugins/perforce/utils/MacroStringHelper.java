@@ -32,7 +32,13 @@ import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.plugins.perforce.PerforceSCM;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Level;
@@ -174,16 +180,16 @@ public class MacroStringHelper {
         if (string == null) {
             return null;
         }
-        String newString = string;
-        for (Map.Entry<String, String> entry : subst.entrySet()) {
-            final @CheckForNull String key = entry.getKey();
-            final @CheckForNull String value = entry.getValue(); 
-            if (key == null || value == null) {
-                continue;
-            }
-            newString = newString.replace("${" + key + "}", value);
+        MacroTemplate template = MacroTemplate.compile(string);
+        if (!template.hasReferences()) {
+            return string;
+        }
+        try {
+            return template.resolve(Collections.singletonList(MacroTemplate.Layer.of(subst)));
+        } catch (InterruptedException ex) {
+            // Fixed layers are not computed
+            throw new AssertionError(ex);
         }
-        return newString;
     }
     
     /**
@@ -222,36 +228,16 @@ public class MacroStringHelper {
             @CheckForNull Node node,
             @CheckForNull Map<String, String> env) throws InterruptedException {
         
-        if (!containsMacro(inputString)) { // do nothing for the missing macro
+        MacroTemplate template = MacroTemplate.compile(inputString);
+        if (!template.hasReferences()) { // do nothing for the missing macro
             return inputString;
         }
-        String outputString = inputString;
-        
-        // Substitute additional environment vars if possible
-        if (env != null && !env.isEmpty()) {
-            outputString = substituteParametersNoCheck(outputString, env);
-            if (!containsMacro(outputString)) { //exit if no macros left
-                return outputString;
-            }
-        }
-                
-        // Prepare the substitution container and substitute vars
-        Map<String, String> substitutions = new HashMap<String, String>();
-        getDefaultCoreSubstitutions(substitutions);
-        NodeSubstitutionHelper.getDefaultNodeSubstitutions(instance, node, substitutions);
-        if (project != null) { 
-            JobSubstitutionHelper.getDefaultSubstitutions(project, substitutions);
-        }
-        getDefaultSubstitutions(instance, substitutions);
-        int count = 0;
-        
-        do{
-        	 outputString = substituteParametersNoCheck(outputString, substitutions);  
-        	 count++;
-        }while(count<4 && containsMacro(outputString));
-           
-        
-        return outputString;
+        Context context = getContext(instance, project, node);
+        List<MacroTemplate.Layer> layers = new ArrayList<MacroTemplate.Layer>(3);
+        layers.add(MacroTemplate.Layer.of(env));
+        layers.add(context.staticVars);
+        layers.add(context.computerVars);
+        return template.resolve(layers);
     }
     
     /**
@@ -269,41 +255,196 @@ public class MacroStringHelper {
             @Nonnull AbstractBuild build, 
             @CheckForNull Map<String, String> env) throws InterruptedException {
         
-        if (!containsMacro(inputString)) {
+        MacroTemplate template = MacroTemplate.compile(inputString);
+        if (!template.hasReferences()) {
             return inputString;
         }
-        String result = inputString;
-        
-        // Substitute variables with custom values (escaping, etc)
-        final Map<String, String> customVars = new TreeMap<String, String>();
-        customVars.put("JOB_NAME", JobSubstitutionHelper.getSafeJobName(build));
-        result = MacroStringHelper.substituteParametersNoCheck(result, customVars);
-        
-        // Try to build the full environment. Nested calls count is handled in PerforceSCM::buildEnvVars() 
-        Map<String, String> environmentVarsFromExtensions = new TreeMap<String, String>();
-        try {
-            EnvVars vars = build.getEnvironment(TaskListener.NULL);
-            environmentVarsFromExtensions.putAll(vars);
-        } catch (IOException ex) {
-            Logger.getLogger(PerforceSCM.class.getName()).log(Level.SEVERE, null, ex);
+        // Variables with custom values (escaping, etc) first, then the full environment,
+        // static variables, default build variables and build parameters
+        Context context = getContext(instance, build);
+        List<MacroTemplate.Layer> layers = new ArrayList<MacroTemplate.Layer>(7);
+        layers.add(context.customVars);
+        layers.add(context.buildEnvironment);
+        layers.add(MacroTemplate.Layer.of(env));
+        layers.add(context.staticVars);
+        layers.add(context.computerVars);
+        layers.add(context.buildDefaults);
+        layers.add(context.buildVariables);
+        return template.resolve(layers);
+    }
+    
+    /**
+     * Variables of a build, or of a project on a node, which are computed on
+     * first use and shared by the substitutions of one checkout or poll.
+     * A context expires after a few seconds, and when the node, the
+     * workspace or the actions of the build change, so that variables added
+     * during the build are seen by later substitutions.
+     */
+    private static final class Context {
+        private final long created = System.currentTimeMillis();
+        private final List<Object> stamp;
+        MacroTemplate.Layer customVars;
+        MacroTemplate.Layer buildEnvironment;
+        MacroTemplate.Layer staticVars;
+        MacroTemplate.Layer computerVars;
+        MacroTemplate.Layer buildDefaults;
+        MacroTemplate.Layer buildVariables;
+
+        Context(List<Object> stamp) {
+            this.stamp = stamp;
         }
-        result = MacroStringHelper.substituteParametersNoCheck(result, environmentVarsFromExtensions);
-              
-        // Intermediate check to avoid wasted efforts
-        if (!containsMacro(result)) {
-            return result;
+
+        boolean isValid(List<Object> stamp, long now) {
+            return now - created < CONTEXT_TTL_MILLIS && this.stamp.equals(stamp);
         }
-        
-        // Substitute static variables
-        result = substituteParametersNoCheck(result, instance, build.getProject(), build.getBuiltOn(), env);
-              
-        // Substitute default build variables
+    }
+    
+    private static final long CONTEXT_TTL_MILLIS = 10000;
+    private static final int MAX_CONTEXTS = 32;
+    
+    /**Recent contexts by build or project*/
+    private static final Map<Object, Context> CONTEXTS = new LinkedHashMap<Object, Context>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Context> eldest) {
+            return size() > MAX_CONTEXTS;
+        }
+    };
+    
+    private static Context getContext(
+            @Nonnull final PerforceSCM instance,
+            @CheckForNull final AbstractProject project,
+            @CheckForNull final Node node) {
+        final List<Object> stamp = Arrays.<Object>asList(instance, node);
+        Context context = getCachedContext(project, stamp);
+        if (context == null) {
+            context = new Context(stamp);
+            context.staticVars = new MacroTemplate.Layer() {
+                @Override
+                protected Map<String, String> compute() {
+                    return getStaticSubstitutions(instance, project, node);
+                }
+            };
+            context.computerVars = NodeSubstitutionHelper.getComputerVariables(node, context.staticVars);
+            putCachedContext(project, context);
+        }
+        return context;
+    }
+    
+    private static Context getContext(
+            @Nonnull final PerforceSCM instance,
+            @Nonnull final AbstractBuild build) {
+        final Node node = build.getBuiltOn();
+        final List<Object> stamp = Arrays.<Object>asList(instance, node,
+                build.getWorkspace() != null ? build.getWorkspace().getRemote() : null, build.getActions().size());
+        Context context = getCachedContext(build, stamp);
+        if (context == null) {
+            context = new Context(stamp);
+            context.customVars = MacroTemplate.Layer.of(
+                    Collections.singletonMap("JOB_NAME", JobSubstitutionHelper.getSafeJobName(build)));
+            context.buildEnvironment = new MacroTemplate.Layer() {
+                @Override
+                protected Map<String, String> compute() throws InterruptedException {
+                    // Try to build the full environment. Nested calls count is handled in PerforceSCM::buildEnvVars() 
+                    Map<String, String> environmentVarsFromExtensions = new TreeMap<String, String>();
+                    try {
+                        EnvVars vars = build.getEnvironment(TaskListener.NULL);
+                        environmentVarsFromExtensions.putAll(vars);
+                    } catch (IOException ex) {
+                        Logger.getLogger(PerforceSCM.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                    return environmentVarsFromExtensions;
+                }
+            };
+            context.staticVars = new MacroTemplate.Layer() {
+                @Override
+                protected Map<String, String> compute() {
+                    return getStaticSubstitutions(instance, build.getProject(), node);
+                }
+            };
+            context.computerVars = NodeSubstitutionHelper.getComputerVariables(node, context.staticVars);
+            context.buildDefaults = new MacroTemplate.Layer() {
+                @Override
+                protected Map<String, String> compute() {
+                    Map<String, String> substitutions = new HashMap<String, String>();
+                    getDefaultBuildSubstitutions(build, substitutions);
+                    return substitutions;
+                }
+            };
+            context.buildVariables = new MacroTemplate.Layer() {
+                @Override
+                protected Map<String, String> compute() {
+                    return build.getBuildVariables();
+                }
+            };
+            putCachedContext(build, context);
+        }
+        return context;
+    }
+    
+    /**
+     * Gets a recent context. Substitutions within the computation of the
+     * build environment get a new context, as they see a partial environment.
+     */
+    @CheckForNull
+    private static Context getCachedContext(@CheckForNull Object key, @Nonnull List<Object> stamp) {
+        if (key == null || isComputingEnvironment()) {
+            return null;
+        }
+        synchronized (CONTEXTS) {
+            Context context = CONTEXTS.get(key);
+            if (context != null && context.isValid(stamp, System.currentTimeMillis())) {
+                return context;
+            }
+            CONTEXTS.remove(key);
+            return null;
+        }
+    }
+    
+    private static void putCachedContext(@CheckForNull Object key, @Nonnull Context context) {
+        if (key == null || isComputingEnvironment()) {
+            return;
+        }
+        synchronized (CONTEXTS) {
+            // Don't keep builds and projects longer than needed
+            long now = System.currentTimeMillis();
+            for (Iterator<Context> it = CONTEXTS.values().iterator(); it.hasNext(); ) {
+                if (now - it.next().created >= CONTEXT_TTL_MILLIS) {
+                    it.remove();
+                }
+            }
+            CONTEXTS.put(key, context);
+        }
+    }
+    
+    /**
+     * Checks if the current thread is computing the environment of a build.
+     */
+    private static boolean isComputingEnvironment() {
+        for (StackTraceElement ste : (new Throwable()).getStackTrace()) {
+            if (ste.getMethodName().equals("buildEnvVars") && ste.getClassName().equals(PerforceSCM.class.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Gets the variables of the instance, node and project. Values may
+     * refer to other variables of the map, and to the variables of the
+     * computer, which follow them.
+     */
+    private static Map<String, String> getStaticSubstitutions(
+            @Nonnull PerforceSCM instance,
+            @CheckForNull AbstractProject project,
+            @CheckForNull Node node) {
         Map<String, String> substitutions = new HashMap<String, String>();
-        getDefaultBuildSubstitutions(build, substitutions);    
-        result = MacroStringHelper.substituteParametersNoCheck(result, substitutions);
-        result = MacroStringHelper.substituteParametersNoCheck(result, build.getBuildVariables());
-              
-        return result;
+        getDefaultCoreSubstitutions(substitutions);
+        NodeSubstitutionHelper.getDefaultNodeSubstitutions(instance, node, substitutions);
+        if (project != null) { 
+            JobSubstitutionHelper.getDefaultSubstitutions(project, substitutions);
+        }
+        getDefaultSubstitutions(instance, substitutions);
+        return substitutions;
     }
     
     /**
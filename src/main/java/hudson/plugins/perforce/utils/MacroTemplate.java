@@ -0,0 +1,147 @@
+package hudson.plugins.perforce.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A string split into literal text and <tt>${VAR}</tt> references.
+ * <p>
+ * References are resolved against a list of {@link Layer}s in the order of
+ * their priority. A layer is computed only when a reference isn't found in
+ * the layers before it. Values may contain references themselves, which are
+ * resolved against the layer of the value and the layers after it, up to
+ * {@link #MAX_DEPTH} levels. Unresolved references are kept as they are, so
+ * that {@link MacroStringHelper#checkString(String)} reports them.
+ * @since 1.3.37
+ */
+final class MacroTemplate {
+
+    /**Maximum nesting of references in values*/
+    static final int MAX_DEPTH = 4;
+    private static final int MAX_CACHED_TEMPLATES = 512;
+
+    private static final ConcurrentMap<String, MacroTemplate> TEMPLATES = new ConcurrentHashMap<String, MacroTemplate>();
+
+    /**Literal text, one more than references*/
+    private final String[] literals;
+    private final String[] names;
+
+    /**
+     * Variables, which are computed on first use.
+     */
+    static abstract class Layer {
+        private Map<String, String> values;
+
+        /**
+         * Computes the variables. Null values are ignored.
+         */
+        @CheckForNull
+        protected abstract Map<String, String> compute() throws InterruptedException;
+
+        final synchronized Map<String, String> get() throws InterruptedException {
+            if (values == null) {
+                Map<String, String> computed = compute();
+                values = computed != null ? computed : Collections.<String, String>emptyMap();
+            }
+            return values;
+        }
+
+        static Layer of(@CheckForNull final Map<String, String> values) {
+            return new Layer() {
+                @Override
+                protected Map<String, String> compute() {
+                    return values;
+                }
+            };
+        }
+    }
+
+    private MacroTemplate(String[] literals, String[] names) {
+        this.literals = literals;
+        this.names = names;
+    }
+
+    /**
+     * Gets the parsed form of the string. Templates are cached, as the same
+     * strings of the job configuration are substituted over and over.
+     */
+    static MacroTemplate compile(@Nonnull String string) {
+        MacroTemplate template = TEMPLATES.get(string);
+        if (template == null) {
+            template = parse(string);
+            if (TEMPLATES.size() >= MAX_CACHED_TEMPLATES) {
+                TEMPLATES.clear();
+            }
+            TEMPLATES.put(string, template);
+        }
+        return template;
+    }
+
+    private static MacroTemplate parse(String string) {
+        List<String> literals = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        int pos = 0;
+        while (pos < string.length()) {
+            int start = string.indexOf("${", pos);
+            int end = start < 0 ? -1 : string.indexOf('}', start + 2);
+            if (end < 0) {
+                break;
+            }
+            // "${a${b}" references b
+            start = string.lastIndexOf("${", end);
+            literal.append(string, pos, start);
+            literals.add(literal.toString());
+            literal.setLength(0);
+            names.add(string.substring(start + 2, end));
+            pos = end + 1;
+        }
+        literal.append(string, pos, string.length());
+        literals.add(literal.toString());
+        return new MacroTemplate(literals.toArray(new String[literals.size()]), names.toArray(new String[names.size()]));
+    }
+
+    boolean hasReferences() {
+        return names.length > 0;
+    }
+
+    /**
+     * Resolves the references.
+     * @param layers Variables by descending priority
+     */
+    String resolve(@Nonnull List<Layer> layers) throws InterruptedException {
+        return resolve(layers, 0, 0);
+    }
+
+    private String resolve(List<Layer> layers, int firstLayer, int depth) throws InterruptedException {
+        if (names.length == 0) {
+            return literals[0];
+        }
+        StringBuilder result = new StringBuilder(literals[0]);
+        for (int i = 0; i < names.length; i++) {
+            String value = null;
+            int layer = firstLayer;
+            for (; layer < layers.size(); layer++) {
+                value = layers.get(layer).get().get(names[i]);
+                if (value != null) {
+                    break;
+                }
+            }
+            if (value == null) {
+                result.append("${").append(names[i]).append('}');
+            } else if (depth < MAX_DEPTH - 1 && value.contains("${")) {
+                result.append(compile(value).resolve(layers, layer, depth + 1));
+            } else {
+                result.append(value);
+            }
+            result.append(literals[i + 1]);
+        }
+        return result.toString();
+    }
+}
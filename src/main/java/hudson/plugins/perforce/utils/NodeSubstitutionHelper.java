@@ -25,15 +25,21 @@
 package hudson.plugins.perforce.utils;
 
 import hudson.EnvVars;
+import hudson.Extension;
 import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Hudson;
 import hudson.model.Node;
+import hudson.model.TaskListener;
 import hudson.plugins.perforce.PerforceSCM;
+import hudson.slaves.ComputerListener;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
 import hudson.slaves.NodeProperty;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
@@ -50,10 +56,49 @@ public class NodeSubstitutionHelper {
     private NodeSubstitutionHelper() {
     }
 
+    /**Hostnames and environments of computers, by computer name*/
+    private static final ConcurrentMap<String, CachedComputer> COMPUTERS = new ConcurrentHashMap<String, CachedComputer>();
+
+    /**
+     * Remote lookups of a {@link Computer}, which are made once while it is online.
+     */
+    private static final class CachedComputer {
+        final Computer computer;
+        volatile String hostName;
+        volatile EnvVars environment;
+
+        CachedComputer(Computer computer) {
+            this.computer = computer;
+        }
+    }
+
+    /**
+     * Drops the cached lookups when computers come and go or nodes are reconfigured.
+     * @since 1.3.37
+     */
+    @Extension
+    public static class CacheInvalidator extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            COMPUTERS.remove(c.getName());
+        }
+
+        @Override
+        public void onOffline(Computer c) {
+            COMPUTERS.remove(c.getName());
+        }
+
+        @Override
+        public void onConfigurationChange() {
+            COMPUTERS.clear();
+        }
+    }
+
     /**
      * Gets default variable substitutions for the {@link Node}.
      * The method injects global and node-specific {@link EnvironmentVariablesNodeProperty}
-     * instances.
+     * instances. The hostname and the environment of the computer are provided
+     * by {@link #getComputerVariables}.
      * @param instance Instance of {@link PerforceSCM}
      * @param node Target node. Can be null
      * @param target Output collection
@@ -61,7 +106,7 @@ public class NodeSubstitutionHelper {
     /*package*/ static void getDefaultNodeSubstitutions(
             @Nonnull PerforceSCM instance,
             @CheckForNull Node node, 
-            @Nonnull Map<String, String> target) throws  InterruptedException {     
+            @Nonnull Map<String, String> target) {
         // Global node properties
         for (NodeProperty globalNodeProperty: Hudson.getInstance().getGlobalNodeProperties()) {
             if (globalNodeProperty instanceof EnvironmentVariablesNodeProperty) {
@@ -79,26 +124,45 @@ public class NodeSubstitutionHelper {
        
             final String nodeName = node.getNodeName();
             
-            // Push legacy variables
+            // Push legacy variables, hostname comes with the computer variables
             target.put("nodename", nodeName);
-            target.put("hostname", getHostName(node));
+            target.remove("hostname");
             target.put("hash", getNodeHash(node));
             
             // Push modern variables
             target.put("NODE_NAME", nodeName.isEmpty() ? "master" : nodeName);
             target.put("NODE_LABELS", Util.join(node.getAssignedLabels(), " "));
-            
-            // Get environment
-            Computer c = node.toComputer();
-            if (c != null) {
-                try {
-                    EnvVars env = c.getEnvironment().overrideAll(target);
-                    target.putAll(env);
-                } catch (IOException ex) {
-                    // Ignore exception
+        }
+    }
+
+    /**
+     * Gets the hostname and the environment of the computer of the node.
+     * Both are remote calls, so the layer is meant to follow the layers of
+     * the other variables: it is only computed when a reference isn't found
+     * there, and the calls are made once per computer while it is online.
+     * @param node Target node. Can be null
+     * @param overrides Variables, which override the environment of the computer
+     * @since 1.3.37
+     */
+    /*package*/ static MacroTemplate.Layer getComputerVariables(
+            @CheckForNull final Node node,
+            @Nonnull final MacroTemplate.Layer overrides) {
+        return new MacroTemplate.Layer() {
+            @Override
+            protected Map<String, String> compute() throws InterruptedException {
+                if (node == null) {
+                    return null;
                 }
+                Map<String, String> variables = new HashMap<String, String>();
+                Computer c = node.toComputer();
+                EnvVars env = c != null ? getComputerEnvironment(c) : null;
+                if (env != null) {
+                    variables.putAll(new EnvVars(env).overrideAll(overrides.get()));
+                }
+                variables.put("hostname", getHostName(node));
+                return variables;
             }
-        }
+        };
     }
     
     /**
@@ -118,7 +182,12 @@ public class NodeSubstitutionHelper {
         try {
             Computer c = node.toComputer();
             if (c != null) {
-                host = c.getHostName();
+                CachedComputer cached = getCachedComputer(c);
+                host = cached.hostName;
+                if (host == null) {
+                    host = c.getHostName();
+                    cached.hostName = host;
+                }
             }
         } catch (IOException ex) {
             // fallback to finally
@@ -133,4 +202,28 @@ public class NodeSubstitutionHelper {
         }
         return host;
     }
+
+    @CheckForNull
+    private static EnvVars getComputerEnvironment(@Nonnull Computer c) throws InterruptedException {
+        CachedComputer cached = getCachedComputer(c);
+        EnvVars env = cached.environment;
+        if (env == null) {
+            try {
+                env = c.getEnvironment();
+                cached.environment = env;
+            } catch (IOException ex) {
+                // Ignore exception
+            }
+        }
+        return env;
+    }
+
+    private static CachedComputer getCachedComputer(@Nonnull Computer c) {
+        CachedComputer cached = COMPUTERS.get(c.getName());
+        if (cached == null || cached.computer != c) {
+            cached = new CachedComputer(c);
+            COMPUTERS.put(c.getName(), cached);
+        }
+        return cached;
+    }
 }
@@ -0,0 +1,88 @@
+package com.tek42.perforce.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import junit.framework.TestCase;
+
+public class ChangelistTest extends TestCase {
+
+    public void testNumbers() {
+        Changelist.FileEntry entry = new Changelist.FileEntry();
+        entry.setRevision("12");
+        entry.setChangenumber("4711");
+        assertEquals("12", entry.getRevision());
+        assertEquals(12, entry.getRevisionNumber());
+        assertEquals("4711", entry.getChangenumber());
+        assertEquals(4711, entry.getChangeNumberValue());
+
+        entry.setChangeNumberValue(42);
+        assertEquals("42", entry.getChangenumber());
+        entry.setRevisionNumber(-5);
+        assertNull(entry.getRevision());
+    }
+
+    public void testOtherValuesAreKept() {
+        Changelist.FileEntry entry = new Changelist.FileEntry();
+        assertNull(entry.getRevision());
+        assertNull(entry.getChangenumber());
+
+        entry.setRevision("none");
+        entry.setChangenumber("head");
+        assertEquals("none", entry.getRevision());
+        assertEquals(-1, entry.getRevisionNumber());
+        assertEquals("head", entry.getChangenumber());
+        assertEquals(-1, entry.getChangeNumberValue());
+
+        // Not restorable from the number
+        entry.setRevision("007");
+        assertEquals("007", entry.getRevision());
+        entry.setRevision("-1");
+        assertEquals("-1", entry.getRevision());
+        entry.setRevision("99999999999");
+        assertEquals("99999999999", entry.getRevision());
+
+        entry.setRevision(null);
+        assertNull(entry.getRevision());
+    }
+
+    public void testPaths() {
+        Changelist.FileEntry entry = new Changelist.FileEntry();
+        entry.setFilename("//depot/project/src/Main.java");
+        entry.setWorkspacePath("C:\\work\\src\\Main.java");
+        assertEquals("//depot/project/src/Main.java", entry.getFilename());
+        assertEquals("//depot/project/src/Main.java", entry.getPath());
+        assertEquals("C:\\work\\src\\Main.java", entry.getWorkspacePath());
+
+        entry.setFilename("file");
+        assertEquals("file", entry.getFilename());
+        entry.setFilename(null);
+        assertNull(entry.getFilename());
+    }
+
+    public void testDirectoriesAreShared() {
+        String directory = PathDictionary.intern(new String("//depot/project/src/"));
+        assertSame(directory, PathDictionary.intern(new String("//depot/project/src/")));
+    }
+
+    public void testSerialization() throws Exception {
+        Changelist.FileEntry entry = new Changelist.FileEntry();
+        entry.setFilename("//depot/project/src/Main.java");
+        entry.setRevision("none");
+        entry.setChangenumber("4711");
+        entry.setAction(Changelist.FileEntry.Action.MOVE_ADD);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(entry);
+        out.close();
+        Changelist.FileEntry copy = (Changelist.FileEntry) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals("//depot/project/src/Main.java", copy.getFilename());
+        assertEquals("none", copy.getRevision());
+        assertEquals("4711", copy.getChangenumber());
+        assertEquals(Changelist.FileEntry.Action.MOVE_ADD, copy.getAction());
+    }
+}
@@ -0,0 +1,183 @@
+package com.tek42.perforce.parse;
+
+import com.tek42.perforce.Depot;
+import com.tek42.perforce.PerforceException;
+import com.tek42.perforce.model.Changelist;
+import com.tek42.perforce.process.Executor;
+import com.tek42.perforce.process.ExecutorFactory;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+public class ChangesTest extends TestCase {
+
+    private static final String DESCRIBE =
+            "Change 1234 by jenkins@builder on 2012/03/04 05:06:07\n"
+            + "\n"
+            + "\tFixes the build\n"
+            + "\n"
+            + "Jobs fixed ...\n"
+            + "\n"
+            + "JOB-1 on 2012/03/04 by jenkins *closed*\n"
+            + "\n"
+            + "\tBroken build\n"
+            + "\n"
+            + "Affected files ...\n"
+            + "\n"
+            + "... //depot/a.c#3 edit\n"
+            + "... //depot/b c.c#1 add\n"
+            + "... //depot/c.c#2 delete\n"
+            + "\n";
+
+    private final List<List<String>> commands = new ArrayList<List<String>>();
+
+    public void testStreamsFiles() throws PerforceException, IOException {
+        RecordingHandler handler = new RecordingHandler();
+        describe(DESCRIBE, 1234, -1, handler);
+
+        assertEquals(Arrays.asList("start 1234", "file //depot/a.c#3 edit", "file //depot/b c.c#1 add",
+                "file //depot/c.c#2 delete", "end"), handler.events);
+        assertEquals("Fixes the build", handler.change.getDescription());
+        assertEquals(1, handler.change.getJobs().size());
+        assertTrue(handler.change.getFiles().isEmpty());
+        // The workspace mapping is read once for all the files
+        int wheres = 0;
+        for (List<String> command : commands) {
+            if (command.contains("where")) {
+                wheres++;
+            }
+        }
+        assertEquals(1, wheres);
+    }
+
+    public void testFileLimit() throws PerforceException, IOException {
+        RecordingHandler handler = new RecordingHandler();
+        describe(DESCRIBE, 1234, 2, handler);
+
+        assertEquals(Arrays.asList("start 1234", "file //depot/a.c#3 edit", "file //depot/b c.c#1 add", "end"),
+                handler.events);
+    }
+
+    public void testChangeWithoutFiles() throws PerforceException, IOException {
+        RecordingHandler handler = new RecordingHandler();
+        describe("Change 1235 by jenkins@builder on 2012/03/04 05:06:07\n\n\tEmpty\n\nAffected files ...\n\n",
+                1235, -1, handler);
+
+        assertEquals(Arrays.asList("start 1235", "end"), handler.events);
+    }
+
+    public void testOutputBeforeLoginIsDropped() throws PerforceException, IOException {
+        RecordingHandler handler = new RecordingHandler();
+        describe("Perforce password (P4PASSWD) invalid or unset.\n" + DESCRIBE, 1234, -1, handler);
+
+        assertEquals("Fixes the build", handler.change.getDescription());
+        assertEquals(5, handler.events.size());
+    }
+
+    public void testHandlerFailure() throws PerforceException {
+        RecordingHandler handler = new RecordingHandler() {
+            @Override
+            public void addFile(Changelist.FileEntry file) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        try {
+            describe(DESCRIBE, 1234, -1, handler);
+            fail("Exception expected");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+        assertEquals(Arrays.asList("start 1234"), handler.events);
+    }
+
+    /**
+     * Passes the output of 'p4 describe' through the filter line by line.
+     */
+    private void describe(String output, int number, int maxFiles, Changes.ChangelistHandler handler)
+            throws PerforceException, IOException {
+        Depot depot = new Depot(new ExecutorFactory() {
+            public void setEnv(Map<String, String> env) {
+            }
+
+            public Executor newExecutor() {
+                return new FakeExecutor(commands);
+            }
+        });
+        depot.setPort("changes:1666");
+        depot.setUser("jenkins");
+        Changes changes = new Changes(depot);
+        Changes.DescribeFilter filter = changes.new DescribeFilter(new ChangelistBuilder(maxFiles, depot), maxFiles, handler);
+        for (String line : output.split("\n")) {
+            filter.accept(line);
+        }
+        filter.finish(number);
+    }
+
+    private static class RecordingHandler implements Changes.ChangelistHandler {
+        final List<String> events = new ArrayList<String>();
+        Changelist change;
+
+        public void startChange(Changelist change) throws IOException {
+            this.change = change;
+            events.add("start " + change.getChangeNumber());
+        }
+
+        public void addFile(Changelist.FileEntry file) throws IOException {
+            events.add("file " + file.getFilename() + "#" + file.getRevision() + " " + file.getAction().toString().toLowerCase());
+        }
+
+        public void endChange() throws IOException {
+            events.add("end");
+        }
+    }
+
+    /**
+     * Answers 'p4 where' without any mapping.
+     */
+    private static final class FakeExecutor implements Executor {
+        private final List<List<String>> commands;
+        private final String output = "";
+
+        FakeExecutor(List<List<String>> commands) {
+            this.commands = commands;
+        }
+
+        public void exec(String[] args) {
+            commands.add(Arrays.asList(args));
+        }
+
+        public BufferedWriter getWriter() {
+            return new BufferedWriter(new OutputStreamWriter(getOutputStream()));
+        }
+
+        public OutputStream getOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        public BufferedReader getReader() {
+            return new BufferedReader(new StringReader(output));
+        }
+
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(output.getBytes());
+        }
+
+        public void close() {
+        }
+
+        public boolean isAlive() {
+            return false;
+        }
+    }
+}
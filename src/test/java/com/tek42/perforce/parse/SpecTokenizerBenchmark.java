@@ -0,0 +1,69 @@
+package com.tek42.perforce.parse;
+
+import com.tek42.perforce.PerforceException;
+import java.util.Arrays;
+
+/**
+ * Compares the time taken by {@link SpecTokenizer} and by the expression
+ * used before to parse a client form with a large view. Not a test and no
+ * server is needed, run it by hand:
+ * <pre>
+ * java -cp ... com.tek42.perforce.parse.SpecTokenizerBenchmark [view lines] [runs]
+ * </pre>
+ * Each parser runs a few times unmeasured first, then the median of the
+ * measured runs is printed.
+ */
+public class SpecTokenizerBenchmark {
+
+	private static final int WARMUP_RUNS = 5;
+
+	public static void main(String[] args) throws PerforceException {
+		int lines = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 11;
+		String form = createForm(lines);
+
+		long[] tokenizer = new long[runs];
+		long[] builder = new long[runs];
+		long[] regex = new long[runs];
+		for (int run = -WARMUP_RUNS; run < runs; run++) {
+			long start = System.nanoTime();
+			SpecTokenizer.parseForm(form);
+			long tokenized = System.nanoTime();
+			new WorkspaceBuilder().build(new StringBuilder(form));
+			long built = System.nanoTime();
+			SpecTokenizerTest.parseLegacy(form);
+			long matched = System.nanoTime();
+			if (run >= 0) {
+				tokenizer[run] = tokenized - start;
+				builder[run] = built - tokenized;
+				regex[run] = matched - built;
+			}
+		}
+		System.out.println(lines + " view lines, median of " + runs + " runs:");
+		System.out.println("  tokenizer         " + median(tokenizer) + " ms");
+		System.out.println("  workspace builder " + median(builder) + " ms");
+		System.out.println("  regex             " + median(regex) + " ms");
+	}
+
+	private static String createForm(int lines) {
+		StringBuilder form = new StringBuilder();
+		form.append("Client:\tmy-client\n\n");
+		form.append("Update:\t2012/01/02 03:04:05\n\n");
+		form.append("Owner:\tbuilder\n\n");
+		form.append("Description:\n\tCreated by builder.\n\n");
+		form.append("Root:\t/var/lib/jenkins/workspace\n\n");
+		form.append("Options:\tnoallwrite clobber nocompress unlocked nomodtime rmdir\n\n");
+		form.append("View:\n");
+		for (int i = 0; i < lines; i++) {
+			form.append("\t//depot/project").append(i).append("/... //my-client/project").append(i).append("/...\n");
+		}
+		form.append("\nAltRoots:\t/tmp/alt\n");
+		return form.toString();
+	}
+
+	private static String median(long[] nanos) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		return String.format("%.1f", sorted[sorted.length / 2] / 1000000.0);
+	}
+}
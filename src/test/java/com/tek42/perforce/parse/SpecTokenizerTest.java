@@ -0,0 +1,116 @@
+package com.tek42.perforce.parse;
+
+import com.tek42.perforce.PerforceException;
+import com.tek42.perforce.model.Counter;
+import com.tek42.perforce.model.Workspace;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+
+public class SpecTokenizerTest extends TestCase {
+
+	private static final String CLIENT_FORM =
+			"# A Perforce Client Specification.\n"
+			+ "#\n"
+			+ "#  Client:      The client name.\n"
+			+ "\n"
+			+ "Client:\tmy-client\n"
+			+ "\n"
+			+ "Update:\t2012/01/02 03:04:05\n"
+			+ "\n"
+			+ "Owner:\tbuilder\n"
+			+ "\n"
+			+ "Description:\n"
+			+ "\tFirst line\n"
+			+ "\tsee: second line\n"
+			+ "\n"
+			+ "Root:\t/var/lib/jenkins/workspace\n"
+			+ "\n"
+			+ "Options:\tnoallwrite clobber nocompress unlocked nomodtime rmdir\n"
+			+ "\n"
+			+ "View:\n"
+			+ "\t//depot/main/... //my-client/main/...\n"
+			+ "\t-//depot/main/doc/... //my-client/main/doc/...\n"
+			+ "\n";
+
+	public void testFormMatchesLegacyParser() {
+		assertEquals(parseLegacy(CLIENT_FORM), SpecTokenizer.parseForm(CLIENT_FORM));
+	}
+
+	public void testLastFieldWithoutNewLine() {
+		Map<String, String> fields = SpecTokenizer.parseForm("User:\tjoe\n\nEmail:\tjoe@example.com");
+		assertEquals("joe", fields.get("User"));
+		assertEquals("joe@example.com", fields.get("Email"));
+	}
+
+	public void testShortNamesContinueValue() {
+		Map<String, String> fields = SpecTokenizer.parseForm("Description:\n\tfoo\nab: bar\nOwner: me\n");
+		assertEquals("foo\nab: bar", fields.get("Description"));
+		assertEquals("me", fields.get("Owner"));
+	}
+
+	public void testSplitLines() {
+		for (String value : new String[] { "", "\n", "a", "a\n", "a\n\nb\n\n", "\n\ta\n\tb" }) {
+			assertEquals(value, Arrays.asList(value.split("\n")), SpecTokenizer.splitLines(value));
+		}
+	}
+
+	public void testWorkspace() throws PerforceException {
+		Workspace workspace = new WorkspaceBuilder().build(new StringBuilder(CLIENT_FORM));
+		assertEquals("my-client", workspace.getName());
+		assertEquals("First line\n\tsee: second line", workspace.getDescription());
+		assertEquals(2, workspace.getViews().size());
+		assertEquals("\t-//depot/main/doc/... //my-client/main/doc/...", workspace.getViews().get(1));
+	}
+
+	public void testCounter() throws PerforceException {
+		Counter counter = new CounterBuilder().build(new StringBuilder("12345\n"));
+		assertEquals(12345, counter.getValue());
+		try {
+			new CounterBuilder().build(new StringBuilder("Perforce password (P4PASSWD) invalid or unset.\n"));
+			fail("Counter without value");
+		} catch (PerforceException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Parses a client with a 20,000 line view with the tokenizer and checks
+	 * the fields against the expression used before.
+	 */
+	public void testLargeView() throws PerforceException {
+		// Continue the view of the client form
+		StringBuilder form = new StringBuilder(CLIENT_FORM.substring(0, CLIENT_FORM.length() - 1));
+		for (int i = 0; i < 20000; i++) {
+			form.append("\t//depot/project").append(i).append("/... //my-client/project").append(i).append("/...\n");
+		}
+		form.append("\nAltRoots:\t/tmp/alt\n");
+		String text = form.toString();
+
+		Workspace workspace = new WorkspaceBuilder().build(new StringBuilder(text));
+		Map<String, String> legacy = parseLegacy(text);
+
+		assertEquals(20002, workspace.getViews().size());
+		assertEquals("/tmp/alt", workspace.getAltRoots());
+		assertEquals(legacy, SpecTokenizer.parseForm(text));
+		List<String> views = workspace.getViews();
+		assertEquals("\t//depot/project19999/... //my-client/project19999/...", views.get(views.size() - 1));
+	}
+
+	/**
+	 * Parses a form with the expression used before the tokenizer.
+	 */
+	static Map<String, String> parseLegacy(String form) {
+		Pattern p = Pattern.compile("^(\\w+):(.*?)(?=\\n\\w{4,}?:)", Pattern.DOTALL | Pattern.MULTILINE);
+		Matcher m = p.matcher(form + "Endp:\n");
+		Map<String, String> fields = new HashMap<String, String>();
+		while (m.find()) {
+			fields.put(m.group(1), m.group(2).trim());
+		}
+		return fields;
+	}
+}
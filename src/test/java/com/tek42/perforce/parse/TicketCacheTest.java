@@ -0,0 +1,127 @@
+package com.tek42.perforce.parse;
+
+import com.tek42.perforce.Depot;
+import com.tek42.perforce.PerforceException;
+import com.tek42.perforce.process.Executor;
+import com.tek42.perforce.process.ExecutorFactory;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+public class TicketCacheTest extends TestCase {
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final String TICKET = "0123456789ABCDEF0123456789ABCDEF";
+
+    public void testParseLifetime() {
+        assertEquals((11 * 60 + 24) * MINUTE, TicketCache.parseLifetime("User jenkins ticket expires in 11 hours 24 minutes."));
+        assertEquals(1 * 60 * MINUTE, TicketCache.parseLifetime("User jenkins ticket expires in 1 hour 0 minutes."));
+        assertEquals(45 * MINUTE, TicketCache.parseLifetime("User jenkins ticket expires in 45 minutes."));
+        assertEquals(30 * 1000L, TicketCache.parseLifetime("User jenkins ticket expires in 30 seconds."));
+        assertEquals(2 * 60 * MINUTE + 1000L, TicketCache.parseLifetime("info: User jenkins ticket expires in 2 hours 1 second.\n"));
+    }
+
+    public void testParseLifetimeWithoutExpiry() {
+        assertEquals(0, TicketCache.parseLifetime("Perforce password (P4PASSWD) invalid or unset."));
+        assertEquals(0, TicketCache.parseLifetime("Your session has expired, please login again."));
+        assertEquals(0, TicketCache.parseLifetime(""));
+    }
+
+    public void testEntries() {
+        assertSame(TicketCache.get("perforce:1666", "jenkins", "secret"), TicketCache.get("perforce:1666", "jenkins", "secret"));
+        assertNotSame(TicketCache.get("perforce:1666", "jenkins", "secret"), TicketCache.get("perforce:1666", "jenkins", "other"));
+        assertNotSame(TicketCache.get("perforce:1666", "jenkins", "secret"), TicketCache.get("perforce:1666", "admin", "secret"));
+        assertSame(TicketCache.get("perforce:1666", "jenkins", null), TicketCache.get("perforce:1666", "jenkins", ""));
+    }
+
+    public void testEntryNeedsCheck() {
+        TicketCache.Entry entry = new TicketCache.Entry();
+        long now = System.currentTimeMillis();
+        assertFalse(entry.needsCheck(now));
+        entry.update(TICKET, 60 * MINUTE, now);
+        assertFalse(entry.needsCheck(now));
+        assertTrue(entry.needsCheck(now + TicketCache.CHECK_INTERVAL_MILLIS + 1));
+        entry.update(TICKET, 10 * MINUTE, now);
+        assertTrue(entry.needsCheck(now));
+        entry.clear();
+        assertNull(entry.getTicket());
+        assertFalse(entry.needsCheck(now + TicketCache.CHECK_INTERVAL_MILLIS + 1));
+    }
+
+    public void testRenewalKeepsSameTicket() throws PerforceException {
+        final List<List<String>> commands = new ArrayList<List<String>>();
+        Depot depot = new Depot(new ExecutorFactory() {
+            public void setEnv(Map<String, String> env) {
+            }
+
+            public Executor newExecutor() {
+                return new FakeExecutor(commands);
+            }
+        });
+        depot.setPort("renewal:1666");
+        depot.setUser("jenkins");
+        depot.setPassword("secret");
+        TicketCache.Entry entry = TicketCache.get("renewal:1666", "jenkins", "secret");
+        entry.update(TICKET, 10 * MINUTE, System.currentTimeMillis());
+
+        new Users(depot).getUserRecords();
+
+        // The server extends the lifetime of the same ticket
+        assertEquals(TICKET, entry.getTicket());
+        assertEquals(Arrays.asList("p4", "login", "-a", "-p"), commands.get(1));
+        assertEquals(Arrays.asList("p4", "-P", TICKET, "-G", "users"), commands.get(2));
+    }
+
+    /**
+     * Answers 'p4 login -s' with a short lifetime and 'p4 login' with the same ticket.
+     */
+    private static final class FakeExecutor implements Executor {
+        private final List<List<String>> commands;
+        private String output = "";
+
+        FakeExecutor(List<List<String>> commands) {
+            this.commands = commands;
+        }
+
+        public void exec(String[] args) {
+            List<String> command = Arrays.asList(args);
+            commands.add(command);
+            if (command.contains("login")) {
+                output = command.contains("-s") ? "User jenkins ticket expires in 10 minutes.\n" : TICKET + "\n";
+            }
+        }
+
+        public BufferedWriter getWriter() {
+            return new BufferedWriter(new OutputStreamWriter(getOutputStream()));
+        }
+
+        public OutputStream getOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        public BufferedReader getReader() {
+            return new BufferedReader(new StringReader(output));
+        }
+
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(output.getBytes());
+        }
+
+        public void close() {
+        }
+
+        public boolean isAlive() {
+            return false;
+        }
+    }
+}
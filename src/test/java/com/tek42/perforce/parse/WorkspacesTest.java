@@ -0,0 +1,99 @@
+package com.tek42.perforce.parse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+public class WorkspacesTest extends TestCase {
+
+    public void testCacheKeySeparatesConnections() {
+        String key = Workspaces.getCacheKey("perforce:1666", "builder", "utf8", null, "client");
+        assertEquals(key, Workspaces.getCacheKey("perforce:1666", "builder", "utf8", null, "client"));
+        assertFalse(key.equals(Workspaces.getCacheKey("perforce:1667", "builder", "utf8", null, "client")));
+        assertFalse(key.equals(Workspaces.getCacheKey("perforce:1666", "admin", "utf8", null, "client")));
+        assertFalse(key.equals(Workspaces.getCacheKey("perforce:1666", "builder", "none", null, "client")));
+        assertFalse(key.equals(Workspaces.getCacheKey("perforce:1666", "builder", "utf8", "utf16", "client")));
+        assertFalse(key.equals(Workspaces.getCacheKey("perforce:1666", "builder", "utf8", null, "client2")));
+    }
+
+    public void testCacheKeyIsUnambiguous() {
+        assertFalse(Workspaces.getCacheKey("perforce:1666", "a", null, null, "b").equals(
+                Workspaces.getCacheKey("perforce:1666", "a\nb", null, null, "")));
+    }
+
+    public void testImportedStreams() {
+        Map<String, String> spec = new HashMap<String, String>();
+        spec.put("Stream", "//streams/dev");
+        spec.put("Paths0", "share ...");
+        spec.put("Paths1", "import lib/... //streams/lib/...");
+        spec.put("Paths2", "import+ \"third party/...\" \"//streams/third party/src/...\"");
+        spec.put("Paths3", "import pinned/... //streams/pinned/...@1234");
+        spec.put("Paths4", "import parent/...");
+        spec.put("Paths5", "import wild/... //streams/.../x/...");
+        spec.put("Paths6", "exclude lib/docs/...");
+        assertEquals(Arrays.asList("//streams/lib", "//streams/third party"), Workspaces.getImportedStreams(spec));
+    }
+
+    public void testImportedStreamsWithoutPaths() {
+        assertTrue(Workspaces.getImportedStreams(new HashMap<String, String>()).isEmpty());
+    }
+
+    public void testCachedViewReplacesClientSide() {
+        String view = Workspaces.toCachedView("//streams/dev/... //builder-1/...", "builder-1");
+        assertFalse(view.contains("builder-1"));
+        assertEquals("//streams/dev/... //builder-2/...", Workspaces.fromCachedView(view, "builder-2"));
+    }
+
+    public void testCachedViewKeepsDepotSide() {
+        // The depot side contains the client name as well
+        String view = Workspaces.toCachedView("//builder/src/... //builder/src/...", "builder");
+        assertEquals("//builder/src/... //other/src/...", Workspaces.fromCachedView(view, "other"));
+
+        view = Workspaces.toCachedView("-//streams/dev/builder/... //builder/builder/...", "builder");
+        assertEquals("-//streams/dev/builder/... //other/builder/...", Workspaces.fromCachedView(view, "other"));
+    }
+
+    public void testCachedViewWithQuotedPaths() {
+        String view = Workspaces.toCachedView("\"//streams/dev/third party/...\" \"//builder/third party/...\"", "builder");
+        assertEquals("\"//streams/dev/third party/...\" \"//other/third party/...\"", Workspaces.fromCachedView(view, "other"));
+    }
+
+    public void testCachedViewOfOtherClient() {
+        // Client names, which are a prefix of another path, are not replaced
+        String view = "//streams/dev/... //builder-old/...";
+        assertEquals(view, Workspaces.toCachedView(view, "builder"));
+    }
+
+    public void testStreamsUnchanged() {
+        Map<String, String> updates = new LinkedHashMap<String, String>();
+        updates.put("//streams/dev", "1330000000");
+        updates.put("//streams/main", "1320000000");
+        updates.put("//streams/lib", "1310000000");
+
+        List<Map<String, String>> streams = new ArrayList<Map<String, String>>();
+        streams.add(stream("//streams/lib", "1310000000"));
+        streams.add(stream("//streams/dev", "1330000000"));
+        streams.add(stream("//streams/main", "1320000000"));
+        assertTrue(Workspaces.isUnchanged(updates, streams));
+
+        streams.set(2, stream("//streams/main", "1340000000"));
+        assertFalse(Workspaces.isUnchanged(updates, streams));
+
+        // A deleted stream isn't listed anymore
+        streams.remove(2);
+        assertFalse(Workspaces.isUnchanged(updates, streams));
+        assertFalse(Workspaces.isUnchanged(updates, null));
+    }
+
+    private static Map<String, String> stream(String path, String update) {
+        Map<String, String> stream = new HashMap<String, String>();
+        stream.put("Stream", path);
+        stream.put("Update", update);
+        stream.put("code", "stat");
+        return stream;
+    }
+}
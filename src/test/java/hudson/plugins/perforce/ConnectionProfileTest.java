@@ -0,0 +1,65 @@
+package hudson.plugins.perforce;
+
+import com.tek42.perforce.Depot;
+import junit.framework.TestCase;
+
+public class ConnectionProfileTest extends TestCase {
+
+    private final PerforceSCM scm = new PerforceSCM(
+            "user", "pass", "client", "port", "", "exe", "", "", "label", "counter", "upstreamProject", "shared",
+            "charset", "charset2", "user", false, true, true, true, true, true, false, false, true, false, false, false,
+            "${basename}", 0, -1, null, "exclude_user", "exclude_file", true, null, null, null);
+
+    @Override
+    protected void tearDown() throws Exception {
+        ConnectionProfile.clear();
+    }
+
+    public void testKey() {
+        String key = ConnectionProfile.getKey("job", "node", null);
+        assertEquals(key, ConnectionProfile.getKey("job", "node", null));
+        assertFalse(key.equals(ConnectionProfile.getKey("job", null, null)));
+        assertFalse(key.equals(ConnectionProfile.getKey("other", "node", null)));
+        assertFalse(ConnectionProfile.getKey("a\nb", null, null).equals(ConnectionProfile.getKey("a", "b", null)));
+    }
+
+    public void testGetAndPut() {
+        String key = ConnectionProfile.getKey("job", "node", null);
+        assertNull(ConnectionProfile.get(scm, key));
+        ConnectionProfile profile = createProfile();
+        ConnectionProfile.put(scm, key, profile);
+        assertSame(profile, ConnectionProfile.get(scm, key));
+        assertNull(ConnectionProfile.get(scm, ConnectionProfile.getKey("job", "other", null)));
+    }
+
+    public void testExpiry() {
+        ConnectionProfile profile = createProfile();
+        assertFalse(profile.isExpired(profile.created));
+        assertFalse(profile.isExpired(profile.created + ConnectionProfile.MAX_AGE_MILLIS));
+        assertTrue(profile.isExpired(profile.created + ConnectionProfile.MAX_AGE_MILLIS + 1));
+    }
+
+    public void testClear() {
+        String key = ConnectionProfile.getKey("job", "node", null);
+        ConnectionProfile.put(scm, key, createProfile());
+        new ConnectionProfile.Invalidator().onConfigurationChange();
+        assertNull(ConnectionProfile.get(scm, key));
+    }
+
+    public void testApplyTo() {
+        Depot depot = new Depot();
+        createProfile().applyTo(depot);
+        assertEquals("client", depot.getClient());
+        assertEquals("user", depot.getUser());
+        assertEquals("perforce:1666", depot.getPort());
+        assertEquals("secret", depot.getPassword());
+        assertEquals("/usr/bin/p4", depot.getExecutable());
+        assertEquals("utf8", depot.getCharset());
+        assertEquals("utf16", depot.getCommandCharset());
+    }
+
+    private static ConnectionProfile createProfile() {
+        return new ConnectionProfile("client", "user", "perforce:1666", "secret", "/usr/bin/p4",
+                "C:", "C:\\Windows", "utf8", "utf16");
+    }
+}
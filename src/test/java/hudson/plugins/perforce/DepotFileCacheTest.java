@@ -0,0 +1,106 @@
+package hudson.plugins.perforce;
+
+import com.tek42.perforce.model.FileStat;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+public class DepotFileCacheTest extends TestCase {
+
+    // MD5 of "line1\nline2\n"
+    private static final String LF_DIGEST = "4FCC82A88EE38E0AA16C17F512C685C9";
+
+    public void testIsCacheable() {
+        assertTrue(DepotFileCache.isCacheable(createStat("text")));
+        assertTrue(DepotFileCache.isCacheable(createStat("binary+F")));
+        assertTrue(DepotFileCache.isCacheable(createStat("xtext")));
+        assertFalse(DepotFileCache.isCacheable(createStat("ktext")));
+        assertFalse(DepotFileCache.isCacheable(createStat("text+k")));
+        assertFalse(DepotFileCache.isCacheable(createStat("symlink")));
+        assertFalse(DepotFileCache.isCacheable(createStat("unicode")));
+
+        FileStat noDigest = createStat("text");
+        noDigest.setDigest(null);
+        assertFalse(DepotFileCache.isCacheable(noDigest));
+    }
+
+    public void testCacheFileOfBinary() {
+        File root = new File("cache");
+        File file = DepotFileCache.getCacheFile(root, createStat("binary"), "unix");
+        assertEquals(new File(new File(root, "4F"), LF_DIGEST + "-12"), file);
+    }
+
+    public void testCacheFileOfTextDependsOnLineEnd() {
+        File root = new File("cache");
+        FileStat stat = createStat("text");
+        assertEquals(LF_DIGEST + "-12.unix", DepotFileCache.getCacheFile(root, stat, "unix").getName());
+        assertEquals(LF_DIGEST + "-12.win", DepotFileCache.getCacheFile(root, stat, "WIN").getName());
+        String local = File.separatorChar == '\\' ? ".crlf" : ".lf";
+        assertEquals(LF_DIGEST + "-12" + local, DepotFileCache.getCacheFile(root, stat, "local").getName());
+        assertEquals(LF_DIGEST + "-12" + local, DepotFileCache.getCacheFile(root, stat, null).getName());
+    }
+
+    public void testMatchesDigest() throws IOException {
+        File dir = createTempDir();
+        File unix = createFile(dir, "unix.txt", "line1\nline2\n", 0);
+        File win = createFile(dir, "win.txt", "line1\r\nline2\r\n", 0);
+        File modified = createFile(dir, "modified.txt", "line1\nline3\n", 0);
+        FileStat stat = createStat("text");
+        assertTrue(DepotFileCache.matchesDigest(unix, stat, "unix"));
+        assertTrue(DepotFileCache.matchesDigest(win, stat, "win"));
+        assertFalse(DepotFileCache.matchesDigest(win, stat, "unix"));
+        assertFalse(DepotFileCache.matchesDigest(modified, stat, "unix"));
+    }
+
+    public void testEvictDeletesLeastRecentlyUsed() throws IOException {
+        File root = createTempDir();
+        File oldest = createFile(new File(root, "AA"), "a", "0123456789", 1000000000000L);
+        File middle = createFile(new File(root, "BB"), "b", "0123456789", 1100000000000L);
+        File newest = createFile(new File(root, "AA"), "c", "0123456789", 1200000000000L);
+
+        DepotFileCache.evict(root, 30);
+        assertTrue(oldest.exists());
+
+        DepotFileCache.evict(root, 15);
+        assertFalse(oldest.exists());
+        assertFalse(middle.exists());
+        assertTrue(newest.exists());
+    }
+
+    private static FileStat createStat(String type) {
+        FileStat stat = new FileStat();
+        stat.setDepotFile("//depot/file.txt");
+        stat.setClientFile("/work/file.txt");
+        stat.setHeadRev(2);
+        stat.setHeadAction("edit");
+        stat.setHeadType(type);
+        stat.setDigest(LF_DIGEST);
+        stat.setFileSize(12);
+        return stat;
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("depotcache", "");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static File createFile(File dir, String name, String content, long lastModified) throws IOException {
+        dir.mkdirs();
+        File file = new File(dir, name);
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        if (lastModified > 0) {
+            file.setLastModified(lastModified);
+        }
+        return file;
+    }
+}
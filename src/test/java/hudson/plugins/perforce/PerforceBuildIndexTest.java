@@ -0,0 +1,117 @@
+package hudson.plugins.perforce;
+
+import java.io.File;
+import java.io.IOException;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+public class PerforceBuildIndexTest extends TestCase {
+
+    private File jobDir;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        jobDir = File.createTempFile("buildindex", "");
+        jobDir.delete();
+        jobDir.mkdirs();
+        file = new File(jobDir, "perforce-builds.bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        PerforceBuildIndex.evict(jobDir);
+        FileUtils.deleteDirectory(jobDir);
+    }
+
+    public void testRecordAndReload() {
+        PerforceBuildIndex index = PerforceBuildIndex.get(file, 1);
+        index.record(1, 100, null);
+        index.record(3, 110, "release");
+        assertTrue(file.isFile());
+        assertSame(index, PerforceBuildIndex.get(file, 4));
+
+        PerforceBuildIndex.evict(jobDir);
+        PerforceBuildIndex loaded = PerforceBuildIndex.get(file, 4);
+        assertNotSame(index, loaded);
+        assertTrue(loaded.isCovered(5));
+        PerforceBuildIndex.Entry entry = loaded.getAtOrBefore(5);
+        assertEquals(3, entry.getBuildNumber());
+        assertEquals(110, entry.getChangeNumber());
+        assertEquals("release", entry.getLabel());
+        entry = loaded.getAtOrBefore(2);
+        assertEquals(1, entry.getBuildNumber());
+        assertEquals(100, entry.getChangeNumber());
+        assertNull(entry.getLabel());
+    }
+
+    public void testFirstBuildWithChange() {
+        PerforceBuildIndex index = PerforceBuildIndex.get(file, 1);
+        assertEquals(-1, index.getFirstBuildWithChange(100));
+        index.record(1, 100, null);
+        index.record(2, 120, null);
+        // A rebuild of an older change
+        index.record(3, 110, null);
+        index.record(4, 130, null);
+
+        assertEquals(1, index.getFirstBuildWithChange(90));
+        assertEquals(1, index.getFirstBuildWithChange(100));
+        assertEquals(2, index.getFirstBuildWithChange(105));
+        assertEquals(2, index.getFirstBuildWithChange(115));
+        assertEquals(4, index.getFirstBuildWithChange(125));
+        assertEquals(-1, index.getFirstBuildWithChange(131));
+
+        // The order is rebuilt after a modification
+        index.remove(2);
+        assertEquals(3, index.getFirstBuildWithChange(105));
+        assertEquals(4, index.getFirstBuildWithChange(115));
+        index.record(5, 140, null);
+        assertEquals(5, index.getFirstBuildWithChange(135));
+    }
+
+    public void testNewIndexCoversNewBuildsOnly() {
+        PerforceBuildIndex index = PerforceBuildIndex.get(file, 5);
+        assertFalse(index.isCovered(4));
+        index.record(5, 200, null);
+        assertTrue(index.isCovered(6));
+        assertFalse(index.isCovered(4));
+    }
+
+    public void testRemove() {
+        PerforceBuildIndex index = PerforceBuildIndex.get(file, 1);
+        index.record(1, 100, null);
+        index.record(2, 110, null);
+        index.remove(2);
+        assertEquals(1, index.getAtOrBefore(2).getBuildNumber());
+        index.remove(1);
+        assertNull(index.getAtOrBefore(2));
+    }
+
+    public void testRecreatedJobDoesNotSeeStaleIndex() throws IOException {
+        PerforceBuildIndex index = PerforceBuildIndex.get(file, 1);
+        index.record(1, 100, null);
+
+        // The job is deleted and a new one with the same name is created
+        FileUtils.deleteDirectory(jobDir);
+        jobDir.mkdirs();
+        PerforceBuildIndex recreated = PerforceBuildIndex.get(file, 1);
+        assertNotSame(index, recreated);
+        assertNull(recreated.getAtOrBefore(1));
+    }
+
+    public void testRenamedJobIsEvicted() throws IOException {
+        PerforceBuildIndex index = PerforceBuildIndex.get(file, 1);
+        index.record(1, 100, null);
+
+        File renamed = new File(jobDir.getPath() + "-renamed");
+        assertTrue(jobDir.renameTo(renamed));
+        try {
+            PerforceBuildIndex.evict(renamed);
+            jobDir.mkdirs();
+            assertNotSame(index, PerforceBuildIndex.get(file, 1));
+        } finally {
+            PerforceBuildIndex.evict(renamed);
+            FileUtils.deleteDirectory(renamed);
+        }
+    }
+}
@@ -126,4 +126,133 @@ public class PerforceChangeLogParserTest extends HudsonTestCase {
                 reloadedSet.getHistory().get(0).getChange().getJobs().get(0).toString());
     }
     
+    public void testLoadIndexedChangeLog() throws Exception {
+        List<Changelist> changes = new ArrayList<Changelist>();
+        for (int i = 0; i < 3; i++) {
+            Changelist cl = new Changelist();
+            cl.setChangeNumber(2000 + i);
+            cl.setDescription("indexed change <" + i + ">");
+            cl.setUser("test.user" + i);
+            cl.setWorkspace("test_workspace");
+            List<Changelist.FileEntry> files = new ArrayList<Changelist.FileEntry>();
+            for (int j = 0; j <= i; j++) {
+                Changelist.FileEntry fileEntry = new Changelist.FileEntry();
+                fileEntry.setAction(Changelist.FileEntry.Action.EDIT);
+                fileEntry.setChangenumber(String.valueOf(2000 + i));
+                fileEntry.setRevision(String.valueOf(j + 1));
+                fileEntry.setWorkspacePath("some/workspace/path" + j);
+                fileEntry.setFilename("file" + j);
+                files.add(fileEntry);
+            }
+            cl.setFiles(files);
+            changes.add(cl);
+        }
+
+        File tempFile = File.createTempFile(getClass().getName(), ".tmp");
+        PerforceChangeLogWriter writer = new PerforceChangeLogWriter(tempFile);
+        for (Changelist cl : changes) {
+            writer.write(cl);
+        }
+        writer.close();
+        assertNotNull(PerforceChangeLogIndex.load(tempFile));
+
+        PerforceChangeLogSet reloadedSet = (PerforceChangeLogSet) new PerforceChangeLogParser().parse(null, tempFile);
+        assertEquals(3, reloadedSet.getHistory().size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(changes.get(i).toString(), reloadedSet.getHistory().get(i).getChange().toString());
+        }
+        assertEquals(3, reloadedSet.getHistory().get(2).getChange().getFiles().size());
+        PerforceChangeLogIndex.getIndexFile(tempFile).delete();
+        tempFile.delete();
+    }
+
+    public void testSaveAndLoadCompactChangeLog() throws Exception {
+        List<Changelist> changes = new ArrayList<Changelist>();
+        Changelist cl = new Changelist();
+        cl.setChangeNumber(3000);
+        cl.setDescription("compact change <&>");
+        cl.setUser("test.user");
+        cl.setWorkspace("test_workspace");
+        List<Changelist.FileEntry> files = new ArrayList<Changelist.FileEntry>();
+        for (int j = 0; j < 3; j++) {
+            Changelist.FileEntry fileEntry = new Changelist.FileEntry();
+            fileEntry.setAction(Changelist.FileEntry.Action.INTEGRATE);
+            fileEntry.setChangenumber("3000");
+            fileEntry.setRevision(String.valueOf(j + 1));
+            fileEntry.setWorkspacePath("some/workspace/path/file" + j);
+            fileEntry.setFilename("//depot/some/path/file" + j);
+            files.add(fileEntry);
+        }
+        cl.setFiles(files);
+        List<Changelist.JobEntry> jobs = new ArrayList<Changelist.JobEntry>();
+        Changelist.JobEntry jobEntry = new Changelist.JobEntry();
+        jobEntry.setDescription("test job");
+        jobEntry.setJob("test-job");
+        jobEntry.setStatus("closed");
+        jobs.add(jobEntry);
+        cl.setJobs(jobs);
+        changes.add(cl);
+
+        File tempFile = File.createTempFile(getClass().getName(), ".tmp");
+        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+        PerforceChangeLogSet.saveToChangeLog(out, changes, true);
+        assertTrue(PerforceCompactChangeLog.isCompact(tempFile));
+
+        PerforceChangeLogSet reloadedSet = (PerforceChangeLogSet) new PerforceChangeLogParser().parse(null, tempFile);
+        assertEquals(1, reloadedSet.getHistory().size());
+        Changelist reloaded = reloadedSet.getHistory().get(0).getChange();
+        assertEquals(cl.toString(), reloaded.toString());
+        assertEquals("some/workspace/path/file2", reloaded.getFiles().get(2).getWorkspacePath());
+        assertEquals("3000", reloaded.getFiles().get(2).getChangenumber());
+        assertEquals(cl.getJobs().get(0).toString(), reloaded.getJobs().get(0).toString());
+        tempFile.delete();
+    }
+
+    public void testStreamedChangeLog() throws Exception {
+        for (boolean compact : new boolean[] { false, true }) {
+            Changelist cl = new Changelist();
+            cl.setChangeNumber(4000);
+            cl.setDescription("streamed change");
+            cl.setUser("test.user");
+            cl.setWorkspace("test_workspace");
+
+            File tempFile = File.createTempFile(getClass().getName(), ".tmp");
+            PerforceChangeLogSet.ChangeWriter writer = PerforceChangeLogSet.createChangeLogWriter(tempFile, compact);
+            writer.startChange(cl);
+            for (int j = 0; j < 2; j++) {
+                Changelist.FileEntry fileEntry = new Changelist.FileEntry();
+                fileEntry.setAction(Changelist.FileEntry.Action.EDIT);
+                fileEntry.setChangenumber("4000");
+                fileEntry.setRevision(String.valueOf(j + 1));
+                fileEntry.setWorkspacePath("some/workspace/path/file" + j);
+                fileEntry.setFilename("//depot/some/path/file" + j);
+                writer.addFile(fileEntry);
+            }
+            writer.endChange();
+            writer.write(cl);
+            writer.close();
+
+            PerforceChangeLogSet reloadedSet = (PerforceChangeLogSet) new PerforceChangeLogParser().parse(null, tempFile);
+            assertEquals(2, reloadedSet.getHistory().size());
+            Changelist reloaded = reloadedSet.getHistory().get(0).getChange();
+            assertEquals(2, reloaded.getFiles().size());
+            assertEquals("//depot/some/path/file1", reloaded.getFiles().get(1).getFilename());
+            assertEquals("2", reloaded.getFiles().get(1).getRevision());
+            assertTrue(reloadedSet.getHistory().get(1).getChange().getFiles().isEmpty());
+            PerforceChangeLogIndex.getIndexFile(tempFile).delete();
+            tempFile.delete();
+        }
+    }
+
+    public void testCompactActionCodes() throws Exception {
+        // The codes are stored in compact changelogs and must never change
+        assertEquals(0, PerforceCompactChangeLog.getActionCode(null));
+        assertEquals(1, PerforceCompactChangeLog.getActionCode(Changelist.FileEntry.Action.ADD));
+        assertEquals(4, PerforceCompactChangeLog.getActionCode(Changelist.FileEntry.Action.INTEGRATE));
+        assertEquals(9, PerforceCompactChangeLog.getActionCode(Changelist.FileEntry.Action.IMPORT));
+        for (Changelist.FileEntry.Action action : Changelist.FileEntry.Action.values()) {
+            assertTrue(PerforceCompactChangeLog.getActionCode(action) > 0);
+        }
+    }
+
 }
@@ -0,0 +1,70 @@
+package hudson.plugins.perforce;
+
+import com.tek42.perforce.model.Workspace;
+import junit.framework.TestCase;
+
+public class PerforceClientCollectorTest extends TestCase {
+
+    private static final String PREFIX = "Created by Jenkins 0123abcd:";
+
+    public void testClientMarker() {
+        String marker = PerforceClientCollector.getClientMarker(PREFIX, "folder/job", "node-1");
+        assertEquals("Created by Jenkins 0123abcd:folder/job:node-1", marker);
+        String[] names = PerforceClientCollector.parseClientMarker(marker, PREFIX);
+        assertEquals("folder/job", names[0]);
+        assertEquals("node-1", names[1]);
+    }
+
+    public void testClientMarkerOfMaster() {
+        String marker = PerforceClientCollector.getClientMarker(PREFIX, "job", null);
+        String[] names = PerforceClientCollector.parseClientMarker(marker, PREFIX);
+        assertEquals("job", names[0]);
+        assertEquals("", names[1]);
+    }
+
+    public void testParseMarkerInDescription() {
+        String description = "Build client\n  " + PerforceClientCollector.getClientMarker(PREFIX, "job", "node") + "  \nmore\n";
+        String[] names = PerforceClientCollector.parseClientMarker(description, PREFIX);
+        assertEquals("job", names[0]);
+        assertEquals("node", names[1]);
+    }
+
+    public void testParseForeignMarker() {
+        // Another instance, old clients without marker and broken markers
+        assertNull(PerforceClientCollector.parseClientMarker("Created by Jenkins 89abcdef:job:node", PREFIX));
+        assertNull(PerforceClientCollector.parseClientMarker("Created by Perforce plugin.", PREFIX));
+        assertNull(PerforceClientCollector.parseClientMarker(PREFIX + "job", PREFIX));
+        assertNull(PerforceClientCollector.parseClientMarker(PREFIX + ":node", PREFIX));
+        assertNull(PerforceClientCollector.parseClientMarker("", PREFIX));
+    }
+
+    public void testIsIdle() {
+        long now = System.currentTimeMillis();
+        long day = 24 * 60 * 60 * 1000L;
+        assertTrue(PerforceClientCollector.isIdle(client("builder", (now - 8 * day) / 1000, ""), now));
+        assertFalse(PerforceClientCollector.isIdle(client("builder", (now - 6 * day) / 1000, ""), now));
+        assertFalse(PerforceClientCollector.isIdle(client("builder", now / 1000, ""), now));
+
+        Workspace unknown = new Workspace();
+        unknown.setAccess("");
+        assertFalse(PerforceClientCollector.isIdle(unknown, now));
+        unknown.setAccess("2012/01/02 03:04:05");
+        assertFalse(PerforceClientCollector.isIdle(unknown, now));
+    }
+
+    public void testNeedsForce() {
+        assertFalse(PerforceClientCollector.needsForce(client("builder", 0, "noallwrite noclobber unlocked"), "builder"));
+        assertFalse(PerforceClientCollector.needsForce(client("builder", 0, ""), "builder"));
+        assertTrue(PerforceClientCollector.needsForce(client("builder", 0, "noallwrite noclobber locked"), "builder"));
+        assertTrue(PerforceClientCollector.needsForce(client("owner", 0, "unlocked"), "builder"));
+        assertTrue(PerforceClientCollector.needsForce(client("owner", 0, "unlocked"), null));
+    }
+
+    private static Workspace client(String owner, long access, String options) {
+        Workspace client = new Workspace();
+        client.setOwner(owner);
+        client.setAccess(Long.toString(access));
+        client.setOptions(options);
+        return client;
+    }
+}
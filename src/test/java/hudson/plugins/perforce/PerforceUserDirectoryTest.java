@@ -0,0 +1,101 @@
+package hudson.plugins.perforce;
+
+import com.tek42.perforce.Depot;
+import com.tek42.perforce.PerforceException;
+import com.tek42.perforce.parse.Users;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+public class PerforceUserDirectoryTest extends TestCase {
+
+    private static final long MINUTE = 60 * 1000;
+
+    private List<Map<String, String>> records;
+    private PerforceException error;
+    private int loads;
+    private Depot depot;
+    private PerforceUserDirectory directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        records = new ArrayList<Map<String, String>>();
+        addUser("alice");
+        depot = new Depot() {
+            private final Users users = new Users(this) {
+                @Override
+                public List<Map<String, String>> getUserRecords() throws PerforceException {
+                    loads++;
+                    if (error != null) {
+                        throw error;
+                    }
+                    return records;
+                }
+            };
+
+            @Override
+            public Users getUsers() {
+                return users;
+            }
+        };
+        // A server of its own for every test
+        depot.setPort(getName() + ":1666");
+        directory = PerforceUserDirectory.get(depot);
+    }
+
+    public void testLoadsOnce() throws PerforceException {
+        assertEquals("alice@example.com", directory.getUser(depot, "alice").getEmail());
+        assertEquals("alice@example.com", directory.getUser(depot, "alice").getEmail());
+        assertEquals(1, loads);
+        assertEquals("alice", PerforceUserDirectory.findLoadedUser("alice").getUsername());
+    }
+
+    public void testMissingUserLoadsOnce() throws PerforceException {
+        assertNull(directory.getUser(depot, "ghost"));
+        directory.loaded -= MINUTE;
+        assertNull(directory.getUser(depot, "ghost"));
+        assertEquals(1, loads);
+
+        // Another unknown user still loads the list
+        addUser("bob");
+        assertNotNull(directory.getUser(depot, "bob"));
+        assertEquals(2, loads);
+    }
+
+    public void testFailureBacksOff() throws PerforceException {
+        error = new PerforceException("Connect to server failed");
+        for (int i = 0; i < 2; i++) {
+            try {
+                directory.getUser(depot, "alice");
+                fail("Users cannot be listed");
+            } catch (PerforceException e) {
+                // expected
+            }
+        }
+        assertEquals(1, loads);
+
+        error = null;
+        directory.failed -= PerforceUserDirectory.FAILURE_BACKOFF_MILLIS + MINUTE;
+        assertNotNull(directory.getUser(depot, "alice"));
+        assertEquals(2, loads);
+    }
+
+    public void testFailureKeepsList() throws PerforceException {
+        assertNotNull(directory.getUser(depot, "alice"));
+        directory.loaded -= 10 * MINUTE;
+        error = new PerforceException("Connect to server failed");
+        assertNotNull(directory.getUser(depot, "alice"));
+        assertNotNull(directory.getUser(depot, "alice"));
+        assertEquals(2, loads);
+    }
+
+    private void addUser(String name) {
+        Map<String, String> record = new HashMap<String, String>();
+        record.put("User", name);
+        record.put("Email", name + "@example.com");
+        record.put("Update", "1234567890");
+        records.add(record);
+    }
+}
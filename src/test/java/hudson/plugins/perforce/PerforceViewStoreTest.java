@@ -0,0 +1,122 @@
+package hudson.plugins.perforce;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+public class PerforceViewStoreTest extends TestCase {
+
+    private static final String VIEW = "//depot/project/...\n-//depot/project/docs/...";
+
+    private File jobDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        jobDir = File.createTempFile("viewstore", "");
+        jobDir.delete();
+        jobDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(jobDir);
+    }
+
+    public void testPutAndGet() {
+        String digest = PerforceViewStore.put(jobDir, VIEW);
+        assertNotNull(digest);
+        assertTrue(new File(new File(jobDir, PerforceViewStore.DIR_NAME), digest).isFile());
+        assertEquals(digest, PerforceViewStore.put(jobDir, VIEW));
+        assertEquals(VIEW, PerforceViewStore.get(jobDir, digest));
+        assertNull(PerforceViewStore.get(jobDir, "00000000000000000000000000000000"));
+    }
+
+    public void testViewsAreStoredPerJob() throws Exception {
+        File otherJobDir = new File(jobDir, "other");
+        String digest = PerforceViewStore.put(jobDir, VIEW);
+        assertEquals(digest, PerforceViewStore.put(otherJobDir, VIEW));
+        assertTrue(new File(new File(otherJobDir, PerforceViewStore.DIR_NAME), digest).isFile());
+    }
+
+    public void testDeleteUnused() {
+        String used = PerforceViewStore.put(jobDir, VIEW);
+        String unused = PerforceViewStore.put(jobDir, "//depot/other/...");
+        File usedFile = new File(new File(jobDir, PerforceViewStore.DIR_NAME), used);
+        File unusedFile = new File(new File(jobDir, PerforceViewStore.DIR_NAME), unused);
+
+        // Recently stored views may be about to be recorded by a build
+        PerforceViewStore.deleteUnused(jobDir, Collections.singleton(used));
+        assertTrue(unusedFile.isFile());
+
+        long old = System.currentTimeMillis() - 2 * 60 * 60 * 1000;
+        usedFile.setLastModified(old);
+        unusedFile.setLastModified(old);
+        PerforceViewStore.deleteUnused(jobDir, Collections.singleton(used));
+        assertTrue(usedFile.isFile());
+        assertFalse(unusedFile.isFile());
+    }
+
+    public void testUsageIsRecordedOnceListed() {
+        String digest = PerforceViewStore.put(jobDir, 1, VIEW);
+        assertNull(PerforceViewStore.loadUsage(jobDir));
+        assertFalse(PerforceViewStore.release(jobDir, 1));
+
+        Map<Integer, String> used = new TreeMap<Integer, String>();
+        used.put(1, digest);
+        PerforceViewStore.recordUsage(jobDir, used);
+        String other = PerforceViewStore.put(jobDir, 2, "//depot/other/...");
+        PerforceViewStore.put(jobDir, 3, VIEW);
+        // Recorded again with another view
+        PerforceViewStore.put(jobDir, 1, "//depot/other/...");
+
+        used = PerforceViewStore.loadUsage(jobDir);
+        assertEquals(3, used.size());
+        assertEquals(other, used.get(1));
+        assertEquals(other, used.get(2));
+        assertEquals(digest, used.get(3));
+    }
+
+    public void testRelease() {
+        String shared = PerforceViewStore.put(jobDir, VIEW);
+        String single = PerforceViewStore.put(jobDir, "//depot/other/...");
+        File sharedFile = new File(new File(jobDir, PerforceViewStore.DIR_NAME), shared);
+        File singleFile = new File(new File(jobDir, PerforceViewStore.DIR_NAME), single);
+        Map<Integer, String> used = new TreeMap<Integer, String>();
+        used.put(1, shared);
+        used.put(2, shared);
+        used.put(3, single);
+        PerforceViewStore.recordUsage(jobDir, used);
+        long old = System.currentTimeMillis() - 2 * 60 * 60 * 1000;
+        sharedFile.setLastModified(old);
+        singleFile.setLastModified(old);
+
+        assertTrue(PerforceViewStore.release(jobDir, 1));
+        assertTrue(sharedFile.isFile());
+        assertTrue(PerforceViewStore.release(jobDir, 3));
+        assertFalse(singleFile.isFile());
+        assertTrue(PerforceViewStore.release(jobDir, 2));
+        assertFalse(sharedFile.isFile());
+        assertTrue(PerforceViewStore.loadUsage(jobDir).isEmpty());
+        // Unknown builds are ignored
+        assertTrue(PerforceViewStore.release(jobDir, 4));
+    }
+
+    public void testRecordUsageDeletesUnused() {
+        String used = PerforceViewStore.put(jobDir, VIEW);
+        String unused = PerforceViewStore.put(jobDir, "//depot/other/...");
+        File unusedFile = new File(new File(jobDir, PerforceViewStore.DIR_NAME), unused);
+        unusedFile.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000);
+
+        PerforceViewStore.recordUsage(jobDir, Collections.singletonMap(1, used));
+        assertFalse(unusedFile.isFile());
+        assertTrue(new File(new File(jobDir, PerforceViewStore.DIR_NAME), PerforceViewStore.USAGE_FILE_NAME).isFile());
+    }
+
+    public void testShare() {
+        String view = PerforceViewStore.share(new String(VIEW));
+        assertSame(view, PerforceViewStore.share(new String(VIEW)));
+    }
+}
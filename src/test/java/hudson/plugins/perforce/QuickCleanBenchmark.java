@@ -0,0 +1,90 @@
+package hudson.plugins.perforce;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the local quick clean with the quick clean using reconcile on a
+ * synced workspace of a real server. Not a test, run it by hand:
+ * <pre>
+ * P4PORT=... P4USER=... P4CLIENT=... java -cp ... hudson.plugins.perforce.QuickCleanBenchmark workspace [runs] [untracked]
+ * </pre>
+ * The p4 executable is taken from the system property <tt>p4.exe</tt>.
+ * Before each clean, <tt>untracked</tt> files are created in the directory
+ * <tt>quickclean-benchmark</tt> of the workspace, so each clean has the same
+ * work to do. Untracked files elsewhere in the workspace are deleted by the
+ * first clean. Changed files are not restored.
+ */
+public class QuickCleanBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: QuickCleanBenchmark workspace [runs] [untracked]");
+            System.exit(1);
+        }
+        File workspace = new File(args[0]).getCanonicalFile();
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int untracked = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        String p4exe = System.getProperty("p4.exe", "p4");
+
+        List<String> env = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : System.getenv().entrySet()) {
+            if (entry.getKey().startsWith("P4")) {
+                env.add(entry.getKey() + "=" + entry.getValue());
+            }
+        }
+        TaskListener listener = new StreamTaskListener(System.out);
+
+        for (int run = 1; run <= runs; run++) {
+            createUntracked(workspace, untracked);
+            long local = clean(new QuickCleanerCall(), workspace, p4exe, env, listener);
+            createUntracked(workspace, untracked);
+            long reconcile = clean(new QuickReconcileCall(false), workspace, p4exe, env, listener);
+            System.out.println("Run " + run + ": local quick clean " + local + " ms, reconcile " + reconcile + " ms");
+        }
+    }
+
+    private static long clean(QuickCleaner.RemoteCall call, File workspace, String p4exe, List<String> env,
+            TaskListener listener) throws IOException {
+        call.setEnv(env.toArray(new String[env.size()]));
+        call.setP4exe(p4exe);
+        call.setWorkDir(workspace.getPath());
+        call.setListener(listener);
+        // The calls close their output when done
+        call.setOut(new FilterOutputStream(System.out) {
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        });
+        long start = System.currentTimeMillis();
+        Integer result = call.call();
+        long time = System.currentTimeMillis() - start;
+        if (result != null && result == QuickReconcileCall.UNSUPPORTED) {
+            throw new IOException("'p4 reconcile' is not supported by " + p4exe + " or the server");
+        }
+        return time;
+    }
+
+    private static void createUntracked(File workspace, int count) throws IOException {
+        File dir = new File(workspace, "quickclean-benchmark");
+        for (int i = 0; i < count; i++) {
+            File file = new File(new File(dir, "dir" + (i % 10)), "file" + i + ".txt");
+            file.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(("untracked " + i + "\n").getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package hudson.plugins.perforce;
+
+import junit.framework.TestCase;
+
+public class QuickCleanerCallTest extends TestCase {
+
+    public void testHaveSet() {
+        QuickCleanerCall.HaveSet have = new QuickCleanerCall.HaveSet();
+        // Enough entries to grow the table several times
+        for (int i = 0; i < 10000; i++) {
+            have.add("dir" + (i % 100) + "/file" + i + ".txt", i % 7 + 1);
+        }
+        assertEquals(10000, have.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i % 7 + 1, have.getHaveRev("dir" + (i % 100) + "/file" + i + ".txt"));
+        }
+        assertEquals(0, have.getHaveRev("dir0/file1.txt"));
+        assertEquals(0, have.getHaveRev(""));
+    }
+
+    public void testHaveSetReplacesRevision() {
+        QuickCleanerCall.HaveSet have = new QuickCleanerCall.HaveSet();
+        have.add("a.txt", 1);
+        have.add("a.txt", 3);
+        assertEquals(1, have.size());
+        assertEquals(3, have.getHaveRev("a.txt"));
+    }
+
+    public void testHash() {
+        assertEquals(QuickCleanerCall.HaveSet.hash("src/Main.java"), QuickCleanerCall.HaveSet.hash("src/Main.java"));
+        assertFalse(QuickCleanerCall.HaveSet.hash("src/Main.java") == QuickCleanerCall.HaveSet.hash("src/Main.jav"));
+        boolean ignoreCase = java.io.File.separatorChar == '\\';
+        assertEquals(ignoreCase, QuickCleanerCall.HaveSet.hash("SRC/Main.java") == QuickCleanerCall.HaveSet.hash("src/main.java"));
+        assertTrue(QuickCleanerCall.HaveSet.hash("") != 0);
+    }
+}
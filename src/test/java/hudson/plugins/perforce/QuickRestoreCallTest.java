@@ -0,0 +1,55 @@
+package hudson.plugins.perforce;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class QuickRestoreCallTest extends TestCase {
+
+    public void testParseSyncErrors() throws IOException {
+        List<QuickRestoreCall.SyncError> errors = QuickRestoreCall.parseSyncErrors(
+                "info: //depot/a.txt#3 - refreshing /ws/a.txt\r\n"
+                + "error: /ws/b.txt - file(s) not on client.\r\n"
+                + "info: //depot/c - d.txt#1 - refreshing /ws/c - d.txt\r\n"
+                + "error: Can't clobber writable file /ws/e.txt\r\n"
+                + "exit: 1\r\n");
+        assertEquals(2, errors.size());
+        assertEquals("/ws/b.txt", errors.get(0).path);
+        assertEquals("file(s) not on client.", errors.get(0).message);
+        assertEquals("", errors.get(1).path);
+        assertEquals("Can't clobber writable file /ws/e.txt", errors.get(1).message);
+        assertEquals("/ws/b.txt: file(s) not on client.", errors.get(0).toString());
+    }
+
+    public void testFilterExcludesFiles() throws IOException {
+        File root = File.createTempFile("quickrestore", "");
+        root.delete();
+        root.mkdirs();
+        try {
+            QuickRestoreCall call = new QuickRestoreCall();
+            call.setWorkDir(root.getPath());
+            List<String> files = Arrays.asList(
+                    new File(root, "src/a.c").getPath(),
+                    new File(root, ".repository/org/b.jar").getPath(),
+                    new File(root, "lib/.repository").getPath());
+            assertEquals(files, call.getIncludedFiles(files));
+
+            call.setFilter(new FileFilter() {
+                public boolean accept(File file) {
+                    return !file.getName().equals(".repository");
+                }
+            });
+            assertEquals(files.subList(0, 1), call.getIncludedFiles(files));
+        } finally {
+            root.delete();
+        }
+    }
+
+    public void testParseSyncErrorsWithoutErrors() throws IOException {
+        assertTrue(QuickRestoreCall.parseSyncErrors("").isEmpty());
+        assertTrue(QuickRestoreCall.parseSyncErrors("info: //depot/a.txt#3 - refreshing /ws/a.txt\nexit: 0\n").isEmpty());
+    }
+}
@@ -0,0 +1,70 @@
+package hudson.plugins.perforce;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+public class SyncRecorderTest extends TestCase {
+
+    private File workspace;
+
+    @Override
+    protected void setUp() throws Exception {
+        File parent = File.createTempFile("syncrecorder", "");
+        parent.delete();
+        workspace = new File(parent, "workspace");
+        workspace.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(workspace.getParentFile());
+    }
+
+    public void testParse() {
+        SyncRecorder recorder = new SyncRecorder();
+        assertTrue(recorder.accept("info: //depot/a.c#3 - updating /ws/a.c"));
+        assertTrue(recorder.accept("info: //depot/b c.c#1 - added as /ws/b c.c"));
+        assertTrue(recorder.accept("info: //depot/c.c#2 - refreshing /ws/c.c"));
+        assertTrue(recorder.accept("info: //depot/d.c#2 - replacing /ws/d.c"));
+        assertTrue(recorder.accept("info: //depot/e.c#5 - deleted as /ws/e.c"));
+        assertFalse(recorder.accept("info: //depot/f.c#4 - is opened and not being changed"));
+        assertFalse(recorder.accept("error: //depot/g.c#4 - can't clobber writable file /ws/g.c"));
+        assertFalse(recorder.accept("error: //depot/...@100 - file(s) up-to-date."));
+        assertFalse(recorder.accept("exit: 0"));
+        assertEquals(5, recorder.size());
+    }
+
+    public void testRecord() throws IOException {
+        File updated = createFile("src/a.c");
+        File deleted = new File(workspace, "src/b.c");
+        WorkspaceStateCache state = WorkspaceStateCache.load(workspace);
+        state.recordTracked("src/b.c", createFile("src/b.c"), 1);
+        deleted.delete();
+
+        long scanned = System.currentTimeMillis();
+        SyncRecorder.record(state,
+                Arrays.asList(updated.getPath(), deleted.getPath(), new File(workspace.getParentFile(), "x.c").getPath()),
+                new int[] { 3, 0, 1 }, scanned);
+        assertEquals(1, state.size());
+        assertEquals(3, state.get("src/a.c").haveRev);
+        assertTrue(state.isKnownUnchanged("src/a.c", updated, 3));
+        assertNull(state.get("src/b.c"));
+    }
+
+    private File createFile(String path) throws IOException {
+        File file = new File(workspace, path);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(path.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        file.setLastModified(System.currentTimeMillis() / 1000 * 1000 - 60 * 1000);
+        return file;
+    }
+}
@@ -0,0 +1,131 @@
+package hudson.plugins.perforce;
+
+import hudson.util.FormValidation;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+public class ValidationCacheTest extends TestCase {
+
+    @Override
+    protected void tearDown() throws Exception {
+        ValidationCache.clear();
+    }
+
+    public void testKeepsResult() {
+        CountingValidation validation = new CountingValidation();
+        FormValidation result = ValidationCache.validate("key", validation);
+        assertSame(result, ValidationCache.validate("key", validation));
+        assertEquals(1, validation.calls.get());
+        ValidationCache.validate("other", validation);
+        assertEquals(2, validation.calls.get());
+    }
+
+    public void testExpiry() {
+        CountingValidation validation = new CountingValidation();
+        long now = System.currentTimeMillis();
+        FormValidation result = ValidationCache.validate("key", validation, now);
+        // Finished at or after now, so it is still kept MAX_AGE_MILLIS later
+        assertSame(result, ValidationCache.validate("key", validation, now + ValidationCache.MAX_AGE_MILLIS));
+        assertEquals(1, validation.calls.get());
+
+        long later = System.currentTimeMillis() + ValidationCache.MAX_AGE_MILLIS + 1;
+        assertNotSame(result, ValidationCache.validate("key", validation, later));
+        assertEquals(2, validation.calls.get());
+    }
+
+    public void testClear() {
+        CountingValidation validation = new CountingValidation();
+        ValidationCache.validate("key", validation);
+        ValidationCache.clear();
+        ValidationCache.validate("key", validation);
+        assertEquals(2, validation.calls.get());
+    }
+
+    public void testCoalescesConcurrentValidations() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<FormValidation> validation = new Callable<FormValidation>() {
+            public FormValidation call() throws Exception {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return FormValidation.ok();
+            }
+        };
+        final FormValidation[] results = new FormValidation[2];
+        Thread first = new Thread() {
+            @Override
+            public void run() {
+                results[0] = ValidationCache.validate("key", validation);
+            }
+        };
+        Thread second = new Thread() {
+            @Override
+            public void run() {
+                results[1] = ValidationCache.validate("key", validation);
+            }
+        };
+        first.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        second.start();
+        // Releases the first validation only once the second one waits for it
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (second.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, second.getState());
+        release.countDown();
+        first.join(10 * 1000);
+        second.join(10 * 1000);
+
+        assertEquals(1, calls.get());
+        assertNotNull(results[0]);
+        assertSame(results[0], results[1]);
+    }
+
+    public void testFailedValidationIsNotKept() {
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<FormValidation> validation = new Callable<FormValidation>() {
+            public FormValidation call() throws Exception {
+                calls.incrementAndGet();
+                throw new IOException("connection refused");
+            }
+        };
+        FormValidation result = ValidationCache.validate("key", validation);
+        assertEquals(FormValidation.Kind.ERROR, result.kind);
+        assertTrue(result.getMessage().contains("connection refused"));
+        ValidationCache.validate("key", validation);
+        assertEquals(2, calls.get());
+    }
+
+    public void testRuntimeExceptionIsRethrown() {
+        Callable<FormValidation> validation = new Callable<FormValidation>() {
+            public FormValidation call() {
+                throw new IllegalStateException("broken");
+            }
+        };
+        try {
+            ValidationCache.validate("key", validation);
+            fail("Exception expected");
+        } catch (IllegalStateException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        CountingValidation counting = new CountingValidation();
+        ValidationCache.validate("key", counting);
+        assertEquals(1, counting.calls.get());
+    }
+
+    private static class CountingValidation implements Callable<FormValidation> {
+        final AtomicInteger calls = new AtomicInteger();
+
+        public FormValidation call() {
+            calls.incrementAndGet();
+            return FormValidation.ok();
+        }
+    }
+}
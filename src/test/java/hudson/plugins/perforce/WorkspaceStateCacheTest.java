@@ -0,0 +1,205 @@
+package hudson.plugins.perforce;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+public class WorkspaceStateCacheTest extends TestCase {
+
+    private static final String DIGEST = "4FCC82A88EE38E0AA16C17F512C685C9";
+
+    /**Files are created with an older modification time, so they aren't racy*/
+    private static final long MODIFIED = System.currentTimeMillis() / 1000 * 1000 - 60 * 1000;
+    private static final long SCANNED = System.currentTimeMillis();
+
+    private File workspace;
+
+    @Override
+    protected void setUp() throws Exception {
+        File parent = File.createTempFile("statecache", "");
+        parent.delete();
+        workspace = new File(parent, "workspace");
+        workspace.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(workspace.getParentFile());
+    }
+
+    public void testSaveAndLoad() throws IOException {
+        File tracked = createFile("src/Tracked.java", "tracked");
+        File verified = createFile("src/Verified.java", "verified");
+
+        WorkspaceStateCache state = WorkspaceStateCache.load(workspace);
+        assertEquals(0, state.size());
+        state.recordTracked("src/Tracked.java", tracked, 3);
+        state.recordVerified("src/Verified.java", verified, 5, DIGEST, SCANNED);
+        state.setComplete(true);
+        state.save();
+        assertTrue(new File(workspace.getParentFile(), "workspace@tmp").isDirectory());
+
+        WorkspaceStateCache loaded = WorkspaceStateCache.load(workspace);
+        assertEquals(2, loaded.size());
+        assertTrue(loaded.isComplete());
+
+        WorkspaceStateCache.Entry entry = loaded.get("src/Tracked.java");
+        assertEquals(tracked.length(), entry.size);
+        assertEquals(tracked.lastModified(), entry.lastModified);
+        assertEquals(3, entry.haveRev);
+        assertFalse(entry.verified);
+        assertNull(entry.getDigest());
+
+        entry = loaded.get("src/Verified.java");
+        assertEquals(5, entry.haveRev);
+        assertTrue(entry.verified);
+        assertEquals(DIGEST, entry.getDigest());
+        assertTrue(loaded.isKnownUnchanged("src/Verified.java", verified, 5));
+        assertFalse(loaded.isKnownUnchanged("src/Tracked.java", tracked, 3));
+    }
+
+    public void testCorruptStateIsIgnored() throws IOException {
+        File stateDir = new File(workspace.getParentFile(), "workspace@tmp");
+        stateDir.mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(stateDir, "p4-file-state.bin"));
+        try {
+            out.write(new byte[] { 'P', '4', 'W', 'S', 0, 0 });
+        } finally {
+            out.close();
+        }
+        WorkspaceStateCache state = WorkspaceStateCache.load(workspace);
+        assertEquals(0, state.size());
+        assertFalse(state.isComplete());
+    }
+
+    public void testVerificationIsKeptForUnchangedFiles() throws IOException {
+        File file = createFile("a.txt", "content");
+        WorkspaceStateCache state = WorkspaceStateCache.load(workspace);
+        state.recordVerified("a.txt", file, 2, DIGEST, SCANNED);
+
+        state.recordTracked("a.txt", file, 2);
+        assertTrue(state.isKnownUnchanged("a.txt", file, 2));
+
+        // A new have revision invalidates the verification
+        state.recordTracked("a.txt", file, 3);
+        assertFalse(state.isKnownUnchanged("a.txt", file, 3));
+        assertEquals(Collections.singletonList("a.txt"), state.getUnverifiedPaths());
+    }
+
+    public void testHaveRevisionMustMatch() throws IOException {
+        File file = createFile("a.txt", "content");
+        WorkspaceStateCache state = WorkspaceStateCache.load(workspace);
+        state.recordVerified("a.txt", file, 2, DIGEST, SCANNED);
+        assertTrue(state.isKnownUnchanged("a.txt", file, 2));
+        // Same size and modification time, but another revision
+        assertFalse(state.isKnownUnchanged("a.txt", file, 3));
+    }
+
+    public void testRacyFileIsNotVerified() throws IOException {
+        File file = createFile("a.txt", "content");
+        WorkspaceStateCache state = WorkspaceStateCache.load(workspace);
+        state.recordVerified("a.txt", file, 2, DIGEST, MODIFIED + WorkspaceStateCache.MTIME_GRANULARITY_MILLIS - 1);
+        assertFalse(state.isKnownUnchanged("a.txt", file, 2));
+        assertEquals(DIGEST, state.get("a.txt").getDigest());
+        state.recordVerified("a.txt", file, 2, DIGEST, MODIFIED + WorkspaceStateCache.MTIME_GRANULARITY_MILLIS);
+        assertTrue(state.isKnownUnchanged("a.txt", file, 2));
+
+        assertTrue(WorkspaceStateCache.isRacy(MODIFIED, MODIFIED));
+        assertTrue(WorkspaceStateCache.isRacy(MODIFIED + 1000, MODIFIED));
+        assertFalse(WorkspaceStateCache.isRacy(MODIFIED - WorkspaceStateCache.MTIME_GRANULARITY_MILLIS, MODIFIED));
+    }
+
+    public void testRecordUnchangedKeepsRevisionAndDigest() throws IOException {
+        File file = createFile("a.txt", "content");
+        WorkspaceStateCache state = WorkspaceStateCache.load(workspace);
+        state.recordVerified("a.txt", file, 4, DIGEST, SCANNED);
+        state.recordTracked("a.txt", createFile("a.txt", "other content"), 4);
+        assertFalse(state.isKnownUnchanged("a.txt", file, 4));
+
+        state.recordUnchanged("a.txt", file, SCANNED);
+        WorkspaceStateCache.Entry entry = state.get("a.txt");
+        assertEquals(4, entry.haveRev);
+        assertEquals(DIGEST, entry.getDigest());
+        assertTrue(state.isKnownUnchanged("a.txt", file, 4));
+
+        // The revision of files without an entry is unknown
+        state.recordUnchanged("b.txt", createFile("b.txt", "b"), SCANNED);
+        assertNull(state.get("b.txt"));
+    }
+
+    public void testRecordSynced() throws IOException {
+        File file = createFile("a.txt", "content");
+        WorkspaceStateCache state = WorkspaceStateCache.load(workspace);
+        state.recordVerified("a.txt", file, 4, DIGEST, SCANNED);
+        state.recordSynced("a.txt", file, 4, SCANNED);
+        assertEquals(DIGEST, state.get("a.txt").getDigest());
+        assertTrue(state.isKnownUnchanged("a.txt", file, 4));
+
+        state.recordSynced("a.txt", file, 5, SCANNED);
+        assertNull(state.get("a.txt").getDigest());
+        assertTrue(state.isKnownUnchanged("a.txt", file, 5));
+        assertFalse(state.isKnownUnchanged("a.txt", file, 4));
+    }
+
+    public void testModifiedFileIsNotKnownUnchanged() throws IOException {
+        File file = createFile("a.txt", "content");
+        WorkspaceStateCache state = WorkspaceStateCache.load(workspace);
+        state.recordVerified("a.txt", file, 2, null, SCANNED);
+        createFile("a.txt", "modified content");
+        assertFalse(state.isKnownUnchanged("a.txt", file, 2));
+    }
+
+    public void testRetainAll() throws IOException {
+        WorkspaceStateCache state = WorkspaceStateCache.load(workspace);
+        state.recordTracked("a.txt", createFile("a.txt", "a"), 1);
+        state.recordTracked("b.txt", createFile("b.txt", "b"), 1);
+        state.retainAll(new HashSet<String>(Arrays.asList("b.txt")));
+        assertNull(state.get("a.txt"));
+        assertNotNull(state.get("b.txt"));
+    }
+
+    public void testRelativePath() {
+        WorkspaceStateCache state = WorkspaceStateCache.load(workspace);
+        assertEquals("src/Main.java", state.getRelativePath(new File(workspace, "src" + File.separator + "Main.java")));
+        assertNull(state.getRelativePath(workspace));
+        assertNull(state.getRelativePath(new File(workspace.getParentFile(), "other")));
+        assertNull(state.getRelativePath(new File(workspace.getParentFile(), "workspace2" + File.separator + "a.txt")));
+    }
+
+    public void testRelativePathThroughOtherRoot() throws IOException {
+        createFile("src/Main.java", "class Main {}");
+        WorkspaceStateCache state = WorkspaceStateCache.load(workspace);
+        // A client root, which names the workspace differently
+        File other = new File(new File(new File(workspace.getParentFile(), "link"), ".."), workspace.getName());
+        assertEquals("src/Main.java", state.getRelativePath(new File(other, "src" + File.separator + "Main.java")));
+        assertEquals("src/Other.java", state.getRelativePath(new File(other, "src" + File.separator + "Other.java")));
+        assertNull(state.getRelativePath(new File(other.getParentFile(), "other" + File.separator + "a.txt")));
+    }
+
+    public void testRelativize() {
+        String root = File.separator + "ws";
+        String path = File.separator + "WS" + File.separator + "src" + File.separator + "Main.java";
+        assertEquals("src/Main.java", WorkspaceStateCache.relativize(root, path, true));
+        assertNull(WorkspaceStateCache.relativize(root, path, false));
+        assertEquals("a.txt", WorkspaceStateCache.relativize(root + File.separator, root + File.separator + "a.txt", false));
+        assertNull(WorkspaceStateCache.relativize(root, root + "2" + File.separator + "a.txt", true));
+    }
+
+    private File createFile(String path, String content) throws IOException {
+        File file = new File(workspace, path);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        file.setLastModified(MODIFIED);
+        return file;
+    }
+}
@@ -0,0 +1,77 @@
+package hudson.plugins.perforce;
+
+import hudson.FilePath;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+public class WorkspaceTrashTest extends TestCase {
+
+    private File root;
+    private File workspace;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = File.createTempFile("trash", "");
+        root.delete();
+        workspace = new File(root, "workspace");
+        workspace.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(root);
+    }
+
+    public void testWipe() throws Exception {
+        createFile("a.txt");
+        createFile("src/Main.java");
+        createFile("keep/b.txt");
+
+        int deleted = WorkspaceTrash.wipe(new FilePath(workspace), new FilePath(root), new FileFilter() {
+            public boolean accept(File file) {
+                return !file.getName().equals("keep");
+            }
+        });
+
+        assertEquals(0, deleted);
+        assertEquals(1, workspace.list().length);
+        assertTrue(new File(workspace, "keep/b.txt").isFile());
+        waitForPurge(new File(root, WorkspaceTrash.TRASH_DIR));
+    }
+
+    public void testWipeEmptyWorkspace() throws Exception {
+        assertEquals(0, WorkspaceTrash.wipe(new FilePath(workspace), new FilePath(root), null));
+        assertFalse(new File(root, WorkspaceTrash.TRASH_DIR).exists());
+    }
+
+    public void testWipePurgesLeftovers() throws Exception {
+        File trash = new File(root, WorkspaceTrash.TRASH_DIR);
+        File leftover = new File(trash, "workspace-1");
+        leftover.mkdirs();
+        FileUtils.writeStringToFile(new File(leftover, "old.txt"), "old", "UTF-8");
+        createFile("a.txt");
+
+        WorkspaceTrash.wipe(new FilePath(workspace), new FilePath(root), null);
+
+        assertEquals(0, workspace.list().length);
+        waitForPurge(trash);
+    }
+
+    private void waitForPurge(File trash) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            String[] batches = trash.list();
+            if (batches != null && batches.length == 0) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        fail("Trash has not been purged: " + trash);
+    }
+
+    private void createFile(String path) throws IOException {
+        FileUtils.writeStringToFile(new File(workspace, path), path, "UTF-8");
+    }
+}
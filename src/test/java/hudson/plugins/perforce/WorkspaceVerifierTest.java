@@ -0,0 +1,59 @@
+package hudson.plugins.perforce;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+public class WorkspaceVerifierTest extends TestCase {
+
+    // MD5 of "line1\nline2\n"
+    private static final String LF_DIGEST = "4FCC82A88EE38E0AA16C17F512C685C9";
+
+    public void testBinaryDigest() throws IOException {
+        File file = createFile("line1\r\nline2\r\n");
+        // Binary files are hashed as is
+        assertFalse(LF_DIGEST.equals(WorkspaceVerifier.getServerDigest(file, false, "win")));
+    }
+
+    public void testUnixTextDigest() throws IOException {
+        File file = createFile("line1\nline2\n");
+        assertEquals(LF_DIGEST, WorkspaceVerifier.getServerDigest(file, true, "unix"));
+        assertEquals(LF_DIGEST, WorkspaceVerifier.getServerDigest(file, false, "unix"));
+    }
+
+    public void testWindowsTextDigest() throws IOException {
+        File file = createFile("line1\r\nline2\r\n");
+        assertEquals(LF_DIGEST, WorkspaceVerifier.getServerDigest(file, true, "win"));
+    }
+
+    public void testShareTextDigest() throws IOException {
+        // Share writes LF on the client, CRLF files are not as synced
+        assertEquals(LF_DIGEST, WorkspaceVerifier.getServerDigest(createFile("line1\nline2\n"), true, "share"));
+        assertFalse(LF_DIGEST.equals(WorkspaceVerifier.getServerDigest(createFile("line1\r\nline2\r\n"), true, "share")));
+    }
+
+    public void testMacTextDigest() throws IOException {
+        File file = createFile("line1\rline2\r");
+        assertEquals(LF_DIGEST, WorkspaceVerifier.getServerDigest(file, true, "mac"));
+    }
+
+    public void testLoneCarriageReturnIsKept() throws IOException {
+        File file = createFile("line1\r\nline2\n");
+        File other = createFile("line1\rline2\n");
+        assertEquals(LF_DIGEST, WorkspaceVerifier.getServerDigest(file, true, "win"));
+        assertFalse(LF_DIGEST.equals(WorkspaceVerifier.getServerDigest(other, true, "win")));
+    }
+
+    private static File createFile(String content) throws IOException {
+        File file = File.createTempFile("verifier", ".txt");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
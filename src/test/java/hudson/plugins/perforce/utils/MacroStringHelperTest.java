@@ -33,6 +33,8 @@ import hudson.plugins.perforce.utils.JobSubstitutionHelper;
 import hudson.plugins.perforce.utils.MacroStringHelper;
 import hudson.plugins.perforce.utils.ParameterSubstitutionException;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import javax.annotation.Nonnull;
 import junit.framework.Assert;
 import org.junit.Test;
@@ -91,6 +93,30 @@ public class MacroStringHelperTest {
         Assert.fail("Expected ParameterSubstitutionException on null parameter value");
     }
     
+    public @Test void substituteMap() throws ParameterSubstitutionException {
+        EnvVars vars = new EnvVars("CLIENT", "${USER}_${NODE}", "USER", "jenkins", "NODE", "slave1");
+        Assert.assertEquals("jenkins_slave1-ws", MacroStringHelper.substituteParameters("${CLIENT}-ws", vars));
+        Assert.assertEquals("", MacroStringHelper.substituteParameters("", vars));
+    }
+    
+    public @Test void templateKeepsIncompleteMacros() throws InterruptedException {
+        EnvVars vars = new EnvVars("USER", "jenkins");
+        List<MacroTemplate.Layer> layers = Collections.singletonList(MacroTemplate.Layer.of(vars));
+        Assert.assertEquals("//depot/${/...", MacroTemplate.compile("//depot/${/...").resolve(layers));
+        Assert.assertEquals("$USER ${jenkins", MacroTemplate.compile("$USER ${${USER}").resolve(layers));
+        Assert.assertEquals("${UNKNOWN}/jenkins", MacroTemplate.compile("${UNKNOWN}/${USER}").resolve(layers));
+    }
+    
+    public @Test void unresolvedNestedMacro() {
+        EnvVars vars = new EnvVars("A", "${B}", "B", "${C}", "C", "${D}", "D", "${E}", "E", "e");
+        try {
+            MacroStringHelper.substituteParameters("${A}", vars);
+        } catch (ParameterSubstitutionException ex) {
+            return; // OK, values are substituted four levels deep
+        }
+        Assert.fail("Expected ParameterSubstitutionException on deeply nested values");
+    }
+    
     public static void checkStringForMacros(@Nonnull String string, boolean expectMacro) {
         boolean isMacro = MacroStringHelper.containsMacro(string);
         if (isMacro != expectMacro) {
@@ -0,0 +1,48 @@
+package hudson.plugins.perforce.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import junit.framework.TestCase;
+
+public class MacroTemplateTest extends TestCase {
+
+    private int computed;
+
+    public void testLaterLayerComputedOnDemand() throws InterruptedException {
+        MacroTemplate.Layer first = MacroTemplate.Layer.of(Collections.singletonMap("NODE_NAME", "master"));
+        MacroTemplate.Layer computer = new MacroTemplate.Layer() {
+            @Override
+            protected Map<String, String> compute() {
+                computed++;
+                return Collections.singletonMap("hostname", "build1");
+            }
+        };
+        assertEquals("ws-master", MacroTemplate.compile("ws-${NODE_NAME}").resolve(Arrays.asList(first, computer)));
+        assertEquals(0, computed);
+        assertEquals("ws-build1", MacroTemplate.compile("ws-${hostname}").resolve(Arrays.asList(first, computer)));
+        assertEquals("ws-${unknown}", MacroTemplate.compile("ws-${unknown}").resolve(Arrays.asList(first, computer)));
+        assertEquals(1, computed);
+    }
+
+    public void testValuesReferToLaterLayers() throws InterruptedException {
+        MacroTemplate.Layer first = MacroTemplate.Layer.of(Collections.singletonMap("P4USER", "${hostname}_user"));
+        MacroTemplate.Layer computer = MacroTemplate.Layer.of(Collections.singletonMap("hostname", "build1"));
+        assertEquals("build1_user", MacroTemplate.compile("${P4USER}").resolve(Arrays.asList(first, computer)));
+    }
+
+    public void testInterruptionIsPropagated() {
+        MacroTemplate.Layer computer = new MacroTemplate.Layer() {
+            @Override
+            protected Map<String, String> compute() throws InterruptedException {
+                throw new InterruptedException();
+            }
+        };
+        try {
+            MacroTemplate.compile("${hostname}").resolve(Collections.singletonList(computer));
+            fail("Interruption is not an unresolved reference");
+        } catch (InterruptedException e) {
+            // expected
+        }
+    }
+}